@@ -0,0 +1,571 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.LongConsumer;
+
+/**
+ * The line protocol without any user interface: sends the username
+ * handshake, answers heartbeats, and hands every other line from the
+ * server to a listener, with PRIVATE: lines already split into sender and
+ * text. {@link Client} is the Swing front end on top of it, and
+ * {@link LoadGenerator} runs thousands of them at once. It can ask the
+ * server to compress what it sends, see {@link Compression}, and for a
+ * session that a later connection can {@link #resume} after the network
+ * drops, see {@link ClientSession}. Files go to and from other users
+ * over separate connections to the server's file relay, see
+ * {@link FileRelay}, so a large one never holds up chat.
+ *
+ * Reading happens in {@link #run()}, on whatever thread the caller starts
+ * it on; sending is safe from any thread. {@link #send(String)} writes on
+ * the caller's thread, while {@link #sendAsync(String)} only queues the
+ * line for a writer thread and returns at once, which is what a UI
+ * thread should use.
+ */
+public class ChatClient implements Runnable, Closeable {
+    private static final int OUTBOUND_CAPACITY = 1024;
+    private static final long QUIT_TIMEOUT_MILLIS = 2000;
+    private static final long TRANSFER_RETRY_MILLIS = 30000;
+    private static final long MAX_TRANSFER_RETRY_DELAY_MILLIS = 4000;
+
+    public interface Listener {
+        void onMessage(String message);
+
+        void onPrivateMessage(String senderUsername, String message);
+
+        /** Called once, from the reading thread, when the connection ends. */
+        void onDisconnected();
+
+        /** Another user has sent a file; fetch it with {@link #receiveFile}. */
+        default void onFileOffered(FileOffer offer) {
+        }
+    }
+
+    /** A file another user sent, offered once the server holds all of it. */
+    public static final class FileOffer {
+        public final String id;
+        public final String sender;
+        public final long size;
+        public final String name;
+        final int port;
+
+        FileOffer(String id, int port, String sender, long size, String name) {
+            this.id = id;
+            this.port = port;
+            this.sender = sender;
+            this.size = size;
+            this.name = name;
+        }
+    }
+
+    // A /send waiting for the server to say where to upload.
+    private static final class PendingUpload {
+        final Path file;
+        final long size;
+        final LongConsumer progress;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        PendingUpload(Path file, long size, LongConsumer progress) {
+            this.file = file;
+            this.size = size;
+            this.progress = progress;
+        }
+    }
+
+    // One attempt at a transfer over a fresh relay connection.
+    private interface TransferAttempt {
+        void run(SocketChannel channel) throws IOException;
+    }
+
+    // The relay turned a request down; trying again will not help.
+    private static final class TransferRefusedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        TransferRefusedException(String message) {
+            super(message);
+        }
+    }
+
+    private final Socket socket;
+    private final String username;
+    private final BufferedReader bufferedReader;
+    private final BufferedWriter bufferedWriter;
+    private final Listener listener;
+    private final boolean compressed;
+    // Null unless the server gave this connection a session.
+    private final String sessionToken;
+    private final boolean resumed;
+    // Lines read since the session reply; a resume starts after them.
+    private volatile long receivedLines;
+    private volatile boolean closed;
+    private final BlockingQueue<Outgoing> outbound = new ArrayBlockingQueue<>(OUTBOUND_CAPACITY);
+    private Thread writer;
+    // Keyed by recipient and file name, which the server's reply repeats.
+    private final ConcurrentHashMap<String, PendingUpload> pendingUploads = new ConcurrentHashMap<>();
+
+    // A queued line and the future completed once it has been written.
+    private static final class Outgoing {
+        final String line;
+        final CompletableFuture<Void> sent = new CompletableFuture<>();
+
+        Outgoing(String line) {
+            this.line = line;
+        }
+    }
+
+    public ChatClient(Socket socket, String username, Listener listener) throws IOException {
+        this(socket, username, listener, false);
+    }
+
+    public ChatClient(Socket socket, String username, Listener listener, boolean compress) throws IOException {
+        this(socket, username, listener, compress, false);
+    }
+
+    public ChatClient(Socket socket, String username, Listener listener, boolean compress,
+                      boolean session) throws IOException {
+        this(socket, username, listener, compress, session, null, 0);
+    }
+
+    private ChatClient(Socket socket, String username, Listener listener, boolean compress,
+                       boolean session, String resumeToken, long resumeLine) throws IOException {
+        this.socket = socket;
+        this.username = username;
+        this.listener = listener;
+        this.bufferedWriter = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+        InputStream in = socket.getInputStream();
+        if (session) {
+            send(resumeToken == null ? ClientSession.REQUEST
+                    : ClientSession.REQUEST + " " + resumeToken + " " + resumeLine);
+        }
+        if (compress) {
+            send(Compression.REQUEST);
+            send(username);
+            // Read the reply without buffering: whatever follows it may be compressed.
+            compressed = Compression.ACCEPTED.equals(readPlainLine(in));
+            if (compressed) {
+                in = new Compression.Decoder(in);
+            }
+        } else {
+            compressed = false;
+            send(username);
+        }
+        this.bufferedReader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        if (session) {
+            String reply = bufferedReader.readLine();
+            if (reply == null) {
+                throw new EOFException("Server closed the connection during the handshake");
+            }
+            String[] parts = reply.split(" ");
+            if (!parts[0].equals(ClientSession.REQUEST) || parts.length < 2) {
+                throw new IOException("Expected a session reply, got: " + reply);
+            }
+            sessionToken = reply.equals(ClientSession.REFUSED) ? null : parts[1];
+            resumed = parts.length == 3 && parts[2].equals(ClientSession.RESUMED);
+        } else {
+            sessionToken = null;
+            resumed = false;
+        }
+    }
+
+    private static String readPlainLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                throw new EOFException("Server closed the connection during the handshake");
+            }
+            line.write(b);
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    public static ChatClient connect(String host, int port, String username, Listener listener) throws IOException {
+        return connect(host, port, username, listener, false);
+    }
+
+    public static ChatClient connect(String host, int port, String username, Listener listener,
+                                     boolean compress) throws IOException {
+        Socket socket = new Socket(host, port);
+        try {
+            return new ChatClient(socket, username, listener, compress);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    public static ChatClient connect(String host, int port, String username, Listener listener,
+                                     boolean compress, boolean session) throws IOException {
+        Socket socket = new Socket(host, port);
+        try {
+            return new ChatClient(socket, username, listener, compress, session);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Connects again after the previous connection was lost, picking up its
+     * session: the server sends only the lines the previous connection did
+     * not read, and nobody sees this user leave. If the session has expired
+     * the result is a fresh login with a new session; check
+     * {@link #isResumed()}.
+     */
+    public static ChatClient resume(String host, int port, ChatClient previous) throws IOException {
+        Socket socket = new Socket(host, port);
+        try {
+            ChatClient resumed = new ChatClient(socket, previous.username, previous.listener, previous.compressed, true,
+                    previous.sessionToken, previous.receivedLines);
+            // The server's answer to a /send may be among the lines replayed.
+            resumed.pendingUploads.putAll(previous.pendingUploads);
+            return resumed;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    // Synchronized because heartbeat replies are sent from the reading thread.
+    public synchronized void send(String message) throws IOException {
+        bufferedWriter.write(message);
+        bufferedWriter.newLine();
+        bufferedWriter.flush();
+    }
+
+    public void sendPrivate(String recipientUsername, String message) throws IOException {
+        send("/private " + recipientUsername + " " + message);
+    }
+
+    /**
+     * Queues a line for the writer thread and returns straight away. The
+     * future completes once the line has been written to the socket, or
+     * exceptionally if it never will be. Lines queued together go out in
+     * one write.
+     */
+    public CompletableFuture<Void> sendAsync(String message) {
+        Outgoing outgoing = new Outgoing(message);
+        synchronized (outbound) {
+            if (closed) {
+                outgoing.sent.completeExceptionally(new IOException("Connection is closed"));
+                return outgoing.sent;
+            }
+            if (writer == null) {
+                writer = new Thread(this::drainOutbound, "chat-writer-" + username);
+                writer.setDaemon(true);
+                writer.start();
+            }
+            if (!outbound.offer(outgoing)) {
+                outgoing.sent.completeExceptionally(new IOException("Too many messages waiting to be sent"));
+            }
+        }
+        return outgoing.sent;
+    }
+
+    private void drainOutbound() {
+        List<Outgoing> batch = new ArrayList<>();
+        try {
+            while (true) {
+                batch.add(outbound.take());
+                outbound.drainTo(batch);
+                synchronized (this) {
+                    for (Outgoing outgoing : batch) {
+                        bufferedWriter.write(outgoing.line);
+                        bufferedWriter.newLine();
+                    }
+                    bufferedWriter.flush();
+                }
+                for (Outgoing outgoing : batch) {
+                    outgoing.sent.complete(null);
+                }
+                batch.clear();
+            }
+        } catch (IOException e) {
+            // The connection is no use for anything queued after this either.
+            close();
+            fail(batch, e);
+        } catch (InterruptedException e) {
+            fail(batch, new IOException("Connection closed before the message was sent"));
+        }
+    }
+
+    private void fail(List<Outgoing> batch, IOException cause) {
+        outbound.drainTo(batch);
+        for (Outgoing outgoing : batch) {
+            outgoing.sent.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * Tells the server we are leaving, then closes the connection. Lines
+     * already queued with {@link #sendAsync} are sent first.
+     */
+    public void quit() throws IOException {
+        try {
+            boolean queued;
+            synchronized (outbound) {
+                queued = writer != null;
+            }
+            if (queued) {
+                sendAsync("QUIT").get(QUIT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } else {
+                send("QUIT");
+            }
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while sending QUIT", e);
+        } catch (TimeoutException e) {
+            throw new IOException("Timed out sending QUIT", e);
+        } finally {
+            close();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            String messageFromServer;
+            while ((messageFromServer = bufferedReader.readLine()) != null) {
+                receivedLines++;
+                if ("PING".equals(messageFromServer)) {
+                    send("PONG");
+                } else if (messageFromServer.startsWith(FileRelay.UPLOAD + " ")) {
+                    startUpload(messageFromServer);
+                } else if (messageFromServer.startsWith(FileRelay.REFUSED + " ")) {
+                    String[] parts = messageFromServer.split(" ", 4);
+                    PendingUpload upload = parts.length == 4 ? pendingUploads.remove(parts[2] + " " + parts[3]) : null;
+                    if (upload != null) {
+                        upload.done.completeExceptionally(new TransferRefusedException("The server refused " + parts[3]));
+                    }
+                } else if (messageFromServer.startsWith(FileRelay.OFFER + " ")) {
+                    String[] parts = messageFromServer.split(" ", 7);
+                    try {
+                        if (parts.length == 7) {
+                            listener.onFileOffered(new FileOffer(parts[2], Integer.parseInt(parts[3]), parts[4],
+                                    Long.parseLong(parts[5]), parts[6]));
+                        }
+                    } catch (NumberFormatException e) {
+                        System.err.println("Ignoring malformed file offer: " + messageFromServer);
+                    }
+                } else if (messageFromServer.startsWith("PRIVATE:")) {
+                    String[] parts = messageFromServer.split(":", 3);
+                    if (parts.length == 3) {
+                        listener.onPrivateMessage(parts[1].trim(), parts[2].trim());
+                    }
+                } else {
+                    listener.onMessage(messageFromServer);
+                }
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                System.err.println("Lost connection to the server.");
+            }
+        } finally {
+            close();
+            listener.onDisconnected();
+        }
+    }
+
+    /**
+     * Sends a file to another user through the server's file relay. The
+     * future completes once the server holds all of it; progress is given
+     * the bytes sent so far. A dropped relay connection is retried for a
+     * while, carrying on from what the server already has.
+     */
+    public CompletableFuture<Void> sendFile(String recipientUsername, Path file, LongConsumer progress) {
+        String name = file.getFileName().toString();
+        String key = recipientUsername + " " + name;
+        PendingUpload upload;
+        try {
+            upload = new PendingUpload(file, Files.size(file), progress);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        if (pendingUploads.putIfAbsent(key, upload) != null) {
+            return CompletableFuture.failedFuture(new IOException(name + " is already waiting to go to " + recipientUsername));
+        }
+        sendAsync("/send " + recipientUsername + " " + upload.size + " " + name).whenComplete((ignored, error) -> {
+            if (error != null && pendingUploads.remove(key, upload)) {
+                upload.done.completeExceptionally(error);
+            }
+        });
+        return upload.done;
+    }
+
+    // The server's go-ahead: FILE UPLOAD <id> <port> <recipient> <size> <name>.
+    private void startUpload(String line) {
+        String[] parts = line.split(" ", 7);
+        PendingUpload upload = parts.length == 7 ? pendingUploads.remove(parts[4] + " " + parts[6]) : null;
+        if (upload == null) {
+            return;
+        }
+        String id = parts[2];
+        int relayPort;
+        try {
+            relayPort = Integer.parseInt(parts[3]);
+        } catch (NumberFormatException e) {
+            upload.done.completeExceptionally(new IOException("Malformed upload reply: " + line));
+            return;
+        }
+        runTransfer(parts[6], relayPort, channel -> {
+            try (FileChannel in = FileChannel.open(upload.file, StandardOpenOption.READ)) {
+                FileRelay.writeLine(channel, FileRelay.PUT + " " + id);
+                long position = readCount(channel);
+                while (position < upload.size) {
+                    long count = in.transferTo(position, Math.min(FileRelay.CHUNK, upload.size - position), channel);
+                    if (count == 0) {
+                        throw new TransferRefusedException(upload.file + " shrank while it was being sent");
+                    }
+                    position += count;
+                    upload.progress.accept(position);
+                }
+                if (readCount(channel) != upload.size) {
+                    throw new IOException("The server did not take all of " + upload.file);
+                }
+            }
+        }, upload.done);
+    }
+
+    /**
+     * Downloads an offered file to target, which is never written over if
+     * it exists. The bytes go to a part file named for this transfer, see
+     * {@link #partialFile}, which is renamed to target once complete; if an
+     * earlier attempt left one, only the rest is fetched.
+     */
+    public CompletableFuture<Void> receiveFile(FileOffer offer, Path target, LongConsumer progress) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        Path partial = partialFile(offer, target);
+        runTransfer(offer.name, offer.port, channel -> {
+            try (FileChannel out = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                long position = out.size();
+                if (position > offer.size) {
+                    throw new TransferRefusedException(partial + " is larger than the file offered");
+                }
+                FileRelay.writeLine(channel, FileRelay.GET + " " + offer.id + " " + position);
+                readCount(channel);
+                while (position < offer.size) {
+                    long count = out.transferFrom(channel, position, Math.min(FileRelay.CHUNK, offer.size - position));
+                    if (count == 0) {
+                        throw new EOFException("Download of " + offer.name + " was cut short");
+                    }
+                    position += count;
+                    progress.accept(position);
+                }
+            }
+            try {
+                Files.move(partial, target);
+            } catch (FileAlreadyExistsException e) {
+                throw new TransferRefusedException(target + " already exists; the file is in " + partial);
+            }
+        }, done);
+        return done;
+    }
+
+    /** Where a download of offer to target collects until it is complete. */
+    static Path partialFile(FileOffer offer, Path target) {
+        return target.resolveSibling(target.getFileName() + "." + offer.id + ".part");
+    }
+
+    // Runs attempts on a thread of their own, backing off between them, until one succeeds.
+    private void runTransfer(String name, int port, TransferAttempt attempt, CompletableFuture<Void> done) {
+        InetSocketAddress relay = new InetSocketAddress(socket.getInetAddress(), port);
+        Thread thread = new Thread(() -> {
+            long deadline = System.currentTimeMillis() + TRANSFER_RETRY_MILLIS;
+            long delay = 250;
+            while (true) {
+                try (SocketChannel channel = SocketChannel.open(relay)) {
+                    attempt.run(channel);
+                    done.complete(null);
+                    return;
+                } catch (IOException e) {
+                    if (e instanceof TransferRefusedException || System.currentTimeMillis() + delay > deadline) {
+                        done.completeExceptionally(e);
+                        return;
+                    }
+                }
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    done.completeExceptionally(new IOException("Interrupted while transferring " + name, e));
+                    return;
+                }
+                delay = Math.min(delay * 2, MAX_TRANSFER_RETRY_DELAY_MILLIS);
+            }
+        }, "file-transfer-" + name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // A byte count from the relay, or its refusal.
+    private static long readCount(SocketChannel channel) throws IOException {
+        String reply = FileRelay.readLine(channel);
+        if (reply.startsWith("ERROR")) {
+            throw new TransferRefusedException("File relay: " + reply.substring(5).trim());
+        }
+        try {
+            return Long.parseLong(reply);
+        } catch (NumberFormatException e) {
+            throw new IOException("Unexpected reply from the file relay: " + reply);
+        }
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    /** Whether the server agreed to compress this connection. */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /** The server's token for this connection's session, or null if it has none. */
+    public String getSessionToken() {
+        return sessionToken;
+    }
+
+    /** Whether this connection picked up an earlier connection's session. */
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    public long getReceivedLines() {
+        return receivedLines;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /** Closes the connection, failing every line still queued by {@link #sendAsync}. */
+    @Override
+    public void close() {
+        List<Outgoing> unsent = new ArrayList<>();
+        synchronized (outbound) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (writer != null) {
+                writer.interrupt();
+            }
+            outbound.drainTo(unsent);
+        }
+        fail(unsent, new IOException("Connection closed before the message was sent"));
+        try {
+            socket.close();
+        } catch (IOException e) {
+            System.err.println("Error closing resources: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,188 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * One message on its way to one or more recipients. Each wire encoding
+ * (text line or binary frame) is produced at most once, the first time a
+ * recipient speaking that protocol needs it, and then handed out as
+ * read-only duplicates. A message is fanned out from a single thread, so
+ * the lazily built encodings are not synchronized.
+ *
+ * Writers report back as each recipient's copy reaches its socket, and the
+ * last one records the receive-to-last-write latency. The count starts at
+ * one for the fan-out itself, so a fast writer cannot finish the message
+ * before every recipient has been handed it.
+ */
+public final class ChatMessage {
+    private static final AtomicIntegerFieldUpdater<ChatMessage> PENDING_WRITES =
+            AtomicIntegerFieldUpdater.newUpdater(ChatMessage.class, "pendingWrites");
+
+    private final byte type;
+    private final int senderId;
+    private final String senderName;
+    private final int targetId;
+    private String roomName;
+
+    // At least one of body / payload is always set.
+    private String body;
+    private byte[] payload;
+    private int payloadOffset;
+    private int payloadLength;
+
+    private ByteBuffer line;
+    private ByteBuffer frame;
+
+    private final long receivedNanos = System.nanoTime();
+    private volatile int pendingWrites = 1;
+
+    private ChatMessage(byte type, int senderId, String senderName, int targetId) {
+        this.type = type;
+        this.senderId = senderId;
+        this.senderName = senderName;
+        this.targetId = targetId;
+    }
+
+    public static ChatMessage notice(String text) {
+        ChatMessage message = new ChatMessage(Frame.NOTICE, 0, null, 0);
+        message.body = text;
+        return message;
+    }
+
+    public static ChatMessage fromText(byte type, int senderId, String senderName, int targetId, String body) {
+        ChatMessage message = new ChatMessage(type, senderId, senderName, targetId);
+        message.body = body;
+        return message;
+    }
+
+    /**
+     * Builds a message from a payload received in a binary frame. The
+     * outgoing frame is encoded straight away because the source buffer is
+     * reused by the reader; the payload is only decoded to a String if a
+     * line client ends up receiving it.
+     */
+    public static ChatMessage fromFrame(byte type, int senderId, String senderName, int targetId,
+                                        byte[] source, int offset, int length) {
+        ChatMessage message = new ChatMessage(type, senderId, senderName, targetId);
+        byte[] encoded = Frame.encodeBytes(type, senderId, targetId, source, offset, length);
+        message.frame = ByteBuffer.wrap(encoded).asReadOnlyBuffer();
+        message.payload = encoded;
+        message.payloadOffset = Frame.HEADER_LENGTH;
+        message.payloadLength = length;
+        return message;
+    }
+
+    /**
+     * Names the room a {@link Frame#ROOM} message is addressed to, for line
+     * clients that see it as text.
+     */
+    public ChatMessage inRoom(String roomName) {
+        this.roomName = roomName;
+        return this;
+    }
+
+    /**
+     * Builds the encoding for one protocol if it does not exist yet and
+     * returns its length. Called on the fan-out thread, so writers on other
+     * threads only ever take duplicates of a finished encoding.
+     */
+    int encode(boolean binary) {
+        if (binary) {
+            if (frame == null) {
+                if (payload == null) {
+                    payload = body.getBytes(StandardCharsets.UTF_8);
+                    payloadLength = payload.length;
+                }
+                frame = Frame.encode(type, senderId, targetId, payload, payloadOffset, payloadLength);
+            }
+            return frame.remaining();
+        }
+        if (line == null) {
+            line = ClientHandler.encodeLine(render());
+        }
+        return line.remaining();
+    }
+
+    ByteBuffer buffer(boolean binary) {
+        return binary ? frame.duplicate() : line.duplicate();
+    }
+
+    void addRecipient() {
+        PENDING_WRITES.incrementAndGet(this);
+    }
+
+    /**
+     * Marks one recipient's copy as written (or abandoned), or the fan-out
+     * as finished. The call that brings the count to zero records latency.
+     */
+    void written(ServerMetrics metrics) {
+        if (PENDING_WRITES.decrementAndGet(this) == 0) {
+            metrics.delivered(type, System.nanoTime() - receivedNanos);
+        }
+    }
+
+    public ByteBuffer lineBuffer() {
+        encode(false);
+        return line.duplicate();
+    }
+
+    public ByteBuffer frameBuffer() {
+        encode(true);
+        return frame.duplicate();
+    }
+
+    private String render() {
+        String text = getBody();
+        switch (type) {
+            case Frame.BROADCAST:
+                return senderName + ": " + text;
+            case Frame.PRIVATE:
+                return "PRIVATE:" + senderName + ":" + text;
+            case Frame.ROOM:
+                return "[" + roomName + "] " + senderName + ": " + text;
+            default:
+                return text;
+        }
+    }
+
+    public String getBody() {
+        if (body == null) {
+            // Line clients cannot represent embedded newlines.
+            body = new String(payload, payloadOffset, payloadLength, StandardCharsets.UTF_8).replace('\n', ' ');
+        }
+        return body;
+    }
+
+    // Raw accessors for the journal, which copies whichever form exists.
+    String decodedBody() {
+        return body;
+    }
+
+    byte[] payloadArray() {
+        return payload;
+    }
+
+    int payloadOffset() {
+        return payloadOffset;
+    }
+
+    int payloadLength() {
+        return payloadLength;
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public int getSenderId() {
+        return senderId;
+    }
+
+    public String getSenderName() {
+        return senderName;
+    }
+
+    public int getTargetId() {
+        return targetId;
+    }
+}
@@ -0,0 +1,146 @@
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.HierarchyEvent;
+
+/**
+ * The main window's message history: a list model holding at most a
+ * fixed number of lines, fed from the connection's reading thread.
+ *
+ * Incoming lines are only put in a ring buffer by {@link #post(String)}.
+ * A timer on the event dispatch thread drains whatever has collected
+ * once per frame and adds it to the model as one change, so a flood of
+ * messages costs one repaint per frame instead of one event each. When
+ * the history is full the oldest lines are dropped, and since the view
+ * is a JList with fixed cell sizes only the visible rows are ever
+ * rendered, so memory and repaint cost stay flat however long the
+ * client runs.
+ */
+public class ChatScrollback extends AbstractListModel<String> {
+    private static final long serialVersionUID = 1L;
+    private static final int FRAME_MILLIS = 16;
+
+    // The scrollback itself; only touched on the event dispatch thread.
+    private final String[] lines;
+    private int first;
+    private int size;
+
+    // Lines received since the last frame. Sized like the scrollback, so
+    // overwriting the oldest when it fills drops nothing that would have
+    // stayed on screen.
+    private final Object pendingLock = new Object();
+    private final String[] pending;
+    private int pendingFirst;
+    private int pendingSize;
+
+    private JList<String> view;
+    private Timer timer;
+
+    public ChatScrollback(int capacity) {
+        this.lines = new String[capacity];
+        this.pending = new String[capacity];
+    }
+
+    /**
+     * Creates the list that shows this scrollback, which drains into it
+     * while its window is displayable. Call on the event dispatch thread.
+     */
+    public JList<String> createView() {
+        view = new JList<>(this);
+        // Fixed sizes keep the list from measuring every line on each
+        // change. The tiny width lets the list track the viewport, and
+        // long lines show in full as a tooltip.
+        view.setFixedCellHeight(view.getFontMetrics(view.getFont()).getHeight() + 2);
+        view.setFixedCellWidth(1);
+        view.setCellRenderer(new DefaultListCellRenderer() {
+            @Override
+            public Component getListCellRendererComponent(JList<?> list, Object value, int index,
+                                                          boolean isSelected, boolean cellHasFocus) {
+                super.getListCellRendererComponent(list, value, index, isSelected, cellHasFocus);
+                setToolTipText((String) value);
+                return this;
+            }
+        });
+        timer = new Timer(FRAME_MILLIS, e -> flush());
+        // A running timer is held by Swing and would keep this model and
+        // its view alive after the window is disposed.
+        view.addHierarchyListener(e -> {
+            if ((e.getChangeFlags() & HierarchyEvent.DISPLAYABILITY_CHANGED) != 0) {
+                if (view.isDisplayable()) {
+                    timer.start();
+                } else {
+                    timer.stop();
+                }
+            }
+        });
+        return view;
+    }
+
+    /** Queues a line for the next frame. Safe to call from any thread. */
+    public void post(String line) {
+        synchronized (pendingLock) {
+            int slot = (pendingFirst + pendingSize) % pending.length;
+            pending[slot] = line;
+            if (pendingSize == pending.length) {
+                pendingFirst = (pendingFirst + 1) % pending.length;
+            } else {
+                pendingSize++;
+            }
+        }
+    }
+
+    /**
+     * Moves everything posted since the last frame into the scrollback,
+     * and keeps the view pinned to the newest line if it was there. Runs
+     * on the frame timer; package-private so it can be driven without a
+     * display. Call on the event dispatch thread.
+     */
+    void flush() {
+        String[] batch;
+        synchronized (pendingLock) {
+            if (pendingSize == 0) {
+                return;
+            }
+            batch = new String[pendingSize];
+            for (int i = 0; i < pendingSize; i++) {
+                int slot = (pendingFirst + i) % pending.length;
+                batch[i] = pending[slot];
+                pending[slot] = null;
+            }
+            pendingFirst = 0;
+            pendingSize = 0;
+        }
+
+        boolean atBottom = size == 0 || view.getLastVisibleIndex() >= size - 1;
+        int evicted = Math.max(0, size + batch.length - lines.length);
+        int removed = Math.min(evicted, size);
+        if (removed > 0) {
+            for (int i = 0; i < removed; i++) {
+                lines[(first + i) % lines.length] = null;
+            }
+            first = (first + removed) % lines.length;
+            size -= removed;
+            fireIntervalRemoved(this, 0, removed - 1);
+        }
+        // A batch bigger than the scrollback keeps only its newest lines.
+        int skip = evicted - removed;
+        int added = batch.length - skip;
+        for (int i = skip; i < batch.length; i++) {
+            lines[(first + size) % lines.length] = batch[i];
+            size++;
+        }
+        fireIntervalAdded(this, size - added, size - 1);
+        if (atBottom) {
+            view.ensureIndexIsVisible(size - 1);
+        }
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        return lines[(first + index) % lines.length];
+    }
+}
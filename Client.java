@@ -3,25 +3,47 @@ import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
 import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongConsumer;
 import javax.swing.JFrame;
 
 public class Client {
+    private static final int SCROLLBACK_LINES = 5000;
+    private static final long RECONNECT_MILLIS = 30000;
+    private static final long MAX_RECONNECT_DELAY_MILLIS = 4000;
+
     private Socket socket;
-    private BufferedReader bufferedReader;
-    private BufferedWriter bufferedWriter;
+    private final String host;
+    private final int port;
+    // Replaced when a lost connection is resumed.
+    private volatile ChatClient chatClient;
+    private volatile boolean quitting;
     private String username;
     private Map<String, JFrame> openPrivateChats = new HashMap<>();
+    // Files offered by other users, by name, until accepted.
+    private final Map<String, ChatClient.FileOffer> fileOffers = new ConcurrentHashMap<>();
     // GUI components
     private JFrame frame;
-    private JTextArea textAreaMessages;
+    private final ChatScrollback scrollback = new ChatScrollback(SCROLLBACK_LINES);
     private JTextField textFieldInput;
     private JButton buttonSend;
     private JButton buttonQuit;
  
     public Client(Socket socket, String username) {
+        this(socket, username, false);
+    }
+
+    public Client(Socket socket, String username, boolean compress) {
         this.socket = socket;
+        this.host = socket.getInetAddress().getHostAddress();
+        this.port = socket.getPort();
         this.username = username;
 
         // Prompt for chat mode selection
@@ -45,16 +67,12 @@ public class Client {
         createClientGUI();
 
         try {
-            bufferedWriter = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-            bufferedReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            bufferedWriter.write(username);
-            bufferedWriter.newLine();
-            bufferedWriter.flush();
+            chatClient = new ChatClient(socket, username, new SwingListener(), compress, true);
 
             // Start listening for messages
-            listenForMessage();
+            new Thread(chatClient).start();
         } catch (IOException e) {
-            closeEverything(socket, bufferedReader, bufferedWriter);
+            closeSocket();
             System.err.println("Client Constructor Exception: " + e.getMessage());
             e.printStackTrace();
         }
@@ -62,9 +80,7 @@ public class Client {
 
     private void createClientGUI() {
         frame = new JFrame("Client: " + username);
-        textAreaMessages = new JTextArea();
-        textAreaMessages.setEditable(false);
-        JScrollPane scrollPane = new JScrollPane(textAreaMessages);
+        JScrollPane scrollPane = new JScrollPane(scrollback.createView());
         textFieldInput = new JTextField("Type your message here...");
         buttonSend = new JButton("Send");
         buttonQuit = new JButton("Quit");
@@ -137,8 +153,8 @@ public class Client {
             ActionListener sendAction = e -> {
                 String messageToSend = privateChatInput.getText().trim();
                 if (!messageToSend.isEmpty()) {
-                    sendMessage("/private " + withUsername + " " + messageToSend);
-                    privateChatArea.append("Me: " + messageToSend + "\n");
+                    CompletableFuture<Void> sent = sendToServer("/private " + withUsername + " " + messageToSend);
+                    PrivateChatWindow.appendSending(privateChatArea, "Me: " + messageToSend, sent);
                     privateChatInput.setText("");
                 }
             };
@@ -196,6 +212,10 @@ public class Client {
                     // Send the message in both cases (new or existing chat)
                     sendToServer(messageToSend);
                 }
+            } else if (messageToSend.startsWith("/send ")) {
+                sendFile(messageToSend);
+            } else if (messageToSend.startsWith("/accept ")) {
+                acceptFile(messageToSend.substring(8).trim());
             } else {
                 // Sending regular message to the server
                 sendToServer(messageToSend);
@@ -205,15 +225,86 @@ public class Client {
     }
 
 
-    private void sendToServer(String message) {
+    /**
+     * Queues a line for the connection's writer thread, so a stalled
+     * network never blocks the event dispatch thread. A failure is shown
+     * in the scrollback.
+     */
+    private CompletableFuture<Void> sendToServer(String message) {
+        CompletableFuture<Void> sent = chatClient.sendAsync(message);
+        sent.whenComplete((ignored, error) -> {
+            if (error != null) {
+                System.err.println("Error sending message: " + error.getMessage());
+                scrollback.post("Not sent: " + message);
+            }
+        });
+        return sent;
+    }
+
+    /**
+     * /send &lt;user&gt; &lt;path&gt; uploads a local file for another user in the
+     * background, with progress shown in the scrollback.
+     */
+    private void sendFile(String command) {
+        String[] parts = command.split(" ", 3);
+        if (parts.length < 3) {
+            scrollback.post("Usage: /send <user> <path>");
+            return;
+        }
+        Path file = Paths.get(parts[2].trim());
+        String name = file.getFileName().toString();
+        long size;
         try {
-            bufferedWriter.write(message);
-            bufferedWriter.newLine();
-            bufferedWriter.flush();
+            size = Files.size(file);
         } catch (IOException e) {
-            System.err.println("Error sending message: " + e.getMessage());
-            // Handle reconnection or user notification here
+            scrollback.post("Cannot read " + file + ": " + e.getMessage());
+            return;
         }
+        chatClient.sendFile(parts[1], file, progressReporter("Sending " + name, size)).whenComplete((ignored, error) ->
+                scrollback.post(error == null ? "Sent " + name + " to " + parts[1] + "."
+                        : "Could not send " + name + ": " + error.getMessage()));
+    }
+
+    /**
+     * /accept &lt;name&gt; downloads an offered file to the Downloads folder,
+     * numbering the name if a file there already has it.
+     */
+    private void acceptFile(String name) {
+        ChatClient.FileOffer offer = fileOffers.remove(name);
+        if (offer == null) {
+            scrollback.post("Nobody has offered you a file called " + name + ".");
+            return;
+        }
+        // The name comes from the sender, so keep it inside the folder.
+        String safeName = Paths.get(offer.name).getFileName().toString();
+        if (safeName.equals("..")) {
+            safeName = "download";
+        }
+        Path downloads = Paths.get(System.getProperty("user.home"), "Downloads");
+        Path folder = Files.isDirectory(downloads) ? downloads : downloads.getParent();
+        int dot = safeName.lastIndexOf('.');
+        String stem = dot > 0 ? safeName.substring(0, dot) : safeName;
+        String extension = dot > 0 ? safeName.substring(dot) : "";
+        Path free = folder.resolve(safeName);
+        for (int copy = 1; Files.exists(free); copy++) {
+            free = folder.resolve(stem + " (" + copy + ")" + extension);
+        }
+        Path target = free;
+        chatClient.receiveFile(offer, target, progressReporter("Receiving " + offer.name, offer.size))
+                .whenComplete((ignored, error) -> scrollback.post(error == null ? "Saved " + target + "."
+                        : "Could not receive " + offer.name + ": " + error.getMessage()));
+    }
+
+    // Posts progress each time another tenth of the file has gone.
+    private LongConsumer progressReporter(String label, long size) {
+        long[] reported = { 0 };
+        return bytes -> {
+            long percent = size == 0 ? 100 : bytes * 100 / size;
+            if (percent / 10 > reported[0] / 10) {
+                reported[0] = percent;
+                scrollback.post(label + ": " + percent + "%");
+            }
+        };
     }
 
     private String getChatKey(String user1, String user2) {
@@ -221,51 +312,82 @@ public class Client {
     }
 
     private void quitChat() {
+        quitting = true;
         try {
-            if (socket != null) {
-                bufferedWriter.write("QUIT");
-                bufferedWriter.newLine();
-                bufferedWriter.flush();
+            if (chatClient != null) {
+                chatClient.quit();
             }
         } catch (IOException e) {
             System.err.println("Error quitting chat: " + e.getMessage());
         } finally {
-            closeEverything(socket, bufferedReader, bufferedWriter);
+            closeSocket();
             System.exit(0);
         }
     }
 
-    private void listenForMessage() {
-        new Thread(() -> {
+    /**
+     * Receives lines on the connection's reading thread and hands them to
+     * the event dispatch thread for display; chat lines are batched by the
+     * scrollback rather than posted one event each.
+     */
+    private class SwingListener implements ChatClient.Listener {
+        @Override
+        public void onMessage(String message) {
+            scrollback.post(message);
+        }
+
+        @Override
+        public void onPrivateMessage(String senderUsername, String message) {
+            // Open or focus the private chat window with the sender
+            SwingUtilities.invokeLater(() -> openPrivateChatWindow(senderUsername, senderUsername + ": " + message));
+        }
+
+        @Override
+        public void onFileOffered(ChatClient.FileOffer offer) {
+            fileOffers.put(offer.name, offer);
+            scrollback.post("Type /accept " + offer.name + " to download it.");
+        }
+
+        @Override
+        public void onDisconnected() {
+            if (!quitting) {
+                new Thread(Client.this::reconnect, "reconnect-" + username).start();
+            }
+        }
+    }
+
+    /**
+     * Tries for a while to resume the session of a lost connection, backing
+     * off between attempts, so a short network drop costs no messages and
+     * nobody sees this user leave and come back.
+     */
+    private void reconnect() {
+        ChatClient previous = chatClient;
+        scrollback.post("Connection lost, reconnecting...");
+        long deadline = System.currentTimeMillis() + RECONNECT_MILLIS;
+        long delay = 250;
+        while (!quitting && System.currentTimeMillis() < deadline) {
             try {
-                String messageFromServer;
-                while ((messageFromServer = bufferedReader.readLine()) != null) {
-                    final String finalMessage = messageFromServer;
-                    SwingUtilities.invokeLater(() -> {
-                        if (finalMessage.startsWith("PRIVATE:")) {
-                            // Extract the sender's username and the actual message
-                            String[] parts = finalMessage.split(":", 3);
-                            if (parts.length == 3) {
-                                String senderUsername = parts[1].trim();
-                                String actualMessage = parts[2].trim();
-                                // Open or focus the private chat window with the sender
-                                openPrivateChatWindow(senderUsername, senderUsername + ": " + actualMessage);
-                            }
-                        } else {
-                            textAreaMessages.append(finalMessage + "\n");
-                        }
-                    });
-                }
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                ChatClient resumed = ChatClient.resume(host, port, previous);
+                chatClient = resumed;
+                scrollback.post(resumed.isResumed() ? "Reconnected."
+                        : "Reconnected; messages sent while you were away may be missing.");
+                new Thread(resumed).start();
+                return;
             } catch (IOException e) {
-                closeEverything(socket, bufferedReader, bufferedWriter);
-                System.err.println("Lost connection to the server.");
+                delay = Math.min(delay * 2, MAX_RECONNECT_DELAY_MILLIS);
             }
-        }).start();
+        }
+        scrollback.post("Could not reconnect to the server.");
     }
-    private void closeEverything(Socket socket, BufferedReader bufferedReader, BufferedWriter bufferedWriter) {
+
+    private void closeSocket() {
         try {
-            if (bufferedReader != null) bufferedReader.close();
-            if (bufferedWriter != null) bufferedWriter.close();
             if (socket != null) socket.close();
         } catch (IOException e) {
             System.err.println("Error closing resources: " + e.getMessage());
@@ -275,13 +397,15 @@ public class Client {
     public static void main(String[] args) {
         String serverAddress = "localhost"; // Replace with your server's IP address
         int port = 7004; // Replace with your server's port
+        // For slow links: java Client --compress
+        boolean compress = Arrays.asList(args).contains("--compress");
 
         String username = JOptionPane.showInputDialog(null, "Enter your username for the group chat:", "Login", JOptionPane.PLAIN_MESSAGE);
 
         if (username != null && !username.trim().isEmpty()) {
             try {
                 Socket socket = new Socket(serverAddress, port);
-                new Client(socket, username.trim());
+                new Client(socket, username.trim(), compress);
             } catch (IOException e) {
                 JOptionPane.showMessageDialog(null, "Error connecting to the server: " + e.getMessage(), "Connection Error", JOptionPane.ERROR_MESSAGE);
                 e.printStackTrace();
@@ -1,85 +1,1543 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ClientHandler implements Runnable {
+    private static final int MAX_PENDING_INPUT = Frame.HEADER_LENGTH + Frame.MAX_PAYLOAD;
+    private static final int MAX_GATHER = 64;
+    // Queued after the last message to tell the blocking writer to close the socket.
+    private static final Object CLOSE = new Object();
+    private static final long SUPERSEDE_TIMEOUT_MILLIS = 5000;
+    // Queued after the reply to a compression request; output after it is compressed.
+    private static final Object START_COMPRESSION = new Object();
+
     private Socket socket;
     private BufferedReader bufferedReader;
-    private BufferedWriter bufferedWriter;
+    private DataInputStream dataInputStream;
     private String clientUsername;
+    private final int clientId;
     private Server server;
+    // Chosen by the first byte the client sends: Frame.MAGIC or a username line.
+    private boolean binary;
+    private boolean protocolKnown;
+    // ByteBuffers for this client alone, or shared ChatMessages that the
+    // writer turns into a buffer and reports back to once written.
+    private final BlockingQueue<Object> outbound;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    // Bytes queued but not yet written, checked against the water marks.
+    private final AtomicLong outboundBytes = new AtomicLong();
+    private final AtomicBoolean policyScheduled = new AtomicBoolean();
+    // Set while the slow-consumer policy has stopped reading from this client.
+    private final Object readGate = new Object();
+    private volatile boolean readPaused;
+    // Rate limits on what this client sends; null where unlimited.
+    private final TokenBucket broadcastBucket;
+    private final TokenBucket privateBucket;
+    private final TokenBucket commandBucket;
+    // Stamped on every inbound read; the heartbeat check derives idleness from it.
+    private volatile long lastActivityNanos = System.nanoTime();
+    private final Set<Room> rooms = ConcurrentHashMap.newKeySet();
+    // Where plain lines go; null means everyone on the server.
+    private Room currentRoom;
+
+    // Non-blocking mode state, driven by an EventLoop instead of run().
+    private SocketChannel channel;
+    private EventLoop eventLoop;
+    private SelectionKey selectionKey;
+    private byte[] partialLine;
+    private int partialLength;
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    // The queue head's buffer once a write has started on it.
+    private ByteBuffer headBuffer;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    // Drops are logged once per connection; the metrics count every one.
+    private final AtomicBoolean dropLogged = new AtomicBoolean();
+    // When this connection last wrote to its socket; a write soon after
+    // another waits for the coalescing window.
+    private volatile long lastFlushNanos = Long.MIN_VALUE / 2;
+    // Input stopped by a rate limit: the message that was over it, with any
+    // bytes read after it kept in partialLine.
+    private boolean inputHeld;
+    private String heldLine;
+    private byte[] heldFrame;
+
+    private boolean compressionRequested;
+    // Set and used only by whichever thread writes this connection.
+    private Compression.Encoder encoder;
+
+    // A resumable session, if the client asked for one; see ClientSession.
+    private boolean sessionRequested;
+    private String resumeToken;
+    private long resumeLine;
+    private ClientSession session;
+    // Lines are counted from the reply, so output before it is not logged.
+    private ByteBuffer sessionReply;
+    private boolean recording;
+    // Set, with the session locked, once the queue has been given up on;
+    // output after that goes straight into the session's log.
+    private boolean outboundAbandoned;
+    // Blocking mode: completed once the writer thread has let go of the queue.
+    private final CompletableFuture<Void> writerDone = new CompletableFuture<>();
 
+    /**
+     * Blocking mode. Nothing is read here: the handshake happens in
+     * {@link #run()}, so the accepting thread never waits on a client.
+     */
     public ClientHandler(Socket socket, Server server) {
+        this.socket = socket;
+        this.server = server;
+        this.outbound = new ArrayBlockingQueue<>(server.getConfig().getOutboundQueueCapacity());
+        this.clientId = server.nextClientId();
+        this.broadcastBucket = TokenBucket.forLimit(server.getConfig().getBroadcastLimit());
+        this.privateBucket = TokenBucket.forLimit(server.getConfig().getPrivateLimit());
+        this.commandBucket = TokenBucket.forLimit(server.getConfig().getCommandLimit());
+    }
+
+    public ClientHandler(SocketChannel channel, Server server, EventLoop eventLoop) {
+        this.channel = channel;
+        this.socket = channel.socket();
+        this.server = server;
+        this.eventLoop = eventLoop;
+        this.outbound = new ArrayBlockingQueue<>(server.getConfig().getOutboundQueueCapacity());
+        this.clientId = server.nextClientId();
+        this.broadcastBucket = TokenBucket.forLimit(server.getConfig().getBroadcastLimit());
+        this.privateBucket = TokenBucket.forLimit(server.getConfig().getPrivateLimit());
+        this.commandBucket = TokenBucket.forLimit(server.getConfig().getCommandLimit());
+    }
+
+    /**
+     * Blocking mode: reads the protocol byte and the username on the
+     * handler's own thread. The server's handshake timer closes the
+     * connection if the client has not finished within the handshake
+     * timeout, however it trickles its bytes. Returns false if the
+     * connection was closed.
+     */
+    private boolean handshake() {
         try {
-            this.socket = socket;
-            this.server = server;
-            this.bufferedWriter = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-            this.bufferedReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            this.clientUsername = bufferedReader.readLine();
-
-            server.addClient(clientUsername, this);
-            server.broadcastMessage("SERVER: " + clientUsername + " has entered the chat!");
+            server.startWriter(this::drainOutbound);
+            server.scheduleHandshakeTimeout(this);
+
+            BufferedInputStream in = new BufferedInputStream(socket.getInputStream());
+            in.mark(1);
+            binary = in.read() == Frame.MAGIC;
+            protocolKnown = true;
+            if (binary) {
+                dataInputStream = new DataInputStream(in);
+                byte[] hello = Frame.read(dataInputStream, new byte[256]);
+                if (hello == null) {
+                    throw new IOException("Client disconnected before sending HELLO");
+                }
+                handleFrame(hello, 0);
+            } else {
+                in.reset();
+                bufferedReader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+                String username = bufferedReader.readLine();
+                while (requestCompression(username) || requestSession(username)) {
+                    username = bufferedReader.readLine();
+                }
+                completeHandshake(username);
+            }
+            return !closed.get();
         } catch (IOException e) {
+            if (closed.get()) {
+                // Timed out; the read failed because the timer closed the socket.
+                return false;
+            }
             closeEverything();
             System.err.println("ClientHandler Exception: " + e.getMessage());
             e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Runs once the handshake timeout is up, on the event loop or in
+     * blocking mode the server's handshake timer, and closes the
+     * connection if it has not sent a username yet.
+     */
+    void expireHandshake() {
+        if (clientUsername == null && !closed.get()) {
+            timeOutHandshake();
+        }
+    }
+
+    private void timeOutHandshake() {
+        server.getMetrics().handshakeTimedOut();
+        System.err.println("Handshake timed out from " + socket.getRemoteSocketAddress());
+        closeEverything();
+    }
+
+    private void completeHandshake(String username) throws IOException {
+        if (username == null) {
+            throw new IOException("Client disconnected before sending a username");
+        }
+        this.clientUsername = username;
+        if (binary) {
+            enqueue(Frame.encode(Frame.HELLO, clientId, 0, username.getBytes(StandardCharsets.UTF_8)));
+        }
+        if (sessionRequested) {
+            if (resumeToken != null && server.resumeSession(this, resumeToken, resumeLine)) {
+                return;
+            }
+            ClientSession opened = server.openSession(this);
+            if (opened != null) {
+                startSession(opened, false);
+            } else {
+                enqueue(encodeLine(ClientSession.REFUSED));
+            }
+        }
+        server.addClient(clientUsername, this);
+        server.sendHistory(this, Math.min(server.getConfig().getHistoryOnJoin(), maxHistoryLines()));
+    }
+
+    /**
+     * Answers a line client that asked for compression ahead of its
+     * username. The reply itself goes out plain and everything queued
+     * after it is compressed. Returns false if the line was the username.
+     */
+    private boolean requestCompression(String line) {
+        if (compressionRequested || !Compression.REQUEST.equals(line)) {
+            return false;
+        }
+        compressionRequested = true;
+        if (server.getConfig().getCompressionThreshold() < 0) {
+            enqueue(encodeLine(Compression.REFUSED));
+        } else {
+            enqueue(encodeLine(Compression.ACCEPTED));
+            outbound.offer(START_COMPRESSION);
+        }
+        return true;
+    }
+
+    /**
+     * Notes a line client's request for a resumable session, or to resume
+     * one, ahead of its username. It is answered once the username is
+     * known. Returns false if the line was the username.
+     */
+    private boolean requestSession(String line) {
+        if (sessionRequested || line == null || binary
+                || !(line.equals(ClientSession.REQUEST) || line.startsWith(ClientSession.REQUEST + " "))) {
+            return false;
+        }
+        sessionRequested = true;
+        String[] parts = line.split(" ");
+        if (parts.length == 3) {
+            try {
+                resumeLine = Long.parseLong(parts[2]);
+                resumeToken = parts[1];
+            } catch (NumberFormatException e) {
+                // Treated as a request for a new session.
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Tells the client its session token. Everything queued after the
+     * reply is logged for a later resume.
+     */
+    void startSession(ClientSession clientSession, boolean resumed) {
+        session = clientSession;
+        sessionReply = encodeLine(ClientSession.REQUEST + " " + clientSession.getToken()
+                + (resumed ? " " + ClientSession.RESUMED : ""));
+        enqueue(sessionReply);
+    }
+
+    /**
+     * Takes the rooms of the connection whose session this one resumed,
+     * without the joins and leaves being announced.
+     */
+    void takeOver(ClientHandler previous) {
+        for (Room room : previous.rooms) {
+            room.getMembers().add(this);
+            rooms.add(room);
+            room.getMembers().remove(previous);
+        }
+        previous.rooms.clear();
+        currentRoom = previous.currentRoom;
+    }
+
+    /**
+     * Retires a connection whose session has been resumed on another, and
+     * returns once whatever it had not written is in the session's log. The
+     * queue is given up by the thread that owns its head, the event loop or
+     * the writer, so nothing is written and logged twice or lost. Must not
+     * be called with the session locked, since that thread takes the lock
+     * to log. Returns false if that thread did not finish in time.
+     */
+    boolean supersede() {
+        closed.set(true);
+        CompletableFuture<Void> done;
+        if (channel != null) {
+            if (eventLoop.inEventLoop()) {
+                retire();
+                return true;
+            }
+            done = new CompletableFuture<>();
+            eventLoop.execute(() -> {
+                try {
+                    retire();
+                } finally {
+                    done.complete(null);
+                }
+            });
+        } else {
+            // The writer fails on the closed socket, or wakes for CLOSE, and
+            // abandons the rest of the queue on its way out.
+            closeNow();
+            outbound.offer(CLOSE);
+            done = writerDone;
+        }
+        try {
+            done.get(SUPERSEDE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException | TimeoutException e) {
+            return false;
+        }
+    }
+
+    private void retire() {
+        abandonOutbound();
+        closeNow();
+        releaseResources();
+    }
+
+    /** Whether this connection is lost but its session is waiting to be resumed. */
+    boolean isSuspended() {
+        return session != null && session.isSuspended() && session.getHandler() == this;
+    }
+
+    ClientSession getSession() {
+        return session;
+    }
+
+    /**
+     * Handles /history [count] and /history since &lt;seq&gt;, for line
+     * clients as text and for binary clients as a HISTORY frame payload.
+     */
+    private void requestHistory(String arguments) {
+        String[] parts = arguments.trim().split(" ");
+        try {
+            if (parts[0].equals("since") && parts.length == 2) {
+                server.sendHistorySince(this, Long.parseLong(parts[1]), maxHistoryLines());
+            } else {
+                int count = parts[0].isEmpty() ? 20 : Integer.parseInt(parts[0]);
+                server.sendHistory(this, Math.min(count, maxHistoryLines()));
+            }
+        } catch (NumberFormatException e) {
+            sendMessage("SERVER: Usage: /history [count] or /history since <seq>");
         }
     }
 
+    /**
+     * Handles /send &lt;user&gt; &lt;size&gt; &lt;name&gt;, which a client sends
+     * before uploading a file on the transfer port; see {@link FileRelay}.
+     */
+    private void requestFileTransfer(String line) {
+        String[] parts = line.split(" ", 4);
+        try {
+            if (parts.length == 4 && !parts[3].isBlank()) {
+                server.sendFile(this, parts[1], Long.parseLong(parts[2]), parts[3]);
+                return;
+            }
+        } catch (NumberFormatException e) {
+            // Fall through to the usage message.
+        }
+        sendMessage("SERVER: Usage: /send <user> <size> <name>");
+    }
+
+    // Keep a replay from overflowing this client's own outbound queue.
+    private int maxHistoryLines() {
+        return Math.max(1, server.getConfig().getOutboundQueueCapacity() / 2);
+    }
+
     @Override
     public void run() {
+        if (!handshake()) {
+            return;
+        }
+        if (binary) {
+            readFrames();
+            return;
+        }
         String messageFromClient;
 
         while (socket.isConnected()) {
             try {
+                awaitReading();
                 messageFromClient = bufferedReader.readLine();
                 if (messageFromClient == null) {
                     throw new IOException("Client disconnected");
                 }
+                lastActivityNanos = System.nanoTime();
+                if (!handleMessage(messageFromClient)) {
+                    break;
+                }
+            } catch (IOException e) {
+                handleDisconnect();
+                break;
+            }
+        }
+    }
 
-                if ("QUIT".equals(messageFromClient.trim())) {
-                    server.broadcastMessage("SERVER: " + clientUsername + " has left the chat.");
-                    server.removeClient(clientUsername);
-                    closeEverything();
+    private void readFrames() {
+        byte[] frame = new byte[256];
+        while (socket.isConnected()) {
+            try {
+                awaitReading();
+                frame = Frame.read(dataInputStream, frame);
+                if (frame == null) {
+                    throw new IOException("Client disconnected");
+                }
+                lastActivityNanos = System.nanoTime();
+                if (!handleFrame(frame, 0)) {
                     break;
-                } else if (messageFromClient.startsWith("/private ")) {
-                    String[] parts = messageFromClient.split(" ", 3);
-                    if (parts.length >= 3) {
-                        String recipientUsername = parts[1];
-                        String privateMessage = parts[2];
-                        server.sendPrivateMessage(clientUsername, recipientUsername, privateMessage);
-                    }
-                } else {
-                    server.broadcastMessage(clientUsername + ": " + messageFromClient);
                 }
             } catch (IOException e) {
-                server.broadcastMessage("SERVER: " + clientUsername + " has been disconnected due to an error.");
-                server.removeClient(clientUsername);
+                handleDisconnect();
+                break;
+            }
+        }
+    }
+
+    /**
+     * Handles one line received from the client. Returns false once the
+     * connection has been closed, or its input held by a rate limit, and no
+     * further lines should be read.
+     */
+    boolean handleMessage(String messageFromClient) throws IOException {
+        if (clientUsername == null) {
+            if (!requestCompression(messageFromClient) && !requestSession(messageFromClient)) {
+                completeHandshake(messageFromClient);
+            }
+            return true;
+        }
+        if (!admit(bucketFor(messageFromClient))) {
+            if (inputHeld) {
+                heldLine = messageFromClient;
+                return false;
+            }
+            return !closed.get();
+        }
+        server.getMetrics().messageReceived();
+
+        if ("QUIT".equals(messageFromClient.trim())) {
+            return quit();
+        } else if ("PONG".equals(messageFromClient)) {
+            // Heartbeat reply; reading it already refreshed the idle clock.
+        } else if ("PING".equals(messageFromClient)) {
+            sendMessage("PONG");
+        } else if (messageFromClient.startsWith("/private ")) {
+            String[] parts = messageFromClient.split(" ", 3);
+            if (parts.length >= 3) {
+                String recipientUsername = parts[1];
+                String privateMessage = parts[2];
+                server.sendPrivateMessage(clientUsername, recipientUsername, privateMessage);
+            }
+        } else if (messageFromClient.startsWith("/join ")) {
+            String roomName = messageFromClient.substring(6).trim();
+            if (roomName.isEmpty() || roomName.contains(" ")) {
+                sendMessage("SERVER: Room names must be a single word.");
+            } else {
+                currentRoom = server.joinRoom(roomName, this);
+                sendMessage("SERVER: You are now talking in [" + roomName + "]. Use /leave to return to everyone.");
+            }
+        } else if (messageFromClient.equals("/leave") || messageFromClient.startsWith("/leave ")) {
+            String roomName = messageFromClient.substring(6).trim();
+            Room room = roomName.isEmpty() ? currentRoom : server.getRoom(roomName);
+            if (room == null || !rooms.contains(room)) {
+                sendMessage("SERVER: You are not in that room.");
+            } else {
+                leave(room);
+                sendMessage("SERVER: You left [" + room.getName() + "].");
+            }
+        } else if (messageFromClient.startsWith("/room ")) {
+            String[] parts = messageFromClient.split(" ", 3);
+            Room room = parts.length >= 3 ? server.getRoom(parts[1]) : null;
+            if (room == null || !rooms.contains(room)) {
+                sendMessage("SERVER: Join a room with /join before sending to it.");
+            } else {
+                sendToRoom(room, ChatMessage.fromText(Frame.ROOM, clientId, clientUsername, room.getRoomId(), parts[2]));
+            }
+        } else if (messageFromClient.equals("/history") || messageFromClient.startsWith("/history ")) {
+            requestHistory(messageFromClient.substring(8));
+        } else if (messageFromClient.equals("/search") || messageFromClient.startsWith("/search ")) {
+            String query = messageFromClient.substring(7).trim();
+            if (query.isEmpty()) {
+                sendMessage("SERVER: Usage: /search <words>");
+            } else {
+                server.search(this, query);
+            }
+        } else if (messageFromClient.equals("/send") || messageFromClient.startsWith("/send ")) {
+            requestFileTransfer(messageFromClient);
+        } else if (messageFromClient.equals("/transfers")) {
+            server.describeTransfers(this);
+        } else if (messageFromClient.equals("/rooms")) {
+            sendMessage(server.describeRooms());
+        } else if (messageFromClient.equals("/roster")) {
+            if (server.getCoordinator() == this) {
+                server.sendRoster();
+            } else {
+                sendMessage("SERVER: Only the coordinator can view the roster.");
+            }
+        } else if (messageFromClient.equals("/stats")) {
+            if (server.getCoordinator() == this) {
+                sendMessage(server.getMetricsReport());
+            } else {
+                sendMessage("SERVER: Only the coordinator can view server statistics.");
+            }
+        } else if (currentRoom != null) {
+            sendToRoom(currentRoom, ChatMessage.fromText(Frame.ROOM, clientId, clientUsername, currentRoom.getRoomId(), messageFromClient));
+        } else {
+            server.broadcast(ChatMessage.fromText(Frame.BROADCAST, clientId, clientUsername, 0, messageFromClient));
+        }
+        return true;
+    }
+
+    private void sendToRoom(Room room, ChatMessage message) {
+        server.sendToRoom(room, message.inRoom(room.getName()));
+    }
+
+    private void leave(Room room) {
+        server.leaveRoom(room, this);
+        if (currentRoom == room) {
+            currentRoom = null;
+        }
+    }
+
+    /**
+     * Handles one binary frame starting at offset. Chat payloads are copied
+     * straight into the outgoing frame without being decoded.
+     */
+    private boolean handleFrame(byte[] frame, int offset) throws IOException {
+        byte type = frame[offset];
+        int targetId = Frame.intAt(frame, offset + 5);
+        int length = Frame.payloadLength(frame, offset);
+        int payloadOffset = offset + Frame.HEADER_LENGTH;
+
+        if (clientUsername == null) {
+            if (type != Frame.HELLO) {
+                throw new IOException("Expected HELLO frame, got type " + type);
+            }
+            completeHandshake(new String(frame, payloadOffset, length, StandardCharsets.UTF_8));
+            return true;
+        }
+        if (!admit(bucketFor(type))) {
+            if (inputHeld) {
+                heldFrame = Arrays.copyOfRange(frame, offset, payloadOffset + length);
+                return false;
+            }
+            return !closed.get();
+        }
+        server.getMetrics().messageReceived();
+
+        switch (type) {
+            case Frame.BROADCAST:
+                server.broadcast(ChatMessage.fromFrame(type, clientId, clientUsername, 0, frame, payloadOffset, length));
+                break;
+            case Frame.PRIVATE:
+                server.sendPrivateMessage(ChatMessage.fromFrame(type, clientId, clientUsername, targetId, frame, payloadOffset, length));
+                break;
+            case Frame.ROOM:
+                Room room = server.getRoom(targetId);
+                if (room != null && rooms.contains(room)) {
+                    sendToRoom(room, ChatMessage.fromFrame(type, clientId, clientUsername, targetId, frame, payloadOffset, length));
+                }
+                break;
+            case Frame.JOIN:
+                Room joined = server.joinRoom(new String(frame, payloadOffset, length, StandardCharsets.UTF_8), this);
+                enqueue(Frame.encode(Frame.JOIN, joined.getRoomId(), 0, joined.getName().getBytes(StandardCharsets.UTF_8)));
+                break;
+            case Frame.LEAVE:
+                Room left = server.getRoom(targetId);
+                if (left != null) {
+                    leave(left);
+                }
+                break;
+            case Frame.HISTORY:
+                requestHistory(new String(frame, payloadOffset, length, StandardCharsets.UTF_8));
+                break;
+            case Frame.QUIT:
+                return quit();
+            case Frame.PONG:
+                break;
+            case Frame.PING:
+                enqueue(Frame.encode(Frame.PONG, 0, 0, new byte[0]));
+                break;
+            case Frame.USER:
+                ClientHandler user = length > 0
+                        ? server.getClientHandlers().get(new String(frame, payloadOffset, length, StandardCharsets.UTF_8))
+                        : server.getClientHandler(targetId);
+                byte[] name = user != null ? user.getClientUsername().getBytes(StandardCharsets.UTF_8) : new byte[0];
+                enqueue(Frame.encode(Frame.USER, user != null ? user.getClientId() : 0, 0, name));
+                break;
+            default:
+                System.err.println("Ignoring unknown frame type " + type + " from " + clientUsername);
+        }
+        return true;
+    }
+
+    // Heartbeats and QUIT are never limited.
+    private TokenBucket bucketFor(String line) {
+        if (line.startsWith("/private ")) {
+            return privateBucket;
+        } else if (line.startsWith("/room ")) {
+            return broadcastBucket;
+        } else if (line.startsWith("/")) {
+            return commandBucket;
+        } else if (line.equals("PING") || line.equals("PONG") || line.trim().equals("QUIT")) {
+            return null;
+        }
+        return broadcastBucket;
+    }
+
+    private TokenBucket bucketFor(byte type) {
+        switch (type) {
+            case Frame.BROADCAST:
+            case Frame.ROOM:
+                return broadcastBucket;
+            case Frame.PRIVATE:
+                return privateBucket;
+            case Frame.PING:
+            case Frame.PONG:
+            case Frame.QUIT:
+                return null;
+            default:
+                return commandBucket;
+        }
+    }
+
+    /**
+     * Takes a token for one inbound message and returns true if it may be
+     * handled now. Otherwise the configured action is applied: a blocking
+     * reader sleeps until the token is due and carries on, a non-blocking
+     * connection sets inputHeld and stops reading until the server's timer
+     * resumes it, and a rejected or disconnected message returns false.
+     */
+    private boolean admit(TokenBucket bucket) throws IOException {
+        if (bucket == null) {
+            return true;
+        }
+        long wait = bucket.tryAcquire(System.nanoTime());
+        if (wait == 0) {
+            return true;
+        }
+        switch (server.getConfig().getRateLimitAction()) {
+            case DELAY:
+                server.getMetrics().messageDelayed();
+                if (channel != null) {
+                    inputHeld = true;
+                    updateReadInterest();
+                    server.resumeInputLater(this, wait);
+                    return false;
+                }
+                try {
+                    do {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    } while ((wait = bucket.tryAcquire(System.nanoTime())) > 0);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while rate limited");
+                }
+                return true;
+            case REJECT:
+                server.getMetrics().messageRejected();
+                sendMessage("SERVER: You are sending too fast; that message was not delivered.");
+                return false;
+            default:
+                server.getMetrics().floodDisconnected();
+                System.err.println("Disconnecting " + clientUsername + ": over the rate limit.");
+                sendMessage("SERVER: Disconnected for sending too fast.");
                 closeEverything();
+                return false;
+        }
+    }
+
+    /** Called on the server's timer once a held message's token is due. */
+    void resumeHeldInput() {
+        eventLoop.execute(this::replayHeldInput);
+    }
+
+    /**
+     * Handles the held message and then the input read after it, unless
+     * the limit holds it again on the way.
+     */
+    private void replayHeldInput() {
+        if (!inputHeld || closed.get()) {
+            return;
+        }
+        inputHeld = false;
+        byte[] rest = partialLength > 0 ? Arrays.copyOf(partialLine, partialLength) : new byte[0];
+        partialLength = 0;
+        try {
+            boolean more = binary ? handleFrame(heldFrame, 0) : handleMessage(heldLine);
+            if (!inputHeld) {
+                heldLine = null;
+                heldFrame = null;
+            }
+            if (more) {
+                if (binary) {
+                    readFrames(rest, 0, rest.length);
+                } else {
+                    readLines(rest, 0, rest.length);
+                }
+            } else if (inputHeld) {
+                appendPartial(rest, 0, rest.length);
+            }
+        } catch (IOException e) {
+            handleDisconnect();
+            return;
+        }
+        if (!inputHeld) {
+            updateReadInterest();
+        }
+    }
+
+    void sendPing() {
+        if (binary) {
+            enqueue(Frame.encode(Frame.PING, 0, 0, new byte[0]));
+        } else {
+            sendMessage("PING");
+        }
+    }
+
+    long getIdleMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastActivityNanos);
+    }
+
+    /**
+     * Drops a connection whose peer stopped answering heartbeats. The socket
+     * is closed right away rather than behind queued output, since a
+     * half-open peer will never drain it.
+     */
+    void disconnectIdle() {
+        handleDisconnect();
+        closeNow();
+    }
+
+    private void closeNow() {
+        try {
+            if (channel != null) {
+                channel.close();
+            } else {
+                socket.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing resources: " + e.getMessage());
+        }
+    }
+
+    private boolean quit() {
+        closeEverything();
+        return false;
+    }
+
+    private boolean handleDisconnect() {
+        if (closed.compareAndSet(false, true)) {
+            if (clientUsername != null && (session == null || !server.suspendSession(session))) {
+                server.removeClient(clientUsername, true);
+            }
+            releaseResources();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Called by the event loop when the channel is readable. The buffer is
+     * shared by every connection on the loop, so any incomplete trailing
+     * line or frame is copied into this handler before returning.
+     */
+    void onReadable(ByteBuffer readBuffer) {
+        readBuffer.clear();
+        int read;
+        try {
+            read = channel.read(readBuffer);
+        } catch (IOException e) {
+            handleDisconnect();
+            return;
+        }
+        if (read < 0) {
+            handleDisconnect();
+            return;
+        }
+        lastActivityNanos = System.nanoTime();
+
+        byte[] bytes = readBuffer.array();
+        int start = 0;
+        if (!protocolKnown && read > 0) {
+            protocolKnown = true;
+            binary = bytes[0] == Frame.MAGIC;
+            start = binary ? 1 : 0;
+        }
+        try {
+            if (binary) {
+                readFrames(bytes, start, read);
+            } else {
+                readLines(bytes, start, read);
+            }
+        } catch (IOException e) {
+            handleDisconnect();
+        }
+    }
+
+    private void readLines(byte[] bytes, int lineStart, int read) throws IOException {
+        for (int i = lineStart; i < read; i++) {
+            if (bytes[i] == '\n') {
+                String line = takeLine(bytes, lineStart, i);
+                lineStart = i + 1;
+                if (!handleMessage(line)) {
+                    holdRest(bytes, lineStart, read);
+                    return;
+                }
+            }
+        }
+        if (lineStart < read) {
+            appendPartial(bytes, lineStart, read - lineStart);
+        }
+    }
+
+    /**
+     * Dispatches every complete frame in bytes[pos, limit). Frames that are
+     * wholly inside the read buffer are handled in place; a frame split
+     * across reads is assembled in the partial buffer first.
+     */
+    private void readFrames(byte[] bytes, int pos, int limit) throws IOException {
+        while (pos < limit) {
+            int available = limit - pos;
+            if (partialLength == 0 && available >= Frame.HEADER_LENGTH
+                    && available >= Frame.HEADER_LENGTH + Frame.payloadLength(bytes, pos)) {
+                int frameLength = Frame.HEADER_LENGTH + Frame.payloadLength(bytes, pos);
+                if (!handleFrame(bytes, pos)) {
+                    holdRest(bytes, pos + frameLength, limit);
+                    return;
+                }
+                pos += frameLength;
+                continue;
+            }
+
+            int needed = partialLength < Frame.HEADER_LENGTH
+                    ? Frame.HEADER_LENGTH - partialLength
+                    : Frame.HEADER_LENGTH + Frame.payloadLength(partialLine, 0) - partialLength;
+            int take = Math.min(needed, available);
+            appendPartial(bytes, pos, take);
+            pos += take;
+            if (partialLength >= Frame.HEADER_LENGTH
+                    && partialLength == Frame.HEADER_LENGTH + Frame.payloadLength(partialLine, 0)) {
+                partialLength = 0;
+                if (!handleFrame(partialLine, 0)) {
+                    holdRest(bytes, pos, limit);
+                    return;
+                }
+            }
+        }
+    }
+
+    // Keeps input that arrived behind a held message until it is replayed.
+    private void holdRest(byte[] bytes, int start, int limit) throws IOException {
+        if (inputHeld && start < limit) {
+            appendPartial(bytes, start, limit - start);
+        }
+    }
+
+    private String takeLine(byte[] bytes, int start, int end) throws IOException {
+        String line;
+        if (partialLength == 0) {
+            line = new String(bytes, start, end - start, StandardCharsets.UTF_8);
+        } else {
+            appendPartial(bytes, start, end - start);
+            line = new String(partialLine, 0, partialLength, StandardCharsets.UTF_8);
+            partialLength = 0;
+        }
+        return line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+    }
+
+    private void appendPartial(byte[] bytes, int start, int length) throws IOException {
+        if (partialLength + length > MAX_PENDING_INPUT) {
+            throw new IOException("Message longer than " + MAX_PENDING_INPUT + " bytes");
+        }
+        if (partialLine == null || partialLine.length < partialLength + length) {
+            byte[] grown = new byte[Math.max(256, Math.max(partialLength + length, partialLength * 2))];
+            if (partialLine != null) {
+                System.arraycopy(partialLine, 0, grown, 0, partialLength);
+            }
+            partialLine = grown;
+        }
+        System.arraycopy(bytes, start, partialLine, partialLength, length);
+        partialLength += length;
+    }
+
+    /**
+     * Queues one line for this client and returns without touching the
+     * socket. The line is written later by this connection's own writer
+     * thread, or by its event loop in non-blocking mode. Returns false if
+     * the queue was full and the line was dropped.
+     */
+    public boolean sendMessage(String message) {
+        if (binary) {
+            return enqueue(Frame.encode(Frame.NOTICE, 0, 0, message.getBytes(StandardCharsets.UTF_8)));
+        }
+        return enqueue(encodeLine(message));
+    }
+
+    /**
+     * Queues several newline-terminated lines as a single write.
+     */
+    public void sendBatch(String lines) {
+        if (binary) {
+            String text = lines.endsWith("\n") ? lines.substring(0, lines.length() - 1) : lines;
+            enqueue(Frame.encode(Frame.NOTICE, 0, 0, text.getBytes(StandardCharsets.UTF_8)));
+        } else {
+            enqueue(ByteBuffer.wrap(lines.getBytes(StandardCharsets.UTF_8)));
+        }
+    }
+
+    /**
+     * Queues a message that may be shared with other recipients, in this
+     * client's wire format.
+     */
+    public void deliver(ChatMessage message) {
+        if (closed.get() && session == null) {
+            return;
+        }
+        message.encode(binary);
+        message.addRecipient();
+        if (!offer(message)) {
+            message.written(server.getMetrics());
+        }
+    }
+
+    /**
+     * Encodes a line once into an immutable buffer. Callers fanning the same
+     * line out to many clients hand each one a {@link ByteBuffer#duplicate()},
+     * which shares the bytes and only carries its own position.
+     */
+    static ByteBuffer encodeLine(String message) {
+        return ByteBuffer.wrap((message + "\n").getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+    }
+
+    boolean enqueue(ByteBuffer buffer) {
+        return offer(buffer);
+    }
+
+    private boolean offer(Object item) {
+        int size = sizeOf(item);
+        long backlog;
+        if (session == null) {
+            backlog = enqueueItem(item, size);
+        } else {
+            ClientHandler resumedOn = null;
+            synchronized (session) {
+                if (!outboundAbandoned) {
+                    backlog = enqueueItem(item, size);
+                } else if (session.getHandler() == this) {
+                    // Suspended: keep it for the client to resume from.
+                    record(item);
+                    if (item instanceof ChatMessage) {
+                        ((ChatMessage) item).written(server.getMetrics());
+                    }
+                    return true;
+                } else {
+                    resumedOn = session.getHandler();
+                    backlog = 0;
+                }
+            }
+            if (resumedOn != null) {
+                // Resumed on another connection: it goes out behind the replay.
+                return resumedOn.offer(item);
+            }
+        }
+        if (backlog < 0) {
+            return false;
+        }
+        if (backlog > server.getConfig().getOutboundHighWaterBytes()) {
+            applySlowConsumerPolicy();
+        }
+        if (channel != null) {
+            int coalesceBytes = server.getConfig().getCoalesceBytes();
+            if (flushScheduled.compareAndSet(false, true)) {
+                long delay = lastFlushNanos + server.getConfig().getCoalesceWindowNanos() - System.nanoTime();
+                if (delay > 0 && backlog < coalesceBytes) {
+                    eventLoop.schedule(this::onWritable, delay);
+                } else {
+                    eventLoop.execute(this::onWritable);
+                }
+            } else if (backlog >= coalesceBytes && backlog - size < coalesceBytes) {
+                // Enough has collected; no need to wait out the window.
+                eventLoop.execute(this::onWritable);
+            }
+        }
+        return true;
+    }
+
+    // Returns the backlog including the item, or -1 if the queue was full.
+    private long enqueueItem(Object item, int size) {
+        long backlog = outboundBytes.addAndGet(size);
+        if (!outbound.offer(item)) {
+            outboundBytes.addAndGet(-size);
+            server.getMetrics().messageDropped();
+            if (dropLogged.compareAndSet(false, true)) {
+                System.err.println("Outbound queue full for " + clientUsername
+                        + ", dropping messages; further drops are only counted in the metrics.");
+            }
+            return -1;
+        }
+        server.getMetrics().messageQueued();
+        return backlog;
+    }
+
+    /**
+     * Logs an item for the session as it is written, or as it is given up
+     * on, starting from the session reply. Only the connection's writer
+     * calls this, apart from output kept while suspended.
+     */
+    private void record(Object item) {
+        if (session == null || !(item instanceof ByteBuffer || item instanceof ChatMessage)) {
+            return;
+        }
+        if (!recording) {
+            recording = item == sessionReply;
+            return;
+        }
+        session.record(this, bufferFor(item));
+    }
+
+    private ByteBuffer bufferFor(Object item) {
+        return item instanceof ChatMessage ? ((ChatMessage) item).buffer(binary) : (ByteBuffer) item;
+    }
+
+    // Queued buffers start at position 0, so the limit survives them being written.
+    private int sizeOf(Object item) {
+        return item instanceof ChatMessage ? ((ChatMessage) item).encode(binary) : ((ByteBuffer) item).limit();
+    }
+
+    /**
+     * Called once for every message that leaves the queue, whether it was
+     * written, shed or abandoned.
+     */
+    private void written(Object item) {
+        if (item instanceof ChatMessage) {
+            ((ChatMessage) item).written(server.getMetrics());
+        }
+        long backlog = outboundBytes.addAndGet(-sizeOf(item));
+        if (readPaused && backlog <= server.getConfig().getOutboundLowWaterBytes()) {
+            resumeReading();
+        }
+    }
+
+    /**
+     * Deals with a client whose unwritten output has passed the high-water
+     * mark, so one connection that stops reading cannot hold an unbounded
+     * share of the heap. Whatever the policy, the queue's message limit
+     * still applies on top.
+     */
+    private void applySlowConsumerPolicy() {
+        switch (server.getConfig().getSlowConsumerPolicy()) {
+            case DROP:
+                if (channel == null) {
+                    shedBroadcasts();
+                } else if (policyScheduled.compareAndSet(false, true)) {
+                    // The event loop owns the queue head while it writes.
+                    eventLoop.execute(this::shedBroadcasts);
+                }
+                break;
+            case DISCONNECT:
+                if (channel == null) {
+                    disconnectSlow();
+                } else if (policyScheduled.compareAndSet(false, true)) {
+                    eventLoop.execute(this::disconnectSlow);
+                }
                 break;
+            case PAUSE:
+                pauseReading();
+                break;
+        }
+    }
+
+    /**
+     * Discards the oldest queued broadcasts and room messages until the
+     * backlog is down to the low-water mark. Private messages, server
+     * notices and the message being written are kept.
+     */
+    private void shedBroadcasts() {
+        policyScheduled.set(false);
+        long lowWater = server.getConfig().getOutboundLowWaterBytes();
+        Iterator<Object> items = outbound.iterator();
+        if (headBuffer != null && items.hasNext()) {
+            items.next();
+        }
+        while (outboundBytes.get() > lowWater && items.hasNext()) {
+            Object item = items.next();
+            // In blocking mode the writer and other producers shed or take
+            // at the same time, so only the one that removes it counts it.
+            if (item instanceof ChatMessage && isSheddable(((ChatMessage) item).getType())
+                    && outbound.remove(item)) {
+                written(item);
+                server.getMetrics().messageShed();
             }
         }
     }
 
+    private static boolean isSheddable(byte type) {
+        return type == Frame.BROADCAST || type == Frame.ROOM;
+    }
 
+    /**
+     * Closes the connection of a client that stopped reading. The backlog is
+     * discarded so the reason can go out in its place, which only the event
+     * loop can try without blocking; a blocking writer is stuck behind the
+     * full socket, so there the reason is only logged.
+     */
+    private void disconnectSlow() {
+        if (closed.get()) {
+            return;
+        }
+        long backlog = outboundBytes.get();
+        if (channel != null) {
+            // A half-written message would garble anything sent after it.
+            boolean midMessage = headBuffer != null;
+            abandonOutbound();
+            if (!midMessage) {
+                sendMessage("SERVER: Disconnected for not reading messages fast enough.");
+            }
+        }
+        if (handleDisconnect()) {
+            server.getMetrics().slowConsumerDisconnected();
+            System.err.println("Disconnecting " + clientUsername + ": " + backlog + " bytes unread.");
+            closeNow();
+        }
+    }
 
-    public void closeEverything() {
-        server.removeClient(clientUsername);
+    private void pauseReading() {
+        synchronized (readGate) {
+            if (readPaused || closed.get()) {
+                return;
+            }
+            readPaused = true;
+        }
+        server.getMetrics().readPaused();
+        // The writer may have drained everything before it could see the flag.
+        if (outboundBytes.get() <= server.getConfig().getOutboundLowWaterBytes()) {
+            resumeReading();
+        } else {
+            updateReadInterest();
+        }
+    }
+
+    private void resumeReading() {
+        synchronized (readGate) {
+            if (!readPaused) {
+                return;
+            }
+            readPaused = false;
+            readGate.notifyAll();
+        }
+        updateReadInterest();
+    }
+
+    // Blocking mode: holds the reader thread while reading is paused.
+    private void awaitReading() throws InterruptedIOException {
+        synchronized (readGate) {
+            while (readPaused && !closed.get()) {
+                try {
+                    readGate.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while reading was paused");
+                }
+            }
+        }
+    }
+
+    // Non-blocking mode: drops or restores OP_READ to match readPaused.
+    private void updateReadInterest() {
+        if (channel == null) {
+            return;
+        }
+        if (!eventLoop.inEventLoop()) {
+            eventLoop.execute(this::updateReadInterest);
+            return;
+        }
+        if (selectionKey != null && selectionKey.isValid()) {
+            setInterest((selectionKey.interestOps() & SelectionKey.OP_WRITE) != 0);
+        }
+    }
+
+    private void setInterest(boolean writePending) {
+        if (!selectionKey.isValid()) {
+            return;
+        }
+        int ops = readPaused || inputHeld ? 0 : SelectionKey.OP_READ;
+        selectionKey.interestOps(writePending ? ops | SelectionKey.OP_WRITE : ops);
+    }
+
+    /**
+     * Releases whatever is still queued once the connection can no longer
+     * write it, so shared messages do not wait on this client forever.
+     */
+    private void abandonOutbound() {
+        if (session == null) {
+            releaseOutbound();
+        } else {
+            synchronized (session) {
+                releaseOutbound();
+                outboundAbandoned = true;
+            }
+        }
+        headBuffer = null;
+    }
+
+    // Unwritten output still counts for a session: the client resumes from it.
+    private void releaseOutbound() {
+        Object item;
+        while ((item = outbound.poll()) != null) {
+            // CLOSE and START_COMPRESSION are markers, not output.
+            if (item != CLOSE && item != START_COMPRESSION) {
+                record(item);
+                written(item);
+            }
+        }
+    }
+
+    /**
+     * Blocking-mode writer loop. Each connection drains its own queue, so a
+     * client with a full TCP window only ever stalls itself. Messages that
+     * are already queued are written back to back before a single flush.
+     *
+     * A message that arrives within the coalescing window of the last flush
+     * is taken as part of a burst, and the flush waits until the window
+     * closes or a buffer's worth has collected. After a quiet spell the
+     * first message goes out at once.
+     */
+    private void drainOutbound() {
+        List<Object> batch = new ArrayList<>();
+        ServerConfig config = server.getConfig();
         try {
-            if (bufferedReader != null) {
-                bufferedReader.close();
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), config.getCoalesceBytes());
+            WritableByteChannel sink = Channels.newChannel(out);
+            while (true) {
+                Object item = outbound.take();
+                long deadline = lastFlushNanos + config.getCoalesceWindowNanos();
+                int pending = 0;
+                do {
+                    if (item == CLOSE) {
+                        writeRecord(sink);
+                        out.flush();
+                        socket.close();
+                        return;
+                    }
+                    if (item == START_COMPRESSION) {
+                        startCompression();
+                        continue;
+                    }
+                    // Logged first, so a write that fails still leaves it to resume from.
+                    record(item);
+                    write(item, sink);
+                    batch.add(item);
+                    pending += sizeOf(item);
+                } while ((item = nextInBatch(deadline, pending)) != null);
+                writeRecord(sink);
+                out.flush();
+                server.getMetrics().socketWrite();
+                lastFlushNanos = System.nanoTime();
+                for (Object written : batch) {
+                    written(written);
+                }
+                batch.clear();
+            }
+        } catch (IOException e) {
+            if (!socket.isClosed()) {
+                server.getMetrics().writeError();
+                System.err.println("Error writing to " + clientUsername + ": " + e.getMessage());
+                handleDisconnect();
             }
-            if (bufferedWriter != null) {
-                bufferedWriter.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (Object written : batch) {
+                written(written);
             }
-            if (socket != null && !socket.isClosed()) {
+            abandonOutbound();
+            endCompression();
+            writerDone.complete(null);
+        }
+    }
+
+    // Waits out the rest of the window only while the batch is still small.
+    private Object nextInBatch(long deadline, int pending) throws InterruptedException {
+        Object item = outbound.poll();
+        if (item == null && pending < server.getConfig().getCoalesceBytes()) {
+            long wait = deadline - System.nanoTime();
+            if (wait > 0) {
+                item = outbound.poll(wait, TimeUnit.NANOSECONDS);
+            }
+        }
+        return item;
+    }
+
+    /**
+     * Writes everything queued so far to the sink on the calling thread and
+     * returns the number of messages written. Stands in for the writer
+     * thread where connections are simulated in memory.
+     */
+    int drainTo(WritableByteChannel sink) throws IOException {
+        int count = 0;
+        Object item;
+        while ((item = outbound.poll()) != null && item != CLOSE) {
+            if (item == START_COMPRESSION) {
+                startCompression();
+                continue;
+            }
+            write(item, sink);
+            record(item);
+            written(item);
+            count++;
+        }
+        writeRecord(sink);
+        return count;
+    }
+
+    /**
+     * Writes one queued item, or on a compressed connection adds it to the
+     * record that {@link #writeRecord} writes at the end of the batch.
+     */
+    private void write(Object item, WritableByteChannel sink) throws IOException {
+        ByteBuffer buffer = bufferFor(item);
+        if (encoder != null) {
+            encoder.add(buffer);
+        } else {
+            writeFully(buffer, sink);
+        }
+    }
+
+    private void writeRecord(WritableByteChannel sink) throws IOException {
+        if (encoder != null && encoder.pending() > 0) {
+            writeFully(finishRecord(), sink);
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, WritableByteChannel sink) throws IOException {
+        server.getMetrics().bytesWritten(buffer.remaining());
+        while (buffer.hasRemaining()) {
+            sink.write(buffer);
+        }
+    }
+
+    private void startCompression() {
+        encoder = new Compression.Encoder(server.getConfig().getCompressionThreshold());
+    }
+
+    private ByteBuffer finishRecord() {
+        int raw = encoder.pending();
+        ByteBuffer record = encoder.finish();
+        server.getMetrics().compressed(raw, record.remaining());
+        return record;
+    }
+
+    /**
+     * Compresses up to a gather's worth of queued items into one record,
+     * or returns null if nothing is queued. The items count as written
+     * once they are in the record.
+     */
+    private ByteBuffer nextRecord() {
+        int count = 0;
+        Object item;
+        while (count < MAX_GATHER && (item = outbound.poll()) != null) {
+            encoder.add(bufferFor(item));
+            record(item);
+            written(item);
+            count++;
+        }
+        return count == 0 ? null : finishRecord();
+    }
+
+    private void endCompression() {
+        if (encoder != null) {
+            encoder.end();
+        }
+    }
+
+    /**
+     * Writes as much queued output as the socket accepts, using a gathering
+     * write, and keeps OP_WRITE interest only while output remains.
+     */
+    void onWritable() {
+        if (selectionKey == null || !selectionKey.isValid()) {
+            return;
+        }
+        try {
+            while (true) {
+                if (outbound.peek() == START_COMPRESSION) {
+                    outbound.poll();
+                    startCompression();
+                }
+                if (encoder != null) {
+                    if (!writeCompressed()) {
+                        setInterest(true);
+                        return;
+                    }
+                }
+                int count = 0;
+                for (Object item : outbound) {
+                    if (count == gather.length || item == START_COMPRESSION) {
+                        break;
+                    }
+                    gather[count] = count == 0 && headBuffer != null ? headBuffer : bufferFor(item);
+                    count++;
+                }
+                if (count == 0) {
+                    setInterest(false);
+                    flushScheduled.set(false);
+                    // A producer may have enqueued after the queue looked empty.
+                    if (outbound.isEmpty() || !flushScheduled.compareAndSet(false, true)) {
+                        return;
+                    }
+                    continue;
+                }
+                server.getMetrics().bytesWritten(channel.write(gather, 0, count));
+                server.getMetrics().socketWrite();
+                lastFlushNanos = System.nanoTime();
+                int done = 0;
+                while (done < count && !gather[done].hasRemaining()) {
+                    Object item = outbound.poll();
+                    record(item);
+                    written(item);
+                    done++;
+                }
+                boolean blocked = done < count;
+                headBuffer = blocked ? gather[done] : null;
+                Arrays.fill(gather, 0, count, null);
+                if (blocked) {
+                    setInterest(true);
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            server.getMetrics().writeError();
+            System.err.println("Error writing to " + clientUsername + ": " + e.getMessage());
+            handleDisconnect();
+        }
+    }
+
+    /**
+     * Writes compressed records until the queue is empty, keeping a partly
+     * written record in headBuffer. Returns false if the socket filled up.
+     */
+    private boolean writeCompressed() throws IOException {
+        while (true) {
+            if (headBuffer == null) {
+                headBuffer = nextRecord();
+                if (headBuffer == null) {
+                    return true;
+                }
+            }
+            server.getMetrics().bytesWritten(channel.write(headBuffer));
+            server.getMetrics().socketWrite();
+            lastFlushNanos = System.nanoTime();
+            if (headBuffer.hasRemaining()) {
+                return false;
+            }
+            headBuffer = null;
+        }
+    }
+
+    public void closeEverything() {
+        if (closed.compareAndSet(false, true)) {
+            if (clientUsername != null) {
+                server.removeClient(clientUsername);
+            }
+            releaseResources();
+        }
+    }
+
+    /**
+     * Lets the writer finish what is already queued, then closes the
+     * connection. Falls back to closing immediately if the queue is full.
+     */
+    private void releaseResources() {
+        synchronized (readGate) {
+            readGate.notifyAll();
+        }
+        if (channel != null) {
+            if (eventLoop.inEventLoop()) {
+                closeChannel();
+            } else {
+                eventLoop.execute(this::closeChannel);
+            }
+            return;
+        }
+        if (!outbound.offer(CLOSE)) {
+            try {
                 socket.close();
+            } catch (IOException e) {
+                System.err.println("Error closing resources: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void closeChannel() {
+        try {
+            if (channel.isOpen()) {
+                // Best-effort flush so a farewell line is not lost on close.
+                List<ByteBuffer> remaining = new ArrayList<>();
+                if (encoder != null) {
+                    if (headBuffer != null) {
+                        remaining.add(headBuffer);
+                    }
+                    for (ByteBuffer record = nextRecord(); record != null; record = nextRecord()) {
+                        remaining.add(record);
+                    }
+                } else {
+                    for (Object item : outbound) {
+                        if (item != START_COMPRESSION) {
+                            remaining.add(remaining.isEmpty() && headBuffer != null ? headBuffer : bufferFor(item));
+                        }
+                    }
+                }
+                channel.write(remaining.toArray(new ByteBuffer[0]));
+                channel.close();
             }
         } catch (IOException e) {
             System.err.println("Error closing resources: " + e.getMessage());
-            e.printStackTrace();
+        } finally {
+            abandonOutbound();
+            endCompression();
         }
     }
 
+    /** Messages queued for this client that have not been fully written. */
+    public int getOutboundDepth() {
+        return outbound.size();
+    }
+
+    /** Bytes queued for this client that have not been fully written. */
+    public long getOutboundBytes() {
+        return outboundBytes.get();
+    }
+
     public boolean isAlive() {
         return !socket.isClosed();
     }
@@ -88,15 +1546,31 @@ public class ClientHandler implements Runnable {
         return clientUsername;
     }
 
+    public Set<Room> getRooms() {
+        return rooms;
+    }
+
+    public int getClientId() {
+        return clientId;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
     public Socket getSocket() {
         return socket;
     }
 
-    public BufferedWriter getBufferedWriter() {
-        return bufferedWriter;
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    void setSelectionKey(SelectionKey selectionKey) {
+        this.selectionKey = selectionKey;
     }
 
     public void setCoordinator(boolean b) {
         // TODO Auto-generated method stub
     }
-}
\ No newline at end of file
+}
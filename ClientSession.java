@@ -0,0 +1,174 @@
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A line client's login that can outlive its connection. The server hands
+ * out a token when the client asks with {@link #REQUEST} ahead of its
+ * username, and keeps the last few kilobytes it wrote to that client. If
+ * the connection drops, the session is suspended rather than ended: the
+ * user stays online, and anything sent to them meanwhile is kept too. A
+ * client that comes back within the grace period with
+ *
+ * <pre>
+ *   SESSION &lt;token&gt; &lt;lines received&gt;
+ * </pre>
+ *
+ * is given only the lines after the ones it already has, with no leave or
+ * join for anyone else to see. The sequence number is simply the count of
+ * lines received since the server's reply, so nothing on the wire changes
+ * and the client only has to count.
+ *
+ * All methods are synchronized; the lock is also what orders a closing
+ * connection's unsent output against messages kept while it is suspended.
+ */
+public final class ClientSession {
+    public static final String REQUEST = "SESSION";
+    // The server's reply: "SESSION <token>" for a new session, with
+    // " resumed" after a successful resume, or "SESSION none".
+    public static final String REFUSED = "SESSION none";
+    public static final String RESUMED = "resumed";
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    // Bytes written to the client, as the shared buffers that were written.
+    private static final class Entry {
+        final ByteBuffer bytes;
+        final int lines;
+
+        Entry(ByteBuffer bytes, int lines) {
+            this.bytes = bytes;
+            this.lines = lines;
+        }
+    }
+
+    private final String token;
+    private final String username;
+    private final long maxBytes;
+    private final ArrayDeque<Entry> log = new ArrayDeque<>();
+    private long logBytes;
+    // Line numbers of the first line in the log and of the line after the last.
+    private long firstLine;
+    private long nextLine;
+    private ClientHandler handler;
+    private boolean suspended;
+    private long suspendedNanos;
+
+    public ClientSession(String username, ClientHandler handler, long maxBytes) {
+        byte[] random = new byte[16];
+        RANDOM.nextBytes(random);
+        StringBuilder token = new StringBuilder();
+        for (byte b : random) {
+            token.append(String.format("%02x", b));
+        }
+        this.token = token.toString();
+        this.username = username;
+        this.handler = handler;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Appends bytes that went to the client, or would have, dropping the
+     * oldest once the log is over its limit. Ignored unless the writer is
+     * the session's current connection, since one that has been replaced
+     * may still be finishing a write.
+     */
+    public synchronized void record(ClientHandler writer, ByteBuffer bytes) {
+        if (writer != handler) {
+            return;
+        }
+        ByteBuffer kept = bytes.duplicate();
+        kept.position(0);
+        int lines = 0;
+        for (int i = 0; i < kept.limit(); i++) {
+            if (kept.get(i) == '\n') {
+                lines++;
+            }
+        }
+        log.add(new Entry(kept, lines));
+        logBytes += kept.limit();
+        nextLine += lines;
+        while (logBytes > maxBytes && log.size() > 1) {
+            Entry evicted = log.poll();
+            logBytes -= evicted.bytes.limit();
+            firstLine += evicted.lines;
+        }
+    }
+
+    /**
+     * Returns what the client has not seen if it has received the given
+     * number of lines, and drops it from the log, since it will be recorded
+     * again as it is resent. Returns null if those lines are no longer
+     * kept, or if the count is more than was ever sent.
+     */
+    public synchronized List<ByteBuffer> unseenAfter(long line) {
+        if (line < firstLine || line > nextLine) {
+            return null;
+        }
+        List<ByteBuffer> unseen = new ArrayList<>();
+        long position = nextLine;
+        Iterator<Entry> newestFirst = log.descendingIterator();
+        while (position > line) {
+            Entry entry = newestFirst.next();
+            newestFirst.remove();
+            logBytes -= entry.bytes.limit();
+            position -= entry.lines;
+            if (position < line) {
+                // The client has the start of this batch; keep that part.
+                int cut = afterLine(entry.bytes, (int) (line - position));
+                ByteBuffer seen = entry.bytes.duplicate().limit(cut);
+                log.add(new Entry(seen.slice(), (int) (line - position)));
+                logBytes += cut;
+                unseen.add(0, entry.bytes.duplicate().position(cut).slice());
+            } else {
+                unseen.add(0, entry.bytes);
+            }
+        }
+        nextLine = line;
+        return unseen;
+    }
+
+    // The offset just past the given number of lines.
+    private static int afterLine(ByteBuffer bytes, int lines) {
+        int i = 0;
+        while (lines > 0) {
+            if (bytes.get(i++) == '\n') {
+                lines--;
+            }
+        }
+        return i;
+    }
+
+    public synchronized void suspend(long nowNanos) {
+        suspended = true;
+        suspendedNanos = nowNanos;
+    }
+
+    public synchronized void attach(ClientHandler clientHandler) {
+        handler = clientHandler;
+        suspended = false;
+    }
+
+    public synchronized boolean isSuspended() {
+        return suspended;
+    }
+
+    /** Nanoseconds since the connection was lost, or -1 if one is attached. */
+    public synchronized long suspendedFor(long nowNanos) {
+        return suspended ? nowNanos - suspendedNanos : -1;
+    }
+
+    public synchronized ClientHandler getHandler() {
+        return handler;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+}
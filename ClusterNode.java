@@ -0,0 +1,510 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Links this server to its peers so several nodes act as one chat. Each
+ * pair of nodes shares one TCP connection carrying tab-separated lines:
+ *
+ * <pre>
+ *   NODE      &lt;node id&gt; &lt;nonce&gt;              first line, both ways
+ *   AUTH      &lt;proof&gt;                        second line, both ways
+ *   USERS     &lt;user&gt;...                      every user on the sender
+ *   JOIN      &lt;user&gt;
+ *   LEAVE     &lt;user&gt;
+ *   COORD     &lt;user&gt;                         sender's local coordinator, empty if none
+ *   BROADCAST &lt;sender&gt; &lt;text&gt;
+ *   NOTICE    &lt;text&gt;
+ *   PRIVATE   &lt;sender&gt; &lt;recipient&gt; &lt;text&gt;
+ * </pre>
+ *
+ * The JOIN, LEAVE and USERS lines replicate a username to node routing
+ * table, so a private message for a user elsewhere goes straight to the
+ * node holding them. Nodes only pass on what their own clients sent, so
+ * the peers must form a full mesh; a line is never forwarded twice.
+ *
+ * The last field of a line is taken whole, so chat text may contain tabs.
+ * Each side proves it holds the cluster secret by answering the other's
+ * nonce with an HMAC of it, and a link that fails is closed before any
+ * other line is read. The port binds to loopback unless configured
+ * otherwise, and only binds elsewhere with a secret set.
+ *
+ * Every node elects a local coordinator as before, and the cluster-wide
+ * coordinator is the one on the node with the lowest id. Only nodes that
+ * have a coordinator take part, so an empty node never holds the role.
+ */
+public class ClusterNode {
+    private static final long RECONNECT_MILLIS = 1000;
+    private static final int LINK_QUEUE_CAPACITY = 8192;
+    private static final int HANDSHAKE_MILLIS = 10_000;
+    private static final SecureRandom RANDOM = new SecureRandom();
+    // Queued after the last line to tell a link's writer to stop.
+    private static final String CLOSE = new String("CLOSE");
+
+    private final Server server;
+    private final String nodeId;
+    private final int listenPort;
+    private final String bindAddress;
+    private final byte[] secret;
+    private final List<InetSocketAddress> seeds;
+    private ServerSocket listener;
+    private volatile boolean closed;
+
+    private final ConcurrentHashMap<String, PeerLink> peers = new ConcurrentHashMap<>();
+    // Every user on another node, mapped to that node's id.
+    private final ConcurrentHashMap<String, String> routes = new ConcurrentHashMap<>();
+    // The local coordinator each peer last reported.
+    private final ConcurrentHashMap<String, String> coordinators = new ConcurrentHashMap<>();
+    // Whether this node holds the cluster-wide coordinator role; guarded by this.
+    private boolean leader = true;
+
+    public ClusterNode(Server server, String nodeId, int listenPort, String bindAddress, String secret,
+                       List<InetSocketAddress> seeds) {
+        this.server = server;
+        this.nodeId = nodeId;
+        this.listenPort = listenPort;
+        this.bindAddress = bindAddress;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.seeds = seeds;
+    }
+
+    public void start() throws IOException {
+        if (listenPort > 0) {
+            InetAddress address = InetAddress.getByName(bindAddress);
+            if (!address.isLoopbackAddress() && secret.length == 0) {
+                throw new IOException("A cluster secret is required to accept peers on " + bindAddress);
+            }
+            listener = new ServerSocket(listenPort, 50, address);
+            startThread("cluster-accept", this::acceptPeers);
+            System.out.println("Node " + nodeId + " accepting peers on " + bindAddress + ":"
+                    + listener.getLocalPort() + ".");
+        }
+        for (InetSocketAddress seed : seeds) {
+            startThread("cluster-dial-" + seed.getPort(), () -> dial(seed));
+        }
+    }
+
+    private void acceptPeers() {
+        while (!closed) {
+            try {
+                Socket socket = listener.accept();
+                startThread("cluster-peer", () -> serve(socket, false));
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("Cluster accept error: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Keeps a connection open to one configured peer, redialling after it
+     * drops. Waits instead while that peer is already linked the other way.
+     */
+    private void dial(InetSocketAddress address) {
+        String[] knownId = new String[1];
+        while (!closed) {
+            if (knownId[0] == null || !peers.containsKey(knownId[0])) {
+                try {
+                    Socket socket = new Socket();
+                    // Resolved on each attempt, so a peer can come up after this node.
+                    socket.connect(new InetSocketAddress(address.getHostString(), address.getPort()),
+                            (int) RECONNECT_MILLIS);
+                    knownId[0] = serve(socket, true);
+                } catch (IOException e) {
+                    // Not up yet; try again shortly.
+                }
+            }
+            try {
+                TimeUnit.MILLISECONDS.sleep(RECONNECT_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Runs one peer connection until it closes and returns the peer's node
+     * id, or null if the handshake did not complete.
+     */
+    private String serve(Socket socket, boolean outgoing) {
+        PeerLink link = null;
+        try {
+            socket.setTcpNoDelay(true);
+            // A peer that stalls in the handshake gives up its thread.
+            socket.setSoTimeout(HANDSHAKE_MILLIS);
+            link = new PeerLink(socket);
+            String nonce = newNonce();
+            link.send("NODE\t" + nodeId + "\t" + nonce);
+            String hello = link.reader.readLine();
+            String[] parts = hello != null ? hello.split("\t", -1) : new String[0];
+            if (parts.length != 3 || !parts[0].equals("NODE") || parts[1].isEmpty() || parts[1].equals(nodeId)) {
+                throw new IOException("Bad cluster handshake: " + hello);
+            }
+            link.send("AUTH\t" + proof(parts[2], nodeId));
+            String auth = link.reader.readLine();
+            byte[] expected = ("AUTH\t" + proof(nonce, parts[1])).getBytes(StandardCharsets.UTF_8);
+            if (auth == null || !MessageDigest.isEqual(expected, auth.getBytes(StandardCharsets.UTF_8))) {
+                throw new IOException("Node " + parts[1] + " at " + socket.getRemoteSocketAddress()
+                        + " failed the cluster secret check");
+            }
+            socket.setSoTimeout(0);
+            link.peerId = parts[1];
+            if (!register(link, outgoing)) {
+                return link.peerId;
+            }
+            String line;
+            while ((line = link.reader.readLine()) != null) {
+                handle(link, line);
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                System.err.println("Cluster link " + (link != null && link.peerId != null ? "to " + link.peerId + " " : "")
+                        + "closed: " + e.getMessage());
+            }
+        } finally {
+            if (link != null) {
+                link.close();
+                unregister(link);
+            }
+        }
+        return link != null ? link.peerId : null;
+    }
+
+    private static String newNonce() {
+        byte[] random = new byte[16];
+        RANDOM.nextBytes(random);
+        return toHex(random);
+    }
+
+    // Binds the answer to the answering node's id, so it cannot be replayed as another node.
+    private String proof(String nonce, String id) throws IOException {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret.length > 0 ? secret : new byte[1], "HmacSHA256"));
+            return toHex(mac.doFinal((nonce + "\t" + id).getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot compute cluster proof", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Adds a link to the peer table and sends the peer this node's users.
+     * When two nodes dial each other at once, both keep the connection
+     * dialled by the lower id and close the other.
+     */
+    private boolean register(PeerLink link, boolean outgoing) {
+        synchronized (peers) {
+            PeerLink existing = peers.get(link.peerId);
+            if (existing != null) {
+                boolean preferred = outgoing == (nodeId.compareTo(link.peerId) < 0);
+                if (!preferred) {
+                    link.close();
+                    return false;
+                }
+                existing.close();
+            }
+            peers.put(link.peerId, link);
+        }
+        // Holding the link keeps JOIN and LEAVE lines in order behind the snapshot.
+        synchronized (link) {
+            StringBuilder users = new StringBuilder("USERS");
+            for (String username : server.getClientHandlers().keySet()) {
+                users.append('\t').append(username);
+            }
+            link.send(users.toString());
+            ClientHandler coordinator = server.getLocalCoordinator();
+            link.send("COORD\t" + (coordinator != null ? coordinator.getClientUsername() : ""));
+        }
+        System.out.println("Linked to node " + link.peerId + ".");
+        return true;
+    }
+
+    private void unregister(PeerLink link) {
+        if (link.peerId == null || !peers.remove(link.peerId, link)) {
+            return;
+        }
+        System.out.println("Lost link to node " + link.peerId + ".");
+        coordinators.remove(link.peerId);
+        dropRoutes(link.peerId, Collections.emptySet());
+        electLeader();
+    }
+
+    private void handle(PeerLink link, String line) {
+        int tab = line.indexOf('\t');
+        String type = tab < 0 ? line : line.substring(0, tab);
+        int fields = fieldCount(type);
+        String[] parts = line.split("\t", fields);
+        if (fields > 0 && parts.length < fields) {
+            System.err.println("Ignoring malformed cluster message from " + link.peerId + ": " + type);
+            return;
+        }
+        switch (type) {
+            case "USERS":
+                Set<String> usernames = new HashSet<>(Arrays.asList(parts).subList(1, parts.length));
+                dropRoutes(link.peerId, usernames);
+                for (String username : usernames) {
+                    addRoute(username, link.peerId);
+                }
+                break;
+            case "JOIN":
+                addRoute(parts[1], link.peerId);
+                break;
+            case "LEAVE":
+                if (routes.remove(parts[1], link.peerId)) {
+                    server.remoteUserChanged(parts[1]);
+                }
+                break;
+            case "COORD":
+                if (parts[1].isEmpty()) {
+                    coordinators.remove(link.peerId);
+                } else {
+                    coordinators.put(link.peerId, parts[1]);
+                }
+                electLeader();
+                break;
+            case "BROADCAST":
+                server.receiveBroadcast(parts[1], parts[2]);
+                break;
+            case "NOTICE":
+                server.receiveNotice(parts[1]);
+                break;
+            case "PRIVATE":
+                server.receivePrivateMessage(parts[1], parts[2], parts[3]);
+                break;
+            default:
+                System.err.println("Ignoring unknown cluster message from " + link.peerId + ": " + parts[0]);
+        }
+    }
+
+    /**
+     * How many tab-separated fields a line of this type has, counting the
+     * type, so that the last one keeps any tabs; -1 for a list.
+     */
+    private static int fieldCount(String type) {
+        switch (type) {
+            case "USERS":
+                return -1;
+            case "BROADCAST":
+                return 3;
+            case "PRIVATE":
+                return 4;
+            default:
+                return 2;
+        }
+    }
+
+    private void addRoute(String username, String peerId) {
+        if (!peerId.equals(routes.put(username, peerId))) {
+            server.remoteUserChanged(username);
+        }
+    }
+
+    private void dropRoutes(String peerId, Set<String> keep) {
+        for (Map.Entry<String, String> route : routes.entrySet()) {
+            if (route.getValue().equals(peerId) && !keep.contains(route.getKey())
+                    && routes.remove(route.getKey(), peerId)) {
+                server.remoteUserChanged(route.getKey());
+            }
+        }
+    }
+
+    /**
+     * Recomputes whether this node leads, and tells the server when that
+     * changes so it can hand the role to or take it from its coordinator.
+     */
+    private synchronized void electLeader() {
+        boolean leads = true;
+        for (String peerId : coordinators.keySet()) {
+            if (peerId.compareTo(nodeId) < 0) {
+                leads = false;
+                break;
+            }
+        }
+        if (leads != leader) {
+            leader = leads;
+            server.leadershipChanged(leads);
+        }
+    }
+
+    public synchronized boolean isLeader() {
+        return leader;
+    }
+
+    /** The cluster coordinator when it is on another node, otherwise null. */
+    public String getRemoteCoordinator() {
+        String lowest = null;
+        for (String peerId : coordinators.keySet()) {
+            if (peerId.compareTo(nodeId) < 0 && (lowest == null || peerId.compareTo(lowest) < 0)) {
+                lowest = peerId;
+            }
+        }
+        return lowest != null ? coordinators.get(lowest) : null;
+    }
+
+    /** The node holding a user, or null if they are not on any peer. */
+    public String nodeOf(String username) {
+        return routes.get(username);
+    }
+
+    public Set<String> getRemoteUsers() {
+        return routes.keySet();
+    }
+
+    public void userJoined(String username) {
+        sendToAll("JOIN\t" + username);
+    }
+
+    public void userLeft(String username) {
+        sendToAll("LEAVE\t" + username);
+    }
+
+    public void coordinatorChanged(ClientHandler coordinator) {
+        sendToAll("COORD\t" + (coordinator != null ? coordinator.getClientUsername() : ""));
+    }
+
+    /**
+     * Passes a message this node's clients were sent on to every peer, for
+     * their clients. Room messages stay on the node the room lives on.
+     */
+    public void relay(ChatMessage message) {
+        if (message.getType() == Frame.NOTICE) {
+            sendToAll("NOTICE\t" + message.getBody());
+        } else if (message.getType() == Frame.BROADCAST) {
+            sendToAll("BROADCAST\t" + message.getSenderName() + "\t" + message.getBody());
+        }
+    }
+
+    /**
+     * Hands a private message to the node holding its recipient. Returns
+     * false if no peer holds them.
+     */
+    public boolean routePrivate(String senderUsername, String recipientUsername, String message) {
+        String peerId = routes.get(recipientUsername);
+        PeerLink link = peerId != null ? peers.get(peerId) : null;
+        if (link == null) {
+            return false;
+        }
+        return link.send("PRIVATE\t" + senderUsername + "\t" + recipientUsername + "\t" + message.replace('\n', ' '));
+    }
+
+    private void sendToAll(String line) {
+        for (PeerLink link : peers.values()) {
+            synchronized (link) {
+                link.send(line);
+            }
+        }
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public int getPeerCount() {
+        return peers.size();
+    }
+
+    /** The port actually bound for peers, which differs from the config for port 0. */
+    public int getListenPort() {
+        return listener != null ? listener.getLocalPort() : 0;
+    }
+
+    public void shutdown() {
+        closed = true;
+        try {
+            if (listener != null) {
+                listener.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing cluster port: " + e.getMessage());
+        }
+        for (PeerLink link : peers.values()) {
+            link.close();
+        }
+    }
+
+    private static void startThread(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * One peer connection. Lines are queued and written by the link's own
+     * thread, so a slow peer never stalls the client thread that sent them.
+     */
+    private final class PeerLink {
+        private final Socket socket;
+        private final BufferedReader reader;
+        private final BufferedWriter writer;
+        private final BlockingQueue<String> outbound = new ArrayBlockingQueue<>(LINK_QUEUE_CAPACITY);
+        private volatile String peerId;
+
+        PeerLink(Socket socket) throws IOException {
+            this.socket = socket;
+            this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            this.writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            startThread("cluster-writer", this::drain);
+        }
+
+        boolean send(String line) {
+            if (!outbound.offer(line)) {
+                server.getMetrics().messageDropped();
+                System.err.println("Cluster link to " + peerId + " is backed up, dropping message.");
+                return false;
+            }
+            return true;
+        }
+
+        private void drain() {
+            try {
+                while (true) {
+                    String line = outbound.take();
+                    do {
+                        if (line == CLOSE) {
+                            return;
+                        }
+                        writer.write(line);
+                        writer.newLine();
+                    } while ((line = outbound.poll()) != null);
+                    writer.flush();
+                }
+            } catch (IOException e) {
+                close();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void close() {
+            outbound.clear();
+            outbound.offer(CLOSE);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                System.err.println("Error closing cluster link: " + e.getMessage());
+            }
+        }
+    }
+}
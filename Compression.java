@@ -0,0 +1,217 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Optional compression of everything the server sends on one connection.
+ * A line client asks for it by sending {@link #REQUEST} before its
+ * username; the server answers {@link #ACCEPTED} or {@link #REFUSED} as a
+ * plain line, and everything after an accepted reply is a sequence of
+ * records:
+ *
+ * <pre>
+ *   header:varint  bytes:length      header = length * 2 + kind
+ * </pre>
+ *
+ * The header is seven bits per byte, low bits first, with the top bit
+ * set on all but the last byte, so a record of under 64 bytes costs one
+ * byte of framing.
+ *
+ * A {@link #RAW} record carries bytes as they are. A {@link #DEFLATE}
+ * record carries the next part of one deflate stream that lasts for the
+ * whole connection, cut with a sync flush so it can be inflated as soon
+ * as it arrives. Keeping the one stream lets each message refer back to
+ * earlier ones, which is where most of the saving on short chat lines
+ * comes from. Writes smaller than a threshold go out raw, where the
+ * record and flush overhead would cost more than deflate saves.
+ */
+public final class Compression {
+    public static final String REQUEST = "COMPRESS deflate";
+    public static final String ACCEPTED = "COMPRESS deflate";
+    public static final String REFUSED = "COMPRESS none";
+    public static final byte RAW = 0;
+    public static final byte DEFLATE = 1;
+    private static final int MAX_HEADER_LENGTH = 5;
+
+    private Compression() {
+    }
+
+    /**
+     * The server side of one connection. Not thread-safe: only the
+     * connection's writer uses it.
+     */
+    public static final class Encoder {
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        private final int threshold;
+        private byte[] input = new byte[4096];
+        private int inputLength;
+        private byte[] output = new byte[4096];
+
+        public Encoder(int threshold) {
+            this.threshold = threshold;
+        }
+
+        /** Adds the buffer's remaining bytes to the next record, leaving the buffer untouched. */
+        public void add(ByteBuffer buffer) {
+            int length = buffer.remaining();
+            if (inputLength + length > input.length) {
+                input = Arrays.copyOf(input, Math.max(inputLength + length, input.length * 2));
+            }
+            buffer.duplicate().get(input, inputLength, length);
+            inputLength += length;
+        }
+
+        /** Bytes added since the last record. */
+        public int pending() {
+            return inputLength;
+        }
+
+        /** Returns one record holding everything added since the last call. */
+        public ByteBuffer finish() {
+            ByteBuffer record;
+            if (inputLength < threshold) {
+                record = record(RAW, input, inputLength);
+            } else {
+                deflater.setInput(input, 0, inputLength);
+                int length = 0;
+                while (true) {
+                    length += deflater.deflate(output, length, output.length - length, Deflater.SYNC_FLUSH);
+                    // A sync flush is complete once it stops filling the buffer.
+                    if (length < output.length) {
+                        break;
+                    }
+                    output = Arrays.copyOf(output, output.length * 2);
+                }
+                record = record(DEFLATE, output, length);
+            }
+            inputLength = 0;
+            return record;
+        }
+
+        // Copies the bytes out, since both source arrays are reused.
+        private static ByteBuffer record(byte kind, byte[] bytes, int length) {
+            ByteBuffer record = ByteBuffer.allocate(MAX_HEADER_LENGTH + length);
+            long header = (long) length * 2 + kind;
+            while (header >= 0x80) {
+                record.put((byte) (header | 0x80));
+                header >>>= 7;
+            }
+            record.put((byte) header).put(bytes, 0, length);
+            return record.flip();
+        }
+
+        /** Frees the deflater's native memory; the encoder cannot be used after this. */
+        public void end() {
+            deflater.end();
+        }
+    }
+
+    /**
+     * The client side: reads records from the server and yields the plain
+     * bytes, for a reader to split into lines as usual.
+     */
+    public static final class Decoder extends InputStream {
+        private final DataInputStream in;
+        private final Inflater inflater = new Inflater(true);
+        private byte[] record = new byte[4096];
+        private byte[] plain = new byte[8192];
+        private int position;
+        private int limit;
+
+        public Decoder(InputStream in) {
+            this.in = new DataInputStream(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return plain[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int count = Math.min(length, limit - position);
+            System.arraycopy(plain, position, buffer, offset, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return limit - position;
+        }
+
+        // Reads records until some plain bytes are ready; false at end of stream.
+        private boolean fill() throws IOException {
+            while (position == limit) {
+                long header = 0;
+                for (int shift = 0; ; shift += 7) {
+                    int b = in.read();
+                    if (b < 0) {
+                        if (shift == 0) {
+                            return false;
+                        }
+                        throw new EOFException("Connection closed inside a compressed record header");
+                    }
+                    if (shift > 28) {
+                        throw new IOException("Bad compressed record header");
+                    }
+                    header |= (long) (b & 0x7F) << shift;
+                    if (b < 0x80) {
+                        break;
+                    }
+                }
+                int kind = (int) (header & 1);
+                int length = (int) (header >>> 1);
+                if (record.length < length) {
+                    record = new byte[Math.max(length, record.length * 2)];
+                }
+                in.readFully(record, 0, length);
+                position = 0;
+                if (kind == RAW) {
+                    if (plain.length < length) {
+                        plain = new byte[length];
+                    }
+                    System.arraycopy(record, 0, plain, 0, length);
+                    limit = length;
+                } else {
+                    limit = inflate(length);
+                }
+            }
+            return true;
+        }
+
+        private int inflate(int length) throws IOException {
+            inflater.setInput(record, 0, length);
+            int total = 0;
+            try {
+                while (true) {
+                    total += inflater.inflate(plain, total, plain.length - total);
+                    if (total < plain.length) {
+                        return total;
+                    }
+                    plain = Arrays.copyOf(plain, plain.length * 2);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt compressed record", e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            inflater.end();
+            in.close();
+        }
+    }
+}
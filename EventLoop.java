@@ -0,0 +1,147 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single selector thread driving many non-blocking client connections.
+ * Other threads hand work to the loop through {@link #execute(Runnable)},
+ * or {@link #schedule(Runnable, long)} for later.
+ */
+public class EventLoop implements Runnable {
+    private static final class Timer {
+        final long deadlineNanos;
+        final Runnable task;
+
+        Timer(long deadlineNanos, Runnable task) {
+            this.deadlineNanos = deadlineNanos;
+            this.task = task;
+        }
+    }
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // Only touched on the loop thread; schedule() goes through the task queue.
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>(Comparator.comparingLong(t -> t.deadlineNanos));
+    // Shared by every connection on this loop; handlers only keep partial lines.
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(16 * 1024);
+    private volatile boolean running = true;
+    private Thread thread;
+
+    public EventLoop() throws IOException {
+        this.selector = Selector.open();
+    }
+
+    public void start(String name) {
+        thread = new Thread(this, name);
+        thread.start();
+    }
+
+    public void register(ClientHandler clientHandler) {
+        execute(() -> {
+            try {
+                SelectionKey key = clientHandler.getChannel().register(selector, SelectionKey.OP_READ, clientHandler);
+                clientHandler.setSelectionKey(key);
+            } catch (ClosedChannelException e) {
+                clientHandler.closeEverything();
+            }
+        });
+    }
+
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (Thread.currentThread() != thread) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Runs the task on the loop after the delay. The selector times out in
+     * whole milliseconds, so shorter delays are rounded up to one.
+     */
+    public void schedule(Runnable task, long delayNanos) {
+        long deadline = System.nanoTime() + delayNanos;
+        execute(() -> timers.add(new Timer(deadline, task)));
+    }
+
+    public boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select(selectTimeoutMillis());
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    ClientHandler clientHandler = (ClientHandler) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            clientHandler.onReadable(readBuffer);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            clientHandler.onWritable();
+                        }
+                    } catch (CancelledKeyException e) {
+                        // Connection closed by another thread while its key was selected.
+                    } catch (RuntimeException e) {
+                        // One broken connection must not take the whole loop down with it.
+                        System.err.println("Event loop dropping a connection after: " + e);
+                        e.printStackTrace();
+                        clientHandler.closeEverything();
+                    }
+                }
+                runTasks();
+                runTimers();
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Event loop exception: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            runSafely(task, "task");
+        }
+    }
+
+    // 0 means no timer is pending, which select() takes as no timeout.
+    private long selectTimeoutMillis() {
+        Timer next = timers.peek();
+        if (next == null) {
+            return 0;
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(next.deadlineNanos - System.nanoTime() + 999_999);
+        return Math.max(1, millis);
+    }
+
+    private void runTimers() {
+        long now = System.nanoTime();
+        while (!timers.isEmpty() && timers.peek().deadlineNanos - now <= 0) {
+            runSafely(timers.poll().task, "timer");
+        }
+    }
+
+    private static void runSafely(Runnable task, String kind) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            System.err.println("Event loop " + kind + " failed: " + e);
+            e.printStackTrace();
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+}
@@ -0,0 +1,455 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Relays files between users through a spool directory, on a port of its
+ * own, so a transfer never shares a connection or a thread with chat.
+ *
+ * A sender asks on its chat connection with
+ *
+ * <pre>
+ *   /send &lt;user&gt; &lt;size&gt; &lt;name&gt;
+ * </pre>
+ *
+ * and is answered {@link #UPLOAD} with a transfer id and this port, or
+ * {@link #REFUSED}. It then connects here and sends {@code PUT <id>}; the
+ * reply is how many bytes the server already has, and the sender writes
+ * the rest, after which the server replies with its count again. Once the
+ * whole file is spooled the recipient is sent an {@link #OFFER} and
+ * fetches it with {@code GET <id> <offset>}, to which the reply is the
+ * size followed by the bytes from that offset on. Either side can drop
+ * and repeat its request with the same id, picking up where it stopped.
+ *
+ * Bytes move between socket and spool file with
+ * {@link FileChannel#transferFrom} and {@link FileChannel#transferTo} a
+ * chunk at a time, never through a buffer on the Java heap; on Linux the
+ * download side is sendfile. The heap carries a small record per transfer
+ * whatever the size of the files.
+ *
+ * A connection must send its request within {@link #REQUEST_MILLIS} and
+ * then move a chunk at least every {@link #IDLE_MILLIS}, or it is closed.
+ * A spool file is deleted once its recipient has all of it, or when the
+ * transfer has gone untouched for the maximum age. Files being spooled are
+ * limited in total size and in number per sender.
+ */
+public class FileRelay implements Closeable {
+    public static final String UPLOAD = "FILE UPLOAD";
+    public static final String OFFER = "FILE OFFER";
+    public static final String REFUSED = "FILE REFUSED";
+    public static final String PUT = "PUT";
+    public static final String GET = "GET";
+    static final long CHUNK = 1024 * 1024;
+    static final long REQUEST_MILLIS = 10_000;
+    static final long IDLE_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final int MAX_CONNECTIONS = 1024;
+    private static final int MAX_REQUEST_LENGTH = 128;
+    private static final String SUFFIX = ".spool";
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /** Told when a file is fully spooled and when its recipient has all of it. */
+    public interface Listener {
+        void uploaded(Transfer transfer);
+
+        void downloaded(Transfer transfer);
+    }
+
+    /** One file on its way from a sender to a recipient. */
+    public static final class Transfer {
+        private final String id;
+        private final String sender;
+        private final String recipient;
+        private final String name;
+        private final long size;
+        private final Path file;
+        // One upload at a time; a new one closes the connection of the last.
+        private final ReentrantLock uploadLock = new ReentrantLock();
+        private final AtomicReference<SocketChannel> uploader = new AtomicReference<>();
+        private final AtomicBoolean downloadReported = new AtomicBoolean();
+        private volatile long received;
+        private volatile long delivered;
+        private volatile boolean uploaded;
+        private volatile long lastActiveMillis = System.currentTimeMillis();
+
+        Transfer(String id, String sender, String recipient, String name, long size, Path file) {
+            this.id = id;
+            this.sender = sender;
+            this.recipient = recipient;
+            this.name = name;
+            this.size = size;
+            this.file = file;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getSender() {
+            return sender;
+        }
+
+        public String getRecipient() {
+            return recipient;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /** Bytes spooled so far. */
+        public long getReceived() {
+            return received;
+        }
+
+        /** The furthest any download has got. */
+        public long getDelivered() {
+            return delivered;
+        }
+
+        public boolean isUploaded() {
+            return uploaded;
+        }
+    }
+
+    // A relay connection and when it is closed unless it makes progress.
+    private static final class Connection {
+        final SocketChannel channel;
+        volatile long deadlineMillis = System.currentTimeMillis() + REQUEST_MILLIS;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void extend() {
+            deadlineMillis = System.currentTimeMillis() + IDLE_MILLIS;
+        }
+    }
+
+    private final Path directory;
+    private final long maxBytes;
+    private final long maxAgeMillis;
+    private final long maxSpoolBytes;
+    private final int maxPerSender;
+    private final Listener listener;
+    private final ServerSocketChannel serverChannel;
+    private final ConcurrentHashMap<String, Transfer> transfers = new ConcurrentHashMap<>();
+    // Declared sizes of every transfer held; checked and raised under this in open().
+    private final AtomicLong spooled = new AtomicLong();
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+
+    public FileRelay(Path directory, int port, long maxBytes, long maxAgeMillis, long maxSpoolBytes, int maxPerSender,
+                     Listener listener) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxSpoolBytes = maxSpoolBytes;
+        this.maxPerSender = maxPerSender;
+        this.listener = listener;
+        Files.createDirectories(directory);
+        // Transfers are only known in memory, so anything left over is orphaned.
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : stream) {
+                Files.deleteIfExists(file);
+            }
+        }
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+    }
+
+    /** Starts accepting transfer connections and expiring idle ones and idle transfers. */
+    public void start() {
+        Thread acceptor = new Thread(this::accept, "file-relay");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        Thread eviction = new Thread(() -> {
+            while (serverChannel.isOpen()) {
+                try {
+                    TimeUnit.SECONDS.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                closeStalled();
+                evictExpired();
+            }
+        }, "file-relay-eviction");
+        eviction.setDaemon(true);
+        eviction.start();
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Creates an empty spool file for a new transfer. Throws
+     * IllegalArgumentException if the file is over the size limit, the
+     * sender already has as many transfers as allowed, or the spool has no
+     * room for it.
+     */
+    public synchronized Transfer open(String sender, String recipient, String name, long size) throws IOException {
+        if (size < 0 || size > maxBytes) {
+            throw new IllegalArgumentException("Files are limited to " + maxBytes / (1024 * 1024) + " MB.");
+        }
+        int sending = 0;
+        for (Transfer transfer : transfers.values()) {
+            if (transfer.sender.equals(sender)) {
+                sending++;
+            }
+        }
+        if (sending >= maxPerSender) {
+            throw new IllegalArgumentException("You already have " + sending + " files waiting to be received.");
+        }
+        if (spooled.get() + size > maxSpoolBytes) {
+            throw new IllegalArgumentException("The server has no room for the file right now; try again later.");
+        }
+        byte[] random = new byte[16];
+        RANDOM.nextBytes(random);
+        StringBuilder id = new StringBuilder();
+        for (byte b : random) {
+            id.append(String.format("%02x", b));
+        }
+        Path file = directory.resolve(id + SUFFIX);
+        Files.createFile(file);
+        Transfer transfer = new Transfer(id.toString(), sender, recipient, name, size, file);
+        transfers.put(transfer.id, transfer);
+        spooled.addAndGet(size);
+        return transfer;
+    }
+
+    // Forgets a transfer and deletes its spool file; a no-op if already gone.
+    private void discard(Transfer transfer) {
+        if (!transfers.remove(transfer.id, transfer)) {
+            return;
+        }
+        spooled.addAndGet(-transfer.size);
+        try {
+            Files.deleteIfExists(transfer.file);
+        } catch (IOException e) {
+            System.err.println("Could not delete spool file " + transfer.file + ": " + e.getMessage());
+        }
+    }
+
+    /** Transfers the user is sending or receiving. */
+    public List<Transfer> transfersOf(String username) {
+        List<Transfer> result = new ArrayList<>();
+        for (Transfer transfer : transfers.values()) {
+            if (transfer.sender.equals(username) || transfer.recipient.equals(username)) {
+                result.add(transfer);
+            }
+        }
+        return result;
+    }
+
+    private void accept() {
+        while (serverChannel.isOpen()) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                if (connections.size() >= MAX_CONNECTIONS) {
+                    channel.close();
+                    continue;
+                }
+                Connection connection = new Connection(channel);
+                connections.add(connection);
+                Thread thread = new Thread(() -> serve(connection), "file-transfer");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                if (serverChannel.isOpen()) {
+                    System.err.println("File relay accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private void serve(Connection connection) {
+        SocketChannel channel = connection.channel;
+        try {
+            String[] request = readLine(channel).split(" ");
+            connection.extend();
+            Transfer transfer = request.length >= 2 ? transfers.get(request[1]) : null;
+            if (transfer == null) {
+                writeLine(channel, "ERROR unknown transfer");
+            } else if (request[0].equals(PUT) && request.length == 2) {
+                receive(transfer, connection);
+            } else if (request[0].equals(GET) && request.length == 3) {
+                send(transfer, connection, Long.parseLong(request[2]));
+            } else {
+                writeLine(channel, "ERROR bad request");
+            }
+        } catch (AsynchronousCloseException e) {
+            if (serverChannel.isOpen()) {
+                System.err.println("File transfer connection closed: it missed its deadline or was replaced.");
+            }
+        } catch (IOException | NumberFormatException e) {
+            if (serverChannel.isOpen()) {
+                System.err.println("File transfer ended: " + e.getMessage());
+            }
+        } finally {
+            connections.remove(connection);
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Error closing resources: " + e.getMessage());
+            }
+        }
+    }
+
+    // Spools the sender's bytes, starting after whatever an earlier attempt left.
+    private void receive(Transfer transfer, Connection connection) throws IOException {
+        SocketChannel channel = connection.channel;
+        SocketChannel previous = transfer.uploader.getAndSet(channel);
+        if (previous != null) {
+            previous.close();
+        }
+        transfer.uploadLock.lock();
+        try (FileChannel spool = FileChannel.open(transfer.file, StandardOpenOption.WRITE)) {
+            boolean complete = transfer.uploaded;
+            long position = Math.min(spool.size(), transfer.size);
+            writeLine(channel, Long.toString(position));
+            while (position < transfer.size) {
+                long count = spool.transferFrom(channel, position, Math.min(CHUNK, transfer.size - position));
+                if (count == 0) {
+                    // The sender closed early; it can PUT again to carry on.
+                    return;
+                }
+                position += count;
+                transfer.received = position;
+                transfer.lastActiveMillis = System.currentTimeMillis();
+                connection.extend();
+            }
+            transfer.uploaded = true;
+            writeLine(channel, Long.toString(position));
+            if (!complete) {
+                listener.uploaded(transfer);
+            }
+        } finally {
+            transfer.uploader.compareAndSet(channel, null);
+            transfer.uploadLock.unlock();
+        }
+    }
+
+    // Sends the spooled file from offset; once the recipient has all of it, the spool file goes.
+    private void send(Transfer transfer, Connection connection, long offset) throws IOException {
+        SocketChannel channel = connection.channel;
+        if (!transfer.isUploaded()) {
+            writeLine(channel, "ERROR not uploaded yet");
+            return;
+        }
+        if (offset < 0 || offset > transfer.size) {
+            writeLine(channel, "ERROR bad offset");
+            return;
+        }
+        try (FileChannel spool = FileChannel.open(transfer.file, StandardOpenOption.READ)) {
+            writeLine(channel, Long.toString(transfer.size));
+            long position = offset;
+            while (position < transfer.size) {
+                position += spool.transferTo(position, Math.min(CHUNK, transfer.size - position), channel);
+                transfer.delivered = Math.max(transfer.delivered, position);
+                transfer.lastActiveMillis = System.currentTimeMillis();
+                connection.extend();
+            }
+        }
+        if (transfer.downloadReported.compareAndSet(false, true)) {
+            discard(transfer);
+            listener.downloaded(transfer);
+        }
+    }
+
+    // Closes connections that missed their deadline; their transfers can be picked up again.
+    private void closeStalled() {
+        long now = System.currentTimeMillis();
+        for (Connection connection : connections) {
+            if (connection.deadlineMillis < now) {
+                try {
+                    connection.channel.close();
+                } catch (IOException e) {
+                    System.err.println("Error closing resources: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Drops transfers nobody has touched for the maximum age, with their spool files.
+    private void evictExpired() {
+        long cutoff = System.currentTimeMillis() - maxAgeMillis;
+        for (Transfer transfer : transfers.values()) {
+            if (transfer.lastActiveMillis < cutoff) {
+                SocketChannel uploader = transfer.uploader.get();
+                if (uploader != null) {
+                    try {
+                        uploader.close();
+                    } catch (IOException e) {
+                        System.err.println("Error closing resources: " + e.getMessage());
+                    }
+                }
+                discard(transfer);
+            }
+        }
+    }
+
+    /**
+     * Reads one request or reply line a byte at a time, so nothing after it
+     * is consumed from the channel.
+     */
+    static String readLine(SocketChannel channel) throws IOException {
+        ByteBuffer one = ByteBuffer.allocate(1);
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        while (true) {
+            one.clear();
+            if (channel.read(one) < 0) {
+                throw new EOFException("Transfer connection closed");
+            }
+            byte b = one.get(0);
+            if (b == '\n') {
+                return line.toString(StandardCharsets.UTF_8);
+            }
+            if (line.size() == MAX_REQUEST_LENGTH) {
+                throw new IOException("Transfer request line too long");
+            }
+            line.write(b);
+        }
+    }
+
+    static void writeLine(SocketChannel channel, String line) throws IOException {
+        ByteBuffer bytes = StandardCharsets.UTF_8.encode(line + "\n");
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            System.err.println("Error closing resources: " + e.getMessage());
+        }
+        for (Connection connection : connections) {
+            try {
+                connection.channel.close();
+            } catch (IOException e) {
+                System.err.println("Error closing resources: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Binary wire format used by clients that open the connection with
+ * {@link #MAGIC} instead of a username line. Every frame is a fixed
+ * 13 byte big-endian header followed by the payload:
+ *
+ * <pre>
+ *   type:1  senderId:4  targetId:4  length:4  payload:length
+ * </pre>
+ *
+ * Senders and recipients are addressed by the numeric id the server hands
+ * out in its HELLO reply; {@link #USER} frames map ids to usernames.
+ */
+public final class Frame {
+    public static final int MAGIC = 0x00;
+    public static final int HEADER_LENGTH = 13;
+    public static final int MAX_PAYLOAD = 64 * 1024;
+
+    /** Client: payload is the username. Server: senderId is the id assigned to the client. */
+    public static final byte HELLO = 1;
+    /** Chat message to everyone. */
+    public static final byte BROADCAST = 2;
+    /** Chat message to the user in targetId. */
+    public static final byte PRIVATE = 3;
+    /** Server notice; payload is the same text a line client would receive. */
+    public static final byte NOTICE = 4;
+    public static final byte QUIT = 5;
+    /** Client: look up targetId, or the username in payload. Server: senderId is the id, payload the name (id 0 if unknown). */
+    public static final byte USER = 6;
+    /** Liveness probe, either direction; answered with PONG. */
+    public static final byte PING = 7;
+    public static final byte PONG = 8;
+    /** Chat message to the members of the room in targetId. */
+    public static final byte ROOM = 9;
+    /** Client: payload is the room name. Server: senderId is the room id, payload its name. */
+    public static final byte JOIN = 10;
+    /** Client: leave the room in targetId. */
+    public static final byte LEAVE = 11;
+    /** Client: payload holds /history arguments ("20", "since 120"); replies arrive as NOTICE frames. */
+    public static final byte HISTORY = 12;
+
+    private Frame() {
+    }
+
+    public static ByteBuffer encode(byte type, int senderId, int targetId, byte[] payload, int offset, int length) {
+        return ByteBuffer.wrap(encodeBytes(type, senderId, targetId, payload, offset, length)).asReadOnlyBuffer();
+    }
+
+    public static byte[] encodeBytes(byte type, int senderId, int targetId, byte[] payload, int offset, int length) {
+        byte[] frame = new byte[HEADER_LENGTH + length];
+        ByteBuffer.wrap(frame).put(type).putInt(senderId).putInt(targetId).putInt(length).put(payload, offset, length);
+        return frame;
+    }
+
+    public static ByteBuffer encode(byte type, int senderId, int targetId, byte[] payload) {
+        return encode(type, senderId, targetId, payload, 0, payload.length);
+    }
+
+    /**
+     * Reads the payload length out of a complete header starting at offset.
+     */
+    public static int payloadLength(byte[] header, int offset) throws IOException {
+        int length = ((header[offset + 9] & 0xff) << 24) | ((header[offset + 10] & 0xff) << 16)
+                | ((header[offset + 11] & 0xff) << 8) | (header[offset + 12] & 0xff);
+        if (length < 0 || length > MAX_PAYLOAD) {
+            throw new IOException("Invalid frame length " + length);
+        }
+        return length;
+    }
+
+    public static int intAt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16)
+                | ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+    }
+
+    /**
+     * Reads one whole frame (header and payload) from a blocking stream into
+     * the given buffer, growing it if needed. Returns the buffer holding the
+     * frame, or null at end of stream.
+     */
+    public static byte[] read(DataInputStream in, byte[] buffer) throws IOException {
+        if (buffer.length < HEADER_LENGTH) {
+            buffer = new byte[HEADER_LENGTH];
+        }
+        int first = in.read();
+        if (first < 0) {
+            return null;
+        }
+        buffer[0] = (byte) first;
+        in.readFully(buffer, 1, HEADER_LENGTH - 1);
+        int length = payloadLength(buffer, 0);
+        if (buffer.length < HEADER_LENGTH + length) {
+            byte[] grown = new byte[HEADER_LENGTH + length];
+            System.arraycopy(buffer, 0, grown, 0, HEADER_LENGTH);
+            buffer = grown;
+        }
+        in.readFully(buffer, HEADER_LENGTH, length);
+        return buffer;
+    }
+}
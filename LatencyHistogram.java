@@ -0,0 +1,62 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent latency histogram with power-of-two microsecond buckets.
+ * Recording is a few atomic increments and never allocates; percentiles
+ * are reported as the upper bound of the bucket they fall in.
+ */
+public class LatencyHistogram {
+    // Bucket b holds values in [2^(b-1), 2^b) microseconds; bucket 0 holds sub-microsecond values.
+    private final AtomicLongArray buckets = new AtomicLongArray(65);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalMicros = new LongAdder();
+    private final LongAccumulator maxMicros = new LongAccumulator(Math::max, 0);
+
+    public void record(long nanos) {
+        long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+        buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(micros));
+        count.increment();
+        totalMicros.add(micros);
+        maxMicros.accumulate(micros);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Returns the latency in microseconds below which the given fraction
+     * (0.0 to 1.0) of recorded values fall.
+     */
+    public long percentileMicros(double fraction) {
+        long total = count.sum();
+        if (total == 0) {
+            return 0;
+        }
+        long threshold = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int b = 0; b < buckets.length(); b++) {
+            seen += buckets.get(b);
+            if (seen >= threshold) {
+                return Math.min(b == 0 ? 1 : 1L << b, maxMicros.get());
+            }
+        }
+        return maxMicros.get();
+    }
+
+    public String summary() {
+        long total = count.sum();
+        if (total == 0) {
+            return "n=0";
+        }
+        return "n=" + total
+                + " mean=" + (totalMicros.sum() / total) + "us"
+                + " p50=" + percentileMicros(0.50) + "us"
+                + " p99=" + percentileMicros(0.99) + "us"
+                + " p999=" + percentileMicros(0.999) + "us"
+                + " max=" + maxMicros.get() + "us";
+    }
+}
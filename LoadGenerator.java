@@ -0,0 +1,258 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Opens many simulated users against a chat server, drives a mix of
+ * broadcast and private messages at a fixed total rate, and reports
+ * end-to-end delivery latency percentiles and throughput.
+ *
+ * <pre>
+ *   java LoadGenerator --users=2000 --rate=50 --private-ratio=0.3 --duration=30
+ *   java LoadGenerator --server-mode=nio --users=5000
+ *   java LoadGenerator --ports=7004,7005,7006 --users=3000
+ *   java LoadGenerator --compress=true
+ *   java LoadGenerator --server-mode=nio --server-option=--coalesce-window-ms=1
+ * </pre>
+ * With --server-mode a server is started in this JVM first, configured by
+ * any number of --server-option flags, and the report includes how many
+ * socket writes it took to deliver everything. With --ports
+ * users are spread round-robin over the nodes of a cluster, so most
+ * private messages and every broadcast cross between nodes.
+ *
+ * Every message carries the time it was scheduled to be sent, and each
+ * recipient measures against that on the same clock. Measuring from the
+ * schedule rather than the actual write means a stalled server shows up
+ * as latency instead of quietly lowering the send rate.
+ */
+public class LoadGenerator {
+    private static final String MARKER = "lg:";
+
+    private String host = "localhost";
+    private int port = 7004;
+    private int[] ports;
+    private int users = 1000;
+    private double rate = 20;
+    private double privateRatio = 0.2;
+    private long warmupSeconds = 5;
+    private long durationSeconds = 30;
+    private String serverMode;
+    private final List<String> serverOptions = new ArrayList<>();
+    private boolean compress;
+
+    private final LatencyHistogram broadcastLatency = new LatencyHistogram();
+    private final LatencyHistogram privateLatency = new LatencyHistogram();
+    private final LongAdder broadcastsSent = new LongAdder();
+    private final LongAdder privatesSent = new LongAdder();
+    private final LongAdder sendErrors = new LongAdder();
+    // Only messages scheduled inside [measureStart, measureEnd) are counted.
+    private volatile long measureStartNanos = Long.MAX_VALUE;
+    private volatile long measureEndNanos = Long.MAX_VALUE;
+
+    private final ChatClient.Listener listener = new ChatClient.Listener() {
+        @Override
+        public void onMessage(String message) {
+            received(message, broadcastLatency);
+        }
+
+        @Override
+        public void onPrivateMessage(String senderUsername, String message) {
+            received(message, privateLatency);
+        }
+
+        @Override
+        public void onDisconnected() {
+        }
+    };
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Unrecognised option: " + arg);
+            }
+            String key = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            switch (key) {
+                case "host":
+                    generator.host = value;
+                    break;
+                case "port":
+                    generator.port = Integer.parseInt(value);
+                    break;
+                case "ports":
+                    String[] list = value.split(",");
+                    generator.ports = new int[list.length];
+                    for (int i = 0; i < list.length; i++) {
+                        generator.ports[i] = Integer.parseInt(list[i].trim());
+                    }
+                    break;
+                case "users":
+                    generator.users = Math.max(2, Integer.parseInt(value));
+                    break;
+                case "rate":
+                    generator.rate = Double.parseDouble(value);
+                    break;
+                case "private-ratio":
+                    generator.privateRatio = Double.parseDouble(value);
+                    break;
+                case "warmup":
+                    generator.warmupSeconds = Long.parseLong(value);
+                    break;
+                case "duration":
+                    generator.durationSeconds = Long.parseLong(value);
+                    break;
+                case "compress":
+                    generator.compress = Boolean.parseBoolean(value);
+                    break;
+                case "server-mode":
+                    generator.serverMode = value;
+                    break;
+                case "server-option":
+                    generator.serverOptions.add(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unrecognised option: " + arg);
+            }
+        }
+        generator.run();
+    }
+
+    private void run() throws IOException, InterruptedException {
+        Server server = null;
+        if (serverMode != null) {
+            List<String> options = new ArrayList<>(serverOptions);
+            options.add("--mode=" + serverMode);
+            options.add("--port=" + port);
+            ServerConfig config = ServerConfig.fromArgs(options.toArray(new String[0]));
+            server = new Server(Server.bind(config, users), config);
+            Thread thread = new Thread(server::startServer, "server");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int[] targets = ports != null ? ports : new int[] { port };
+        ExecutorService readers = Server.newVirtualThreadExecutor();
+        List<ChatClient> clients = new ArrayList<>(users);
+        try {
+            long connectStart = System.nanoTime();
+            for (int i = 0; i < users; i++) {
+                ChatClient client = ChatClient.connect(host, targets[i % targets.length], "user" + i, listener, compress);
+                clients.add(client);
+                readers.execute(client);
+                if ((i + 1) % 500 == 0) {
+                    System.out.println("Connected " + (i + 1) + " users...");
+                }
+            }
+            System.out.printf("Connected %d users in %d ms.%n", users,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - connectStart));
+
+            long start = System.nanoTime();
+            measureStartNanos = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+            measureEndNanos = measureStartNanos + TimeUnit.SECONDS.toNanos(durationSeconds);
+            send(clients, start, measureEndNanos);
+            // Let messages already on the wire arrive before reporting.
+            TimeUnit.SECONDS.sleep(2);
+            report(server);
+        } finally {
+            for (ChatClient client : clients) {
+                try {
+                    client.quit();
+                } catch (IOException e) {
+                    // Already gone.
+                }
+            }
+            readers.shutdownNow();
+            if (server != null) {
+                server.closeServerSocket();
+            }
+        }
+    }
+
+    /**
+     * Sends from random users on a fixed schedule until the end time. Each
+     * message is stamped with its scheduled time, not the time it got out.
+     */
+    private void send(List<ChatClient> clients, long start, long end) {
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (long scheduled = start; scheduled < end; scheduled += interval) {
+            long wait = scheduled - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            boolean measured = scheduled >= measureStartNanos;
+            int senderIndex = random.nextInt(clients.size());
+            ChatClient sender = clients.get(senderIndex);
+            try {
+                if (random.nextDouble() < privateRatio) {
+                    int recipientIndex = (senderIndex + 1 + random.nextInt(clients.size() - 1)) % clients.size();
+                    sender.sendPrivate(clients.get(recipientIndex).getUsername(), MARKER + scheduled);
+                    if (measured) {
+                        privatesSent.increment();
+                    }
+                } else {
+                    sender.send(MARKER + scheduled);
+                    if (measured) {
+                        broadcastsSent.increment();
+                    }
+                }
+            } catch (IOException e) {
+                sendErrors.increment();
+            }
+        }
+    }
+
+    private void received(String message, LatencyHistogram latency) {
+        int marker = message.indexOf(MARKER);
+        if (marker < 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        long scheduled;
+        try {
+            scheduled = Long.parseLong(message.substring(marker + MARKER.length()).trim());
+        } catch (NumberFormatException e) {
+            return;
+        }
+        if (scheduled >= measureStartNanos && scheduled < measureEndNanos) {
+            latency.record(now - scheduled);
+        }
+    }
+
+    private void report(Server server) {
+        long broadcasts = broadcastsSent.sum();
+        long privates = privatesSent.sum();
+        // Everyone, the sender included, receives each broadcast.
+        long expected = broadcasts * users + privates;
+        long delivered = broadcastLatency.getCount() + privateLatency.getCount();
+        System.out.printf("Users: %d, rate %.1f/s, private ratio %.2f, measured over %ds%n",
+                users, rate, privateRatio, durationSeconds);
+        System.out.printf("Sent: %d broadcast, %d private (%.1f/s), %d send errors%n",
+                broadcasts, privates, (broadcasts + privates) / (double) durationSeconds, sendErrors.sum());
+        System.out.printf("Delivered: %d of %d broadcast, %d of %d private (%.1f deliveries/s)%n",
+                broadcastLatency.getCount(), broadcasts * users, privateLatency.getCount(), privates,
+                delivered / (double) durationSeconds);
+        if (delivered < expected) {
+            System.out.printf("Missing: %d deliveries%n", expected - delivered);
+        }
+        if (server != null) {
+            long writes = server.getMetrics().getSocketWrites();
+            System.out.printf("Server writes: %d (%.1f/s, %.0f bytes each)%n", writes,
+                    writes / (double) (warmupSeconds + durationSeconds),
+                    server.getMetrics().getBytesOut() / (double) Math.max(1, writes));
+        }
+        if (server != null && server.getMetrics().getCompressedIn() > 0) {
+            System.out.printf("Compressed: %d -> %d bytes (%.1f%%)%n", server.getMetrics().getCompressedIn(),
+                    server.getMetrics().getCompressedOut(),
+                    100.0 * server.getMetrics().getCompressedOut() / server.getMetrics().getCompressedIn());
+        }
+        System.out.println("Broadcast latency: " + broadcastLatency.summary());
+        System.out.println("Private latency: " + privateLatency.summary());
+    }
+}
@@ -0,0 +1,439 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Append-only chat log kept in fixed-size, memory-mapped segment files.
+ *
+ * Appends only enqueue; a single writer thread drains the queue in
+ * batches, copies each batch into the active segment and forces it to
+ * disk once per batch (group commit). Each segment keeps a sparse
+ * in-memory index of every {@value #INDEX_INTERVAL}th record, so replay
+ * can start near any sequence number and stream records straight out of
+ * the mapped files without loading the log onto the heap.
+ *
+ * Record layout, after a 4 byte length prefix:
+ * <pre>
+ *   seq:8  timestamp:8  type:1  senderLength:2  sender  targetLength:2  target  body
+ * </pre>
+ * A zero length marks the end of a segment.
+ *
+ * Only the newest segments up to the retention limit are kept; older ones
+ * are unmapped and deleted as new ones are opened, so history is a
+ * sliding window of bounded disk use.
+ */
+public class MessageJournal implements Runnable, Closeable {
+    private static final int INDEX_INTERVAL = 64;
+    private static final int MAX_BATCH = 256;
+    private static final int FIXED_LENGTH = 8 + 8 + 1 + 2 + 2;
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm").withZone(ZoneId.systemDefault());
+
+    /** One decoded journal record, as handed to replay visitors. */
+    public static final class Record {
+        public final long seq;
+        public final long timestamp;
+        public final byte type;
+        public final String sender;
+        public final String target;
+        public final String body;
+
+        Record(long seq, long timestamp, byte type, String sender, String target, String body) {
+            this.seq = seq;
+            this.timestamp = timestamp;
+            this.type = type;
+            this.sender = sender;
+            this.target = target;
+            this.body = body;
+        }
+
+        /**
+         * Renders the record as a single history line for line clients.
+         */
+        public String toLine() {
+            return "HISTORY #" + seq + " " + describe(timestamp, type, sender, target, body);
+        }
+
+        /** The time and text of a message, as history and search show it. */
+        static String describe(long timestamp, byte type, String sender, String target, String body) {
+            String time = TIME.format(Instant.ofEpochMilli(timestamp));
+            switch (type) {
+                case Frame.ROOM:
+                    return time + " [" + target + "] " + sender + ": " + body;
+                case Frame.PRIVATE:
+                    return time + " " + sender + " -> " + target + " (private): " + body;
+                default:
+                    return time + " " + sender + ": " + body;
+            }
+        }
+    }
+
+    public interface Visitor {
+        /** Returns false to stop the replay. */
+        boolean visit(Record record);
+    }
+
+    private static final class Entry {
+        final long timestamp = System.currentTimeMillis();
+        final byte type;
+        final String sender;
+        final String target;
+        final String body;
+        final byte[] payload;
+        final int payloadOffset;
+        final int payloadLength;
+
+        Entry(ChatMessage message, String target) {
+            this.type = message.getType();
+            this.sender = message.getSenderName();
+            this.target = target;
+            this.body = message.decodedBody();
+            this.payload = message.payloadArray();
+            this.payloadOffset = message.payloadOffset();
+            this.payloadLength = message.payloadLength();
+        }
+    }
+
+    private static final class Segment {
+        final long firstSeq;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        // Byte offsets of records firstSeq, firstSeq + INDEX_INTERVAL, ...
+        volatile int[] index = new int[16];
+        volatile int indexSize;
+        // Everything before this offset is complete and safe for readers.
+        volatile int committedPosition;
+        int position;
+
+        Segment(long firstSeq, FileChannel channel, MappedByteBuffer buffer) {
+            this.firstSeq = firstSeq;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        void indexRecord(long seq, int offset) {
+            if ((seq - firstSeq) % INDEX_INTERVAL != 0) {
+                return;
+            }
+            int[] current = index;
+            if (indexSize == current.length) {
+                current = Arrays.copyOf(current, current.length * 2);
+            }
+            current[indexSize] = offset;
+            index = current;
+            indexSize++;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private final BlockingQueue<Entry> pending = new ArrayBlockingQueue<>(64 * 1024);
+    private final List<Entry> batch = new ArrayList<>(MAX_BATCH);
+    private Segment active;
+    private long nextSeq = 1;
+    // Highest sequence number readers may see.
+    private volatile long committedSeq;
+    private volatile boolean running = true;
+    private Thread writer;
+
+    /**
+     * Opens the journal, keeping at most about maxBytes of segments and
+     * never fewer than two, so a roll still leaves the previous one.
+     */
+    public MessageJournal(Path directory, int segmentSize, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = (int) Math.min(Integer.MAX_VALUE, Math.max(2, maxBytes / segmentSize));
+        Files.createDirectories(directory);
+        recover();
+        if (active == null) {
+            active = openSegment(nextSeq);
+        }
+        trim();
+        committedSeq = nextSeq - 1;
+    }
+
+    public void start() {
+        writer = new Thread(this, "journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues a message for the journal. Never blocks the caller; if the
+     * writer has fallen this far behind the message is not journaled.
+     */
+    public void append(ChatMessage message, String target) {
+        if (!pending.offer(new Entry(message, target))) {
+            System.err.println("Journal queue full, message not recorded.");
+        }
+    }
+
+    public long getLastSeq() {
+        return committedSeq;
+    }
+
+    public long getFirstSeq() {
+        return segments.isEmpty() ? 1 : segments.firstKey();
+    }
+
+    @Override
+    public void run() {
+        while (running || !pending.isEmpty()) {
+            try {
+                Entry first = pending.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                pending.drainTo(batch, MAX_BATCH - 1);
+                int batchStart = active.position;
+                Segment batchSegment = active;
+                for (Entry entry : batch) {
+                    if (active != batchSegment) {
+                        batchSegment = active;
+                        batchStart = 0;
+                    }
+                    write(entry);
+                }
+                active.buffer.force(batchStart, active.position - batchStart);
+                active.committedPosition = active.position;
+                committedSeq = nextSeq - 1;
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Journal write failed: " + e.getMessage());
+                e.printStackTrace();
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void write(Entry entry) throws IOException {
+        byte[] sender = entry.sender.getBytes(StandardCharsets.UTF_8);
+        byte[] target = entry.target != null ? entry.target.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        byte[] body = entry.payload;
+        int bodyOffset = entry.payloadOffset;
+        int bodyLength = entry.payloadLength;
+        if (body == null) {
+            body = entry.body.getBytes(StandardCharsets.UTF_8);
+            bodyOffset = 0;
+            bodyLength = body.length;
+        }
+
+        int length = FIXED_LENGTH + sender.length + target.length + bodyLength;
+        if (4 + length + 4 > segmentSize) {
+            System.err.println("Message too large for journal segment, not recorded.");
+            return;
+        }
+        if (active.position + 4 + length + 4 > segmentSize) {
+            roll();
+        }
+
+        ByteBuffer buffer = active.buffer;
+        int offset = active.position;
+        buffer.position(offset);
+        buffer.putInt(length)
+              .putLong(nextSeq)
+              .putLong(entry.timestamp)
+              .put(entry.type)
+              .putShort((short) sender.length).put(sender)
+              .putShort((short) target.length).put(target)
+              .put(body, bodyOffset, bodyLength);
+        active.indexRecord(nextSeq, offset);
+        active.position = buffer.position();
+        nextSeq++;
+    }
+
+    private void roll() throws IOException {
+        active.buffer.force();
+        active.committedPosition = active.position;
+        committedSeq = nextSeq - 1;
+        active = openSegment(nextSeq);
+        trim();
+    }
+
+    // Drops the oldest segments past the limit. A replay already reading one
+    // keeps its mapping until it finishes; the file is gone from disk.
+    private void trim() {
+        while (segments.size() > maxSegments) {
+            Map.Entry<Long, Segment> oldest = segments.pollFirstEntry();
+            Path path = segmentPath(oldest.getKey());
+            try {
+                oldest.getValue().channel.close();
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                System.err.println("Could not delete journal segment " + path + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private Path segmentPath(long firstSeq) {
+        return directory.resolve(String.format("%020d.log", firstSeq));
+    }
+
+    private Segment openSegment(long firstSeq) throws IOException {
+        Path path = segmentPath(firstSeq);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        Segment segment = new Segment(firstSeq, channel, buffer);
+        segments.put(firstSeq, segment);
+        return segment;
+    }
+
+    /**
+     * Re-opens existing segments, rebuilding their indexes and finding the
+     * end of the log. The log ends at the first empty length prefix, or at
+     * the first record that does not follow on from the one before it,
+     * such as one torn by a crash mid-write. The segment is truncated there
+     * and any later segments are deleted, so appends carry on from the last
+     * good record.
+     */
+    private void recover() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.log")) {
+            for (Path path : stream) {
+                files.add(path);
+            }
+        }
+        Collections.sort(files);
+        boolean truncated = false;
+        for (Path path : files) {
+            long firstSeq = Long.parseLong(path.getFileName().toString().replace(".log", ""));
+            if (active != null && (truncated || firstSeq != nextSeq)) {
+                System.err.println("Deleting journal segment " + path + ", it does not follow on from the log.");
+                Files.delete(path);
+                continue;
+            }
+            Segment segment = openSegment(firstSeq);
+            ByteBuffer buffer = segment.buffer;
+            nextSeq = firstSeq;
+            int position = 0;
+            while (position + 4 <= segmentSize) {
+                int length = buffer.getInt(position);
+                if (length == 0) {
+                    break;
+                }
+                if (!isWhole(buffer, position, length) || buffer.getLong(position + 4) != nextSeq) {
+                    System.err.println("Journal segment " + path + " is damaged at offset " + position + ", truncating it there.");
+                    truncate(segment, position);
+                    truncated = true;
+                    break;
+                }
+                segment.indexRecord(nextSeq, position);
+                position += 4 + length;
+                nextSeq++;
+            }
+            segment.position = position;
+            segment.committedPosition = position;
+            active = segment;
+        }
+    }
+
+    // Whether a record of this length fits where write() could have put it,
+    // with its sender and target inside it.
+    private boolean isWhole(ByteBuffer buffer, int position, int length) {
+        if (length < FIXED_LENGTH || length > segmentSize - position - 8) {
+            return false;
+        }
+        int senderLength = buffer.getShort(position + 4 + 17) & 0xffff;
+        if (FIXED_LENGTH + senderLength > length) {
+            return false;
+        }
+        int targetLength = buffer.getShort(position + 4 + 19 + senderLength) & 0xffff;
+        return FIXED_LENGTH + senderLength + targetLength <= length;
+    }
+
+    // Zeroes the segment from the offset on, so no stale record past the new
+    // end can be mistaken for part of the log later.
+    private void truncate(Segment segment, int position) {
+        byte[] zeros = new byte[8192];
+        for (int offset = position; offset < segmentSize; offset += zeros.length) {
+            segment.buffer.put(offset, zeros, 0, Math.min(zeros.length, segmentSize - offset));
+        }
+        segment.buffer.force();
+    }
+
+    /**
+     * Streams every committed record with a sequence number of at least
+     * fromSeq to the visitor, in order.
+     */
+    public void replay(long fromSeq, Visitor visitor) {
+        long lastSeq = committedSeq;
+        Long startKey = segments.floorKey(fromSeq);
+        Map<Long, Segment> tail = startKey != null ? segments.tailMap(startKey) : segments;
+        for (Segment segment : tail.values()) {
+            int end = segment.committedPosition;
+            ByteBuffer view = segment.buffer.duplicate();
+            int position = seek(segment, fromSeq);
+            while (position < end) {
+                int length = view.getInt(position);
+                long seq = view.getLong(position + 4);
+                if (seq > lastSeq) {
+                    return;
+                }
+                if (seq >= fromSeq && !visitor.visit(decode(view, position, length))) {
+                    return;
+                }
+                position += 4 + length;
+            }
+        }
+    }
+
+    private static int seek(Segment segment, long fromSeq) {
+        int indexSize = segment.indexSize;
+        int[] index = segment.index;
+        if (fromSeq <= segment.firstSeq || indexSize == 0) {
+            return 0;
+        }
+        long slot = Math.min((fromSeq - segment.firstSeq) / INDEX_INTERVAL, indexSize - 1);
+        return index[(int) slot];
+    }
+
+    private static Record decode(ByteBuffer view, int position, int length) {
+        int cursor = position + 4;
+        long seq = view.getLong(cursor);
+        long timestamp = view.getLong(cursor + 8);
+        byte type = view.get(cursor + 16);
+        cursor += 17;
+        int senderLength = view.getShort(cursor) & 0xffff;
+        String sender = string(view, cursor + 2, senderLength);
+        cursor += 2 + senderLength;
+        int targetLength = view.getShort(cursor) & 0xffff;
+        String target = targetLength > 0 ? string(view, cursor + 2, targetLength) : null;
+        cursor += 2 + targetLength;
+        String body = string(view, cursor, position + 4 + length - cursor);
+        return new Record(seq, timestamp, type, sender, target, body);
+    }
+
+    private static String string(ByteBuffer view, int offset, int length) {
+        byte[] bytes = new byte[length];
+        view.get(offset, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        if (writer != null) {
+            try {
+                writer.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (Segment segment : segments.values()) {
+            segment.channel.close();
+        }
+    }
+}
@@ -0,0 +1,225 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Holds private messages for users who are not connected, one file per
+ * recipient. Messages are written through to disk as they arrive, so the
+ * heap only carries a small header per recipient however much is queued.
+ * Each mailbox keeps at most maxMessages (the oldest are evicted first)
+ * and nothing older than maxAge.
+ */
+public class OfflineStore {
+    private static final String SUFFIX = ".offline";
+
+    private static final class Mailbox {
+        final ReentrantLock lock = new ReentrantLock();
+        final Path file;
+        int count;
+        boolean removed;
+
+        Mailbox(Path file) {
+            this.file = file;
+        }
+    }
+
+    private final Path directory;
+    private final int maxMessages;
+    private final long maxAgeMillis;
+    private final int maxRecipients;
+    private final ConcurrentHashMap<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+
+    public OfflineStore(Path directory, int maxMessages, long maxAgeMillis, int maxRecipients) throws IOException {
+        this.directory = directory;
+        this.maxMessages = maxMessages;
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxRecipients = maxRecipients;
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                Mailbox mailbox = new Mailbox(file);
+                mailbox.count = Files.readAllLines(file, StandardCharsets.UTF_8).size();
+                mailboxes.put(decodeName(name.substring(0, name.length() - SUFFIX.length())), mailbox);
+            }
+        }
+    }
+
+    /**
+     * Stores a message for an offline recipient. Returns false if the store
+     * is refusing new recipients or the write failed.
+     */
+    public boolean store(String sender, String recipient, String message) {
+        while (true) {
+            if (!mailboxes.containsKey(recipient) && mailboxes.size() >= maxRecipients) {
+                return false;
+            }
+            Mailbox mailbox = mailboxes.computeIfAbsent(recipient,
+                    name -> new Mailbox(directory.resolve(encodeName(name) + SUFFIX)));
+            mailbox.lock.lock();
+            try {
+                if (mailbox.removed) {
+                    continue;
+                }
+                String line = System.currentTimeMillis() + "\t" + sender + "\t" + message.replace('\n', ' ') + "\n";
+                Files.write(mailbox.file, line.getBytes(StandardCharsets.UTF_8),
+                        StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                mailbox.count++;
+                // Compact lazily so eviction stays amortised O(1) per message.
+                if (mailbox.count > maxMessages * 2) {
+                    List<String> kept = readLive(mailbox);
+                    Files.write(mailbox.file, kept, StandardCharsets.UTF_8);
+                    mailbox.count = kept.size();
+                }
+                return true;
+            } catch (IOException e) {
+                System.err.println("Could not store offline message for " + recipient + ": " + e.getMessage());
+                return false;
+            } finally {
+                mailbox.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Removes and returns everything waiting for the recipient, oldest first,
+     * rendered as PRIVATE lines. Returns an empty string if nothing is queued.
+     */
+    public String drain(String recipient) {
+        Mailbox mailbox = mailboxes.get(recipient);
+        if (mailbox == null) {
+            return "";
+        }
+        mailbox.lock.lock();
+        try {
+            if (mailbox.removed) {
+                return "";
+            }
+            List<String> lines = readLive(mailbox);
+            mailbox.removed = true;
+            mailboxes.remove(recipient, mailbox);
+            Files.deleteIfExists(mailbox.file);
+
+            StringBuilder batch = new StringBuilder();
+            SimpleDateFormat format = new SimpleDateFormat("MMM d HH:mm");
+            for (String line : lines) {
+                // readLive() only passes whole lines.
+                String[] parts = line.split("\t", 3);
+                batch.append("PRIVATE:").append(parts[1]).append(":[sent ")
+                     .append(format.format(new Date(Long.parseLong(parts[0])))).append("] ")
+                     .append(parts[2]).append("\n");
+            }
+            return batch.toString();
+        } catch (IOException e) {
+            System.err.println("Could not read offline messages for " + recipient + ": " + e.getMessage());
+            return "";
+        } finally {
+            mailbox.lock.unlock();
+        }
+    }
+
+    /**
+     * Drops expired messages from every mailbox, and mailboxes left empty.
+     */
+    public void evictExpired() {
+        for (Map.Entry<String, Mailbox> entry : mailboxes.entrySet()) {
+            Mailbox mailbox = entry.getValue();
+            mailbox.lock.lock();
+            try {
+                if (mailbox.removed) {
+                    continue;
+                }
+                List<String> kept = readLive(mailbox);
+                if (kept.isEmpty()) {
+                    mailbox.removed = true;
+                    mailboxes.remove(entry.getKey(), mailbox);
+                    Files.deleteIfExists(mailbox.file);
+                } else if (kept.size() != mailbox.count) {
+                    Files.write(mailbox.file, kept, StandardCharsets.UTF_8);
+                    mailbox.count = kept.size();
+                }
+            } catch (IOException e) {
+                System.err.println("Could not evict offline messages: " + e.getMessage());
+            } finally {
+                mailbox.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Starts a daemon thread that runs {@link #evictExpired()} periodically.
+     */
+    public void startEviction(long intervalMillis) {
+        Thread thread = new Thread(() -> {
+            while (true) {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(intervalMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                evictExpired();
+            }
+        }, "offline-eviction");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Newest maxMessages lines that have not expired; caller holds the lock.
+    // Lines that are not timestamp, sender and message are skipped.
+    private List<String> readLive(Mailbox mailbox) throws IOException {
+        if (!Files.exists(mailbox.file)) {
+            return new ArrayList<>();
+        }
+        List<String> lines = Files.readAllLines(mailbox.file, StandardCharsets.UTF_8);
+        long cutoff = System.currentTimeMillis() - maxAgeMillis;
+        List<String> kept = new ArrayList<>();
+        int malformed = 0;
+        for (int i = Math.max(0, lines.size() - maxMessages); i < lines.size(); i++) {
+            String line = lines.get(i);
+            long timestamp = timestamp(line);
+            if (timestamp < 0) {
+                malformed++;
+            } else if (timestamp >= cutoff) {
+                kept.add(line);
+            }
+        }
+        if (malformed > 0) {
+            System.err.println("Skipped " + malformed + " malformed lines in " + mailbox.file);
+        }
+        return kept;
+    }
+
+    // The line's timestamp, or -1 if it is not a well-formed stored message.
+    private static long timestamp(String line) {
+        String[] parts = line.split("\t", 3);
+        if (parts.length < 3) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(parts[0]);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String encodeName(String username) {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : username.getBytes(StandardCharsets.UTF_8)) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static String decodeName(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
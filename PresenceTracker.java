@@ -0,0 +1,245 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Batches presence changes (joins, leaves and room changes) over a short
+ * window. Each flush broadcasts one aggregated notice and sends the
+ * coordinator a versioned roster delta with only the rows that changed, so
+ * a burst of N joins costs a handful of fan-outs instead of 2N.
+ *
+ * All roster output goes out from the single flusher thread, so the
+ * coordinator sees versions in order. It gets a full snapshot when it
+ * becomes coordinator, when it asks with /roster, and when a delta could
+ * not be queued for it and the next one would leave a gap. In a cluster
+ * the roster also lists users on other nodes, with the node id in place
+ * of their address.
+ */
+public class PresenceTracker {
+    private static final int MAX_NAMES = 10;
+
+    // What the rest of the server is told about a user at the next flush.
+    private enum Change {
+        JOINED,
+        LEFT,
+        DISCONNECTED,
+        // Roster row changed, or the user left and came back within the window.
+        NONE
+    }
+
+    private final Server server;
+    private final long windowMillis;
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "presence");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ReentrantLock lock = new ReentrantLock();
+    private LinkedHashMap<String, Change> pending = new LinkedHashMap<>();
+    private boolean flushScheduled;
+
+    // Only touched on the flusher thread.
+    private long version;
+    private ClientHandler rosterRecipient;
+    private long recipientVersion = -1;
+
+    public PresenceTracker(Server server, long windowMillis) {
+        this.server = server;
+        this.windowMillis = windowMillis;
+    }
+
+    public void joined(String username) {
+        record(username, Change.JOINED);
+    }
+
+    public void left(String username, boolean lostConnection) {
+        record(username, lostConnection ? Change.DISCONNECTED : Change.LEFT);
+    }
+
+    public void updated(String username) {
+        record(username, Change.NONE);
+    }
+
+    /**
+     * Sends the current coordinator a full roster, in order with the deltas.
+     */
+    public void sendSnapshot() {
+        execute(() -> snapshot(server.getCoordinator()));
+    }
+
+    public void shutdown() {
+        flusher.shutdownNow();
+    }
+
+    private void record(String username, Change change) {
+        lock.lock();
+        try {
+            Change previous = pending.get(username);
+            if (previous == null || previous == Change.NONE) {
+                pending.put(username, change);
+            } else if (change == Change.NONE) {
+                // Keep the announcement already pending.
+            } else if ((previous == Change.JOINED) != (change == Change.JOINED)) {
+                // Joined and left (or left and came back) inside one window:
+                // nobody needs telling, but the roster row still changed.
+                pending.put(username, Change.NONE);
+            } else {
+                pending.put(username, change);
+            }
+            if (flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.schedule(this::flush, windowMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // Server is shutting down.
+        }
+    }
+
+    private void execute(Runnable task) {
+        try {
+            flusher.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Server is shutting down.
+        }
+    }
+
+    private void flush() {
+        Map<String, Change> batch;
+        lock.lock();
+        try {
+            batch = pending;
+            pending = new LinkedHashMap<>();
+            flushScheduled = false;
+        } finally {
+            lock.unlock();
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        List<String> joined = new ArrayList<>();
+        List<String> left = new ArrayList<>();
+        List<String> disconnected = new ArrayList<>();
+        for (Map.Entry<String, Change> entry : batch.entrySet()) {
+            switch (entry.getValue()) {
+                case JOINED:
+                    joined.add(entry.getKey());
+                    break;
+                case LEFT:
+                    left.add(entry.getKey());
+                    break;
+                case DISCONNECTED:
+                    disconnected.add(entry.getKey());
+                    break;
+                default:
+                    break;
+            }
+        }
+        announce(joined, "has entered the chat!", "have entered the chat!");
+        announce(left, "has left the chat.", "have left the chat.");
+        announce(disconnected, "has been disconnected due to an error.", "have been disconnected due to an error.");
+
+        version++;
+        ClientHandler coordinator = server.getCoordinator();
+        if (coordinator == null) {
+            return;
+        }
+        if (coordinator != rosterRecipient || recipientVersion != version - 1) {
+            snapshot(coordinator);
+            return;
+        }
+        StringBuilder delta = new StringBuilder("Coordinator Roster Update (version ")
+                .append(version).append(", since ").append(version - 1).append("):");
+        for (String username : batch.keySet()) {
+            ClientHandler clientHandler = server.getClientHandlers().get(username);
+            String node = nodeOf(username);
+            delta.append("\n");
+            if (clientHandler != null) {
+                delta.append("+ ");
+                appendRow(delta, clientHandler);
+            } else if (node != null) {
+                delta.append("+ ");
+                appendRemoteRow(delta, username, node);
+            } else {
+                delta.append("- ").append(username);
+            }
+        }
+        recipientVersion = coordinator.sendMessage(delta.toString()) ? version : -1;
+    }
+
+    private void announce(List<String> usernames, String one, String many) {
+        if (usernames.isEmpty()) {
+            return;
+        }
+        if (usernames.size() == 1) {
+            server.broadcastMessage("SERVER: " + usernames.get(0) + " " + one);
+            return;
+        }
+        StringBuilder names = new StringBuilder("SERVER: ");
+        int listed = usernames.size() > MAX_NAMES ? MAX_NAMES : usernames.size() - 1;
+        for (int i = 0; i < listed; i++) {
+            names.append(i > 0 ? ", " : "").append(usernames.get(i));
+        }
+        if (usernames.size() > MAX_NAMES) {
+            names.append(" and ").append(usernames.size() - MAX_NAMES).append(" others ");
+        } else {
+            names.append(" and ").append(usernames.get(listed)).append(" ");
+        }
+        server.broadcastMessage(names.append(many).toString());
+    }
+
+    private void snapshot(ClientHandler coordinator) {
+        if (coordinator == null) {
+            return;
+        }
+        StringBuilder details = new StringBuilder("Coordinator Online Users (version ")
+                .append(version).append("):\n");
+        details.append("Username\tIP\tPort\tRooms");
+        for (ClientHandler clientHandler : server.getClientHandlers().values()) {
+            details.append("\n");
+            appendRow(details, clientHandler);
+        }
+        if (server.getCluster() != null) {
+            for (String username : server.getCluster().getRemoteUsers()) {
+                String node = nodeOf(username);
+                if (node != null) {
+                    details.append("\n");
+                    appendRemoteRow(details, username, node);
+                }
+            }
+        }
+        rosterRecipient = coordinator;
+        recipientVersion = coordinator.sendMessage(details.toString()) ? version : -1;
+    }
+
+    private String nodeOf(String username) {
+        return server.getCluster() != null ? server.getCluster().nodeOf(username) : null;
+    }
+
+    private static void appendRemoteRow(StringBuilder details, String username, String node) {
+        details.append(username).append("\t").append(node).append("\t-\t-");
+    }
+
+    private static void appendRow(StringBuilder details, ClientHandler clientHandler) {
+        details.append(clientHandler.getClientUsername())
+               .append("\t")
+               .append(clientHandler.getSocket().getInetAddress().getHostAddress())
+               .append("\t")
+               .append(clientHandler.getSocket().getPort())
+               .append("\t");
+        if (clientHandler.getRooms().isEmpty()) {
+            details.append("-");
+        } else {
+            StringJoiner roomNames = new StringJoiner(",");
+            for (Room room : clientHandler.getRooms()) {
+                roomNames.add(room.getName());
+            }
+            details.append(roomNames);
+        }
+    }
+}
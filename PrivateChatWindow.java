@@ -1,19 +1,23 @@
 import javax.swing.*;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.Position;
 import java.awt.*;
 import java.awt.event.*;
-import java.io.BufferedWriter;
-import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 
 public class PrivateChatWindow extends JFrame {
+    private static final String SENDING = " (sending...)";
+
     private JTextArea chatTextArea;
     private JTextField inputField;
     private JButton sendButton;
-    private BufferedWriter bufferedWriter;
+    private ChatClient chatClient;
     private String recipient;
 
-    public PrivateChatWindow(String recipient, BufferedWriter bufferedWriter) {
+    public PrivateChatWindow(String recipient, ChatClient chatClient) {
         this.recipient = recipient;
-        this.bufferedWriter = bufferedWriter;
+        this.chatClient = chatClient;
 
         // Initialize the window
         setTitle("Private Chat with " + recipient);
@@ -60,22 +64,42 @@ public class PrivateChatWindow extends JFrame {
     private void sendMessage() {
         String message = inputField.getText().trim();
         if (!message.isEmpty()) {
-            try {
-                // Update the message format to include the /private command
-                String formattedMessage = "/private " + recipient + " " + message;
-                bufferedWriter.write(formattedMessage);
-                bufferedWriter.newLine();
-                bufferedWriter.flush();
-                // Append message to the chat text area
-                chatTextArea.append("You: " + message + "\n");
-                // Clear the input field
-                inputField.setText("");
-            } catch (IOException ex) {
-                JOptionPane.showMessageDialog(this, "Failed to send message",
-                        "Error", JOptionPane.ERROR_MESSAGE);
-                ex.printStackTrace();
-            }
+            // Queued for the client's writer thread; the UI never waits on the socket
+            CompletableFuture<Void> sent = chatClient.sendAsync("/private " + recipient + " " + message);
+            appendSending(chatTextArea, "You: " + message, sent);
+            // Clear the input field
+            inputField.setText("");
+        }
+    }
+
+    /**
+     * Appends a line marked as still sending, and drops the mark once the
+     * line has gone out, or replaces it if it could not be sent. Call on
+     * the event dispatch thread.
+     */
+    static void appendSending(JTextArea area, String line, CompletableFuture<?> sent) {
+        Document document = area.getDocument();
+        area.append(line);
+        Position markStart;
+        try {
+            // A Position follows later edits to the text before it.
+            markStart = document.createPosition(document.getLength());
+        } catch (BadLocationException e) {
+            throw new IllegalStateException(e);
+        }
+        area.append(SENDING + "\n");
+        sent.whenComplete((ignored, error) -> SwingUtilities.invokeLater(() -> {
+            int offset = markStart.getOffset();
+            area.replaceRange(error == null ? "" : " (not sent: " + rootCause(error).getMessage() + ")",
+                    offset, offset + SENDING.length());
+        }));
+    }
+
+    private static Throwable rootCause(Throwable error) {
+        while (error.getCause() != null) {
+            error = error.getCause();
         }
+        return error;
     }
 }
 
@@ -0,0 +1,33 @@
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A named channel and the clients subscribed to it. Messages sent to a
+ * room are delivered by walking its member set only.
+ */
+public class Room {
+    private final String name;
+    private final int roomId;
+    private final Set<ClientHandler> members = ConcurrentHashMap.newKeySet();
+
+    public Room(String name, int roomId) {
+        this.name = name;
+        this.roomId = roomId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getRoomId() {
+        return roomId;
+    }
+
+    public Set<ClientHandler> getMembers() {
+        return members;
+    }
+
+    public boolean isEmpty() {
+        return members.isEmpty();
+    }
+}
@@ -0,0 +1,401 @@
+import java.io.Closeable;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * In-memory inverted index over the most recent chat messages, for
+ * /search.
+ *
+ * Messages are numbered in arrival order and kept in a ring of fixed
+ * capacity, so the index covers a sliding window of at most the last
+ * {@code capacity} messages and older ones fall out as new ones arrive.
+ * The window also holds at most {@code maxBytes} of message text, so a
+ * run of long messages shortens it instead of growing the heap. Each term
+ * maps to a posting list of message numbers and term counts in two int
+ * arrays, appended in ascending order. Postings for messages that have
+ * left the window are trimmed from the front as the list grows, and
+ * terms left with none are dropped once as many messages have left as
+ * the window holds.
+ *
+ * Adding only enqueues; a single indexer thread takes messages in batches
+ * under the write lock, so senders never wait on the index. A search takes
+ * the read lock, intersects the query's lists starting from the shortest,
+ * and ranks the matches with BM25, newest first among equals. It never
+ * looks at a message that does not contain every term.
+ */
+public class SearchIndex implements Runnable, Closeable {
+    private static final int MAX_BATCH = 256;
+    private static final int MIN_TERM_LENGTH = 2;
+    private static final int MAX_TERM_LENGTH = 32;
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    /** Which messages a search may return, by the history visibility rules. */
+    public interface Visibility {
+        boolean canSee(byte type, String sender, String target);
+    }
+
+    /** One match, rendered as a line for the client. */
+    public static final class Result {
+        public final int id;
+        public final double score;
+        public final String line;
+
+        Result(int id, double score, String line) {
+            this.id = id;
+            this.score = score;
+            this.line = line;
+        }
+    }
+
+    private static final class Pending {
+        final long timestamp = System.currentTimeMillis();
+        final ChatMessage message;
+        final String target;
+
+        Pending(ChatMessage message, String target) {
+            this.message = message;
+            this.target = target;
+        }
+    }
+
+    // Message numbers in ascending order, with the term's count in each.
+    private static final class Postings {
+        int[] ids = new int[2];
+        int[] counts = new int[2];
+        int start;
+        int end;
+
+        void add(int id, int count, int oldest) {
+            trim(oldest);
+            if (end == ids.length) {
+                int live = end - start;
+                if (start > 0 && live <= ids.length / 2) {
+                    System.arraycopy(ids, start, ids, 0, live);
+                    System.arraycopy(counts, start, counts, 0, live);
+                } else {
+                    int[] grownIds = new int[ids.length * 2];
+                    int[] grownCounts = new int[ids.length * 2];
+                    System.arraycopy(ids, start, grownIds, 0, live);
+                    System.arraycopy(counts, start, grownCounts, 0, live);
+                    ids = grownIds;
+                    counts = grownCounts;
+                }
+                start = 0;
+                end = live;
+            }
+            ids[end] = id;
+            counts[end] = count;
+            end++;
+        }
+
+        void trim(int oldest) {
+            while (start < end && ids[start] < oldest) {
+                start++;
+            }
+        }
+
+        // The first position at or after from holding an id of at least target.
+        int seek(int from, int target) {
+            int step = 1;
+            int low = from;
+            int high = from;
+            while (high < end && ids[high] < target) {
+                low = high + 1;
+                high += step;
+                step *= 2;
+            }
+            high = Math.min(high, end);
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (ids[middle] < target) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+    }
+
+    private final int capacity;
+    private final long maxBytes;
+    private final byte[] types;
+    private final String[] senders;
+    private final String[] targets;
+    private final String[] bodies;
+    private final long[] timestamps;
+    private final int[] lengths;
+    private int nextId;
+    // The first message still in the window.
+    private int oldest;
+    private long totalLength;
+    private long totalBytes;
+    private int evictedSinceSweep;
+    private final HashMap<String, Postings> terms = new HashMap<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final BlockingQueue<Pending> pending = new ArrayBlockingQueue<>(64 * 1024);
+    private final List<Pending> batch = new ArrayList<>(MAX_BATCH);
+    private volatile boolean running = true;
+    private Thread indexer;
+
+    public SearchIndex(int capacity, long maxBytes) {
+        this.capacity = capacity;
+        this.maxBytes = maxBytes;
+        this.types = new byte[capacity];
+        this.senders = new String[capacity];
+        this.targets = new String[capacity];
+        this.bodies = new String[capacity];
+        this.timestamps = new long[capacity];
+        this.lengths = new int[capacity];
+    }
+
+    public void start() {
+        indexer = new Thread(this, "search-indexer");
+        indexer.setDaemon(true);
+        indexer.start();
+    }
+
+    /**
+     * Queues a message for indexing. Never blocks the caller; if the
+     * indexer has fallen this far behind the message is not searchable.
+     */
+    public void add(ChatMessage message, String target) {
+        if (!pending.offer(new Pending(message, target))) {
+            System.err.println("Search index queue full, message not indexed.");
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running || !pending.isEmpty()) {
+            try {
+                Pending first = pending.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                pending.drainTo(batch, MAX_BATCH - 1);
+                lock.writeLock().lock();
+                try {
+                    for (Pending message : batch) {
+                        index(message.message.getType(), message.message.getSenderName(), message.target,
+                                message.message.getBody(), message.timestamp);
+                    }
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /** Indexes one message at once; the caller must hold the write lock or be alone. */
+    void index(byte type, String sender, String target, String body, long timestamp) {
+        if (nextId == Integer.MAX_VALUE) {
+            // Out of message numbers: start the window again.
+            while (oldest < nextId) {
+                evictOldest();
+            }
+            terms.clear();
+            nextId = 0;
+            oldest = 0;
+            evictedSinceSweep = 0;
+        }
+        int id = nextId++;
+        int slot = id % capacity;
+        if (id - oldest >= capacity) {
+            evictOldest();
+        }
+        types[slot] = type;
+        senders[slot] = sender;
+        targets[slot] = target;
+        bodies[slot] = body;
+        timestamps[slot] = timestamp;
+
+        Map<String, Integer> counts = new HashMap<>();
+        int length = tokenize(body, term -> counts.merge(term, 1, Integer::sum));
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            terms.computeIfAbsent(entry.getKey(), term -> new Postings()).add(id, entry.getValue(), oldest);
+        }
+        lengths[slot] = length;
+        totalLength += length;
+        totalBytes += bytesOf(body);
+        // The newest message stays even if it is over the budget on its own.
+        while (totalBytes > maxBytes && oldest < id) {
+            evictOldest();
+        }
+        if (evictedSinceSweep >= nextId - oldest) {
+            sweep();
+        }
+    }
+
+    // Takes the oldest message out of the window; its postings go lazily.
+    private void evictOldest() {
+        int slot = oldest % capacity;
+        totalLength -= lengths[slot];
+        totalBytes -= bytesOf(bodies[slot]);
+        senders[slot] = null;
+        targets[slot] = null;
+        bodies[slot] = null;
+        oldest++;
+        evictedSinceSweep++;
+    }
+
+    private static long bytesOf(String body) {
+        return 2L * body.length();
+    }
+
+    // Drops terms whose every message has left the window.
+    private void sweep() {
+        evictedSinceSweep = 0;
+        Iterator<Postings> postings = terms.values().iterator();
+        while (postings.hasNext()) {
+            Postings list = postings.next();
+            list.trim(oldest);
+            if (list.start == list.end) {
+                postings.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns up to limit visible messages containing every term in the
+     * query, best match first.
+     */
+    public List<Result> search(String query, Visibility visibility, int limit) {
+        Set<String> queryTerms = new LinkedHashSet<>();
+        tokenize(query, queryTerms::add);
+        if (queryTerms.isEmpty() || limit <= 0) {
+            return Collections.emptyList();
+        }
+        lock.readLock().lock();
+        try {
+            int live = nextId - oldest;
+            double averageLength = Math.max(1.0, totalLength / (double) Math.max(1, live));
+            Postings[] lists = new Postings[queryTerms.size()];
+            int[] positions = new int[lists.length];
+            double[] weights = new double[lists.length];
+            int n = 0;
+            for (String term : queryTerms) {
+                Postings list = terms.get(term);
+                if (list == null) {
+                    return Collections.emptyList();
+                }
+                lists[n++] = list;
+            }
+            // Walk the shortest list and seek in the others.
+            Integer[] order = new Integer[lists.length];
+            int[] sizes = new int[lists.length];
+            for (int i = 0; i < lists.length; i++) {
+                order[i] = i;
+                positions[i] = lists[i].seek(lists[i].start, oldest);
+                sizes[i] = lists[i].end - positions[i];
+                if (sizes[i] == 0) {
+                    return Collections.emptyList();
+                }
+                weights[i] = Math.log(1 + (live - sizes[i] + 0.5) / (sizes[i] + 0.5));
+            }
+            Arrays.sort(order, Comparator.comparingInt(i -> sizes[i]));
+
+            PriorityQueue<Result> best = new PriorityQueue<>(limit + 1,
+                    Comparator.<Result>comparingDouble(result -> result.score).thenComparingInt(result -> result.id));
+            Postings shortest = lists[order[0]];
+            candidates:
+            for (int p = positions[order[0]]; p < shortest.end; p++) {
+                int id = shortest.ids[p];
+                for (int k = 1; k < order.length; k++) {
+                    int i = order[k];
+                    positions[i] = lists[i].seek(positions[i], id);
+                    if (positions[i] == lists[i].end) {
+                        break candidates;
+                    }
+                    if (lists[i].ids[positions[i]] != id) {
+                        continue candidates;
+                    }
+                }
+                int slot = id % capacity;
+                if (!visibility.canSee(types[slot], senders[slot], targets[slot])) {
+                    continue;
+                }
+                double norm = K1 * (1 - B + B * lengths[slot] / averageLength);
+                double score = 0;
+                for (int i = 0; i < lists.length; i++) {
+                    int count = i == order[0] ? shortest.counts[p] : lists[i].counts[positions[i]];
+                    score += weights[i] * count * (K1 + 1) / (count + norm);
+                }
+                if (best.size() < limit || score > best.peek().score
+                        || (score == best.peek().score && id > best.peek().id)) {
+                    best.add(new Result(id, score, null));
+                    if (best.size() > limit) {
+                        best.poll();
+                    }
+                }
+            }
+
+            Result[] ranked = new Result[best.size()];
+            for (int i = ranked.length - 1; i >= 0; i--) {
+                Result result = best.poll();
+                int slot = result.id % capacity;
+                ranked[i] = new Result(result.id, result.score, "SEARCH #" + result.id + " "
+                        + MessageJournal.Record.describe(timestamps[slot], types[slot], senders[slot], targets[slot], bodies[slot]));
+            }
+            return Arrays.asList(ranked);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Splits text into lower-case runs of letters and digits, skipping
+     * ones too short or too long to be worth indexing, and returns how
+     * many there were.
+     */
+    static int tokenize(String text, Consumer<String> terms) {
+        int count = 0;
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            while (i < length && !Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            int start = i;
+            while (i < length && Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            int termLength = i - start;
+            if (termLength >= MIN_TERM_LENGTH && termLength <= MAX_TERM_LENGTH) {
+                terms.accept(text.substring(start, i).toLowerCase(Locale.ROOT));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** Messages currently searchable. */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return nextId - oldest;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        if (indexer != null) {
+            try {
+                indexer.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
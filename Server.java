@@ -1,157 +1,1055 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class Server {
+    private static final int ACCEPT_BACKLOG = 50;
+    private static final int SEARCH_RESULTS = 10;
+
     private ServerSocket serverSocket;
-    private boolean isFirstClient = true;
-    private ClientHandler coordinator = null;
+    // The sockets the acceptor threads take connections from; serverSocket is the first.
+    private final List<ServerSocket> acceptorSockets = new CopyOnWriteArrayList<>();
+    private final ServerConfig config;
+    private EventLoop[] eventLoops;
+    // Changed only by compare-and-set in electCoordinator(); there is no registry lock.
+    private final AtomicReference<ClientHandler> coordinator = new AtomicReference<>();
+    private ExecutorService handlerExecutor;
+    private TimingWheel<ClientHandler> heartbeats;
+    // Wakes non-blocking clients whose input is held by a rate limit.
+    private TimingWheel<ClientHandler> heldInput;
+    // Ends sessions whose connection stays lost past the grace period.
+    private TimingWheel<ClientSession> sessionExpiry;
+    // Closes blocking connections that have not finished their handshake in time.
+    private TimingWheel<ClientHandler> handshakeTimeouts;
+    private final ConcurrentHashMap<String, ClientSession> sessions = new ConcurrentHashMap<>();
+    private MessageJournal journal;
+    private SearchIndex searchIndex;
+    private OfflineStore offlineStore;
+    // Runs every offline store and drain, one at a time and off the callers'
+    // threads, which may be event loops.
+    private ExecutorService offlineExecutor;
+    // Scans the journal for history requests, so they never hold up an event loop.
+    private ExecutorService historyExecutor;
+    // Users whose stored messages are not yet delivered; anything sent to
+    // them meanwhile queues behind the drain so it arrives after them.
+    private final Set<String> pendingDrains = ConcurrentHashMap.newKeySet();
+    private FileRelay fileRelay;
+    private final ServerMetrics metrics = new ServerMetrics();
+    private ServerSocket adminSocket;
+    private final PresenceTracker presence;
+    private ClusterNode cluster;
     private final ConcurrentHashMap<String, ClientHandler> clientHandlers = new ConcurrentHashMap<>();
-    private Set<String> usedUsernames = new HashSet<>();
+    // Binary clients address each other by id rather than username.
+    private final ConcurrentHashMap<Integer, ClientHandler> clientHandlersById = new ConcurrentHashMap<>();
+    private final AtomicInteger nextClientId = new AtomicInteger();
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Room> roomsById = new ConcurrentHashMap<>();
+    private final AtomicInteger nextRoomId = new AtomicInteger();
 
     public Server(ServerSocket serverSocket) {
+        this(serverSocket, new ServerConfig());
+    }
+
+    public Server(ServerSocket serverSocket, ServerConfig config) {
         this.serverSocket = serverSocket;
+        this.config = config;
+        this.presence = new PresenceTracker(this, config.getPresenceWindowMillis());
     }
 
     public void startServer() {
         try {
-            System.out.println("Server is now Online.");
-            new Thread(this::checkClientStatus).start();
+            System.out.println("Server is now Online (" + config.getMode() + " mode).");
+            startHeartbeats();
+            startHeldInputTimer();
+            startSessionExpiry();
+            startHandshakeTimer();
+            openJournal();
+            openSearchIndex();
+            openOfflineStore();
+            openFileRelay();
+            openAdminEndpoint();
+            openCluster();
 
-            while (!serverSocket.isClosed()) {
-                Socket socket = serverSocket.accept();
-                ClientHandler clientHandler = new ClientHandler(socket, this);
-                Thread thread = new Thread(clientHandler);
+            if (config.getMode() == ServerConfig.Mode.NIO) {
+                startEventLoops();
+            } else if (config.getMode() == ServerConfig.Mode.VIRTUAL) {
+                handlerExecutor = newVirtualThreadExecutor();
+            }
+            openAcceptors();
+            for (int i = 1; i < acceptorSockets.size(); i++) {
+                int acceptor = i;
+                Thread thread = new Thread(() -> accept(acceptor), "acceptor-" + acceptor);
+                thread.setDaemon(true);
                 thread.start();
             }
+            accept(0);
         } catch (IOException e) {
             System.err.println("Server exception: " + e.getMessage());
             e.printStackTrace();
         }
     }
 
-    public synchronized void addClient(String clientUsername, ClientHandler clientHandler) {
-        usedUsernames.add(clientUsername);
-        System.out.println("Client joined: " + clientUsername);
-        clientHandlers.put(clientUsername, clientHandler);
+    /**
+     * With several acceptors, binds one more socket per extra acceptor to
+     * the same port with SO_REUSEPORT, so the kernel spreads new
+     * connections over them and a burst of logins is not serialised on one
+     * accept queue. Where the option is unavailable the acceptors share
+     * the one socket instead.
+     */
+    private void openAcceptors() {
+        acceptorSockets.add(serverSocket);
+        boolean reusePort = isReusePort(serverSocket);
+        for (int i = 1; i < config.getAcceptors(); i++) {
+            ServerSocket socket = serverSocket;
+            if (reusePort) {
+                try {
+                    socket = bind(config, serverSocket.getLocalPort(), ACCEPT_BACKLOG);
+                } catch (IOException e) {
+                    System.err.println("Could not bind another acceptor, sharing one socket: " + e.getMessage());
+                    reusePort = false;
+                }
+            }
+            acceptorSockets.add(socket);
+        }
+    }
 
-        if (isFirstClient || coordinator == null) {
-            isFirstClient = false;
-            coordinator = clientHandler;
-            coordinator.setCoordinator(true);
-            notifyCoordinator(coordinator.getSocket());
-        } else {
-            notifyClient(clientHandler.getSocket(), coordinator.getClientUsername());
+    private static boolean isReusePort(ServerSocket socket) {
+        try {
+            return socket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)
+                    && socket.getOption(StandardSocketOptions.SO_REUSEPORT);
+        } catch (IOException | UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    private void accept(int acceptor) {
+        ServerSocket listener = acceptorSockets.get(acceptor);
+        try {
+            if (config.getMode() == ServerConfig.Mode.NIO) {
+                acceptNonBlocking(listener, shard(acceptor));
+            } else {
+                acceptBlocking(listener);
+            }
+        } catch (IOException e) {
+            if (!listener.isClosed()) {
+                System.err.println("Acceptor " + acceptor + " failed: " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Hands each connection straight to its own thread, which does the
+     * handshake, so one slow client never holds up the next accept.
+     */
+    private void acceptBlocking(ServerSocket listener) throws IOException {
+        while (!listener.isClosed()) {
+            Socket socket = listener.accept();
+            ClientHandler clientHandler = new ClientHandler(socket, this);
+            if (handlerExecutor != null) {
+                handlerExecutor.execute(clientHandler);
+            } else {
+                Thread thread = new Thread(clientHandler);
+                thread.start();
+            }
+        }
+    }
+
+    /**
+     * Looked up reflectively so the server still builds and runs on JVMs
+     * older than 21, where it falls back to a cached platform thread pool.
+     */
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("Virtual threads are not available on this JVM, using platform threads.");
+            return Executors.newCachedThreadPool();
+        }
+    }
+
+    private void startEventLoops() throws IOException {
+        eventLoops = new EventLoop[config.getEventLoops()];
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new EventLoop();
+            eventLoops[i].start("event-loop-" + i);
+        }
+    }
+
+    // The event loops an acceptor deals connections out to; shards only overlap if loops are fewer.
+    private EventLoop[] shard(int acceptor) {
+        int acceptors = acceptorSockets.size();
+        if (eventLoops.length <= acceptors) {
+            return new EventLoop[] { eventLoops[acceptor % eventLoops.length] };
+        }
+        List<EventLoop> shard = new ArrayList<>();
+        for (int i = acceptor; i < eventLoops.length; i += acceptors) {
+            shard.add(eventLoops[i]);
+        }
+        return shard.toArray(new EventLoop[0]);
+    }
+
+    /**
+     * Accepts connections on the server channel and spreads them round-robin
+     * over a fixed set of selector loops, so no connection owns a thread.
+     * A connection that has not sent its username by the handshake timeout
+     * is closed by its loop.
+     */
+    private void acceptNonBlocking(ServerSocket listener, EventLoop[] shard) throws IOException {
+        ServerSocketChannel serverChannel = listener.getChannel();
+        if (serverChannel == null) {
+            throw new IOException("NIO mode requires a ServerSocket opened from a ServerSocketChannel");
         }
+        long handshakeTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getHandshakeTimeoutMillis());
+        int next = 0;
+        while (!listener.isClosed()) {
+            SocketChannel channel = serverChannel.accept();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            EventLoop eventLoop = shard[next];
+            next = (next + 1) % shard.length;
+            ClientHandler clientHandler = new ClientHandler(channel, this, eventLoop);
+            eventLoop.register(clientHandler);
+            if (handshakeTimeoutNanos > 0) {
+                eventLoop.schedule(clientHandler::expireHandshake, handshakeTimeoutNanos);
+            }
+        }
+    }
 
-        sendOnlineUsersToCoordinator();
+    public void addClient(String clientUsername, ClientHandler clientHandler) {
+        if (offlineStore != null) {
+            pendingDrains.add(clientUsername);
+        }
+        clientHandlers.put(clientUsername, clientHandler);
+        clientHandlersById.put(clientHandler.getClientId(), clientHandler);
+        ClientHandler elected = electCoordinator();
+        System.out.println("Client joined: " + clientUsername);
+        if (heartbeats != null) {
+            heartbeats.schedule(clientHandler, config.getHeartbeatIntervalMillis());
+        }
+        if (cluster != null) {
+            cluster.userJoined(clientUsername);
+            if (elected != null) {
+                cluster.coordinatorChanged(elected);
+            }
+        }
+
+        ClientHandler currentCoordinator = getCoordinator();
+        if (elected != null && elected != clientHandler && elected == currentCoordinator) {
+            // A racing leave handed the role to someone else.
+            notifyCoordinator(elected);
+        }
+        if (currentCoordinator == clientHandler) {
+            notifyCoordinator(clientHandler);
+        } else if (getCoordinatorName() != null) {
+            notifyClient(clientHandler, getCoordinatorName());
+        }
+        presence.joined(clientUsername);
+        if (elected != null && elected == currentCoordinator) {
+            presence.sendSnapshot();
+        }
+        deliverOfflineMessages(clientHandler);
+        deliverFileOffers(clientHandler);
     }
 
-    private void checkClientStatus() {
-        while (!serverSocket.isClosed()) {
+    /**
+     * Hands a returning user everything stored for them while offline, as
+     * one write rather than one per message. Runs after any store already
+     * queued, and a store queued later delivers directly since the user is
+     * registered by then.
+     */
+    private void deliverOfflineMessages(ClientHandler clientHandler) {
+        if (offlineStore == null) {
+            return;
+        }
+        String username = clientHandler.getClientUsername();
+        offlineExecutor.execute(() -> {
             try {
-                for (ClientHandler clientHandler : clientHandlers.values()) {
-                    if (!clientHandler.isAlive()) {
-                        removeClient(clientHandler.getClientUsername());
-                    }
+                // Leave them stored if the user has already gone again.
+                if (clientHandlers.get(username) != clientHandler) {
+                    return;
                 }
-                Thread.sleep(20000);
-            } catch (InterruptedException e) {
-                System.err.println("Status check interrupted: " + e.getMessage());
-                e.printStackTrace();
+                String backlog = offlineStore.drain(username);
+                if (!backlog.isEmpty()) {
+                    clientHandler.sendBatch(backlog);
+                }
+            } finally {
+                pendingDrains.remove(username);
             }
+        });
+    }
+
+    private void openJournal() {
+        if (config.getJournalDirectory() == null) {
+            return;
+        }
+        try {
+            journal = new MessageJournal(Paths.get(config.getJournalDirectory()), config.getJournalSegmentBytes(),
+                    config.getJournalMaxBytes());
+            journal.start();
+            historyExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "history");
+                thread.setDaemon(true);
+                return thread;
+            });
+            System.out.println("Journal opened at sequence " + journal.getLastSeq() + ".");
+        } catch (IOException e) {
+            System.err.println("Could not open message journal, history is disabled: " + e.getMessage());
+            e.printStackTrace();
         }
     }
-    public void sendPrivateMessage(String senderUsername, String recipientUsername, String message) {
-        ClientHandler recipientHandler = clientHandlers.get(recipientUsername);
-        if (recipientHandler != null) {
+
+    private void openSearchIndex() {
+        if (config.getSearchRetention() <= 0) {
+            return;
+        }
+        searchIndex = new SearchIndex(config.getSearchRetention(), config.getSearchMaxBytes());
+        searchIndex.start();
+    }
+
+    private void openOfflineStore() {
+        if (config.getOfflineDirectory() == null) {
+            return;
+        }
+        try {
+            offlineStore = new OfflineStore(Paths.get(config.getOfflineDirectory()), config.getOfflineMaxMessages(),
+                    config.getOfflineMaxAgeMillis(), config.getOfflineMaxRecipients());
+            offlineStore.startEviction(TimeUnit.HOURS.toMillis(1));
+            offlineExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "offline-store");
+                thread.setDaemon(true);
+                return thread;
+            });
+        } catch (IOException e) {
+            System.err.println("Could not open offline store, offline messages will be dropped: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    private void openFileRelay() {
+        if (config.getFileSpoolDirectory() == null) {
+            return;
+        }
+        try {
+            fileRelay = new FileRelay(Paths.get(config.getFileSpoolDirectory()), config.getTransferPort(),
+                    config.getTransferMaxBytes(), config.getTransferMaxAgeMillis(), config.getTransferSpoolMaxBytes(),
+                    config.getTransferMaxPerSender(), new FileRelay.Listener() {
+                        @Override
+                        public void uploaded(FileRelay.Transfer transfer) {
+                            fileUploaded(transfer);
+                        }
+
+                        @Override
+                        public void downloaded(FileRelay.Transfer transfer) {
+                            fileDownloaded(transfer);
+                        }
+                    });
+            fileRelay.start();
+            System.out.println("File relay listening on port " + fileRelay.getPort() + ".");
+        } catch (IOException e) {
+            System.err.println("Could not open file relay, /send is disabled: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Starts a transfer for /send and tells the sender where to upload the
+     * file, or why it cannot. The bytes never pass through the chat
+     * connection; see {@link FileRelay}.
+     */
+    public void sendFile(ClientHandler sender, String recipientUsername, long size, String name) {
+        FileRelay.Transfer transfer = null;
+        String refusal;
+        if (fileRelay == null) {
+            refusal = "File transfer is not enabled on this server.";
+        } else if (recipientUsername.equals(sender.getClientUsername())) {
+            refusal = "You cannot send a file to yourself.";
+        } else if (!clientHandlers.containsKey(recipientUsername)) {
+            refusal = recipientUsername + " is not online.";
+        } else {
             try {
-                BufferedWriter out = new BufferedWriter(new OutputStreamWriter(recipientHandler.getSocket().getOutputStream()));
-                out.write("PRIVATE:" + senderUsername + ":" + message + "\n");
-                out.flush();
+                transfer = fileRelay.open(sender.getClientUsername(), recipientUsername, name, size);
+                refusal = null;
+            } catch (IllegalArgumentException e) {
+                refusal = e.getMessage();
             } catch (IOException e) {
-                System.err.println("Error sending private message: " + e.getMessage());
-                e.printStackTrace();
+                System.err.println("Could not spool a file for " + recipientUsername + ": " + e.getMessage());
+                refusal = "The server could not store the file.";
             }
         }
+        if (transfer == null) {
+            sender.sendBatch("SERVER: " + refusal + "\n" + FileRelay.REFUSED + " " + recipientUsername + " " + name + "\n");
+        } else {
+            sender.sendMessage(FileRelay.UPLOAD + " " + transfer.getId() + " " + fileRelay.getPort() + " "
+                    + recipientUsername + " " + size + " " + name);
+        }
     }
 
+    private void fileUploaded(FileRelay.Transfer transfer) {
+        ClientHandler recipient = clientHandlers.get(transfer.getRecipient());
+        ClientHandler sender = clientHandlers.get(transfer.getSender());
+        if (recipient != null) {
+            recipient.sendBatch(describeOffer(transfer));
+        }
+        if (sender != null) {
+            sender.sendMessage("SERVER: " + transfer.getName() + " is uploaded; " + transfer.getRecipient()
+                    + (recipient != null ? " has been offered it." : " will be offered it when they return."));
+        }
+    }
+
+    private void fileDownloaded(FileRelay.Transfer transfer) {
+        ClientHandler sender = clientHandlers.get(transfer.getSender());
+        if (sender != null) {
+            sender.sendMessage("SERVER: " + transfer.getRecipient() + " has received " + transfer.getName() + ".");
+        }
+    }
+
+    // Files finished uploading while the user was away and not yet fetched.
+    private void deliverFileOffers(ClientHandler clientHandler) {
+        if (fileRelay == null) {
+            return;
+        }
+        for (FileRelay.Transfer transfer : fileRelay.transfersOf(clientHandler.getClientUsername())) {
+            if (transfer.getRecipient().equals(clientHandler.getClientUsername()) && transfer.isUploaded()
+                    && transfer.getDelivered() < transfer.getSize()) {
+                clientHandler.sendBatch(describeOffer(transfer));
+            }
+        }
+    }
+
+    private String describeOffer(FileRelay.Transfer transfer) {
+        return "SERVER: " + transfer.getSender() + " is sending you " + transfer.getName() + " ("
+                + transfer.getSize() + " bytes).\n" + FileRelay.OFFER + " " + transfer.getId() + " " + fileRelay.getPort()
+                + " " + transfer.getSender() + " " + transfer.getSize() + " " + transfer.getName() + "\n";
+    }
 
-    private void notifyCoordinator(Socket socket) {
+    /** Answers /transfers with the progress of each of the user's transfers. */
+    public void describeTransfers(ClientHandler clientHandler) {
+        if (fileRelay == null) {
+            clientHandler.sendMessage("SERVER: File transfer is not enabled on this server.");
+            return;
+        }
+        String username = clientHandler.getClientUsername();
+        StringBuilder lines = new StringBuilder();
+        for (FileRelay.Transfer transfer : fileRelay.transfersOf(username)) {
+            lines.append("SERVER: ").append(transfer.getName())
+                    .append(transfer.getSender().equals(username) ? " to " + transfer.getRecipient() : " from " + transfer.getSender())
+                    .append(": ").append(percent(transfer.getReceived(), transfer.getSize())).append("% uploaded, ")
+                    .append(percent(transfer.getDelivered(), transfer.getSize())).append("% received\n");
+        }
+        if (lines.length() == 0) {
+            clientHandler.sendMessage("SERVER: You have no file transfers.");
+        } else {
+            clientHandler.sendBatch(lines.toString());
+        }
+    }
+
+    private static long percent(long part, long whole) {
+        return whole == 0 ? 100 : part * 100 / whole;
+    }
+
+    /**
+     * Serves the metrics report on a loopback-only port: each connection
+     * gets one report and is closed, so `nc localhost PORT` is enough.
+     */
+    private void openAdminEndpoint() {
+        if (config.getAdminPort() <= 0) {
+            return;
+        }
         try {
-            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-            out.write("You are now the coordinator.\n");
-            out.flush();
+            adminSocket = new ServerSocket(config.getAdminPort(), 16, InetAddress.getLoopbackAddress());
         } catch (IOException e) {
-            System.err.println("Error notifying coordinator: " + e.getMessage());
+            System.err.println("Could not open admin port " + config.getAdminPort() + ": " + e.getMessage());
             e.printStackTrace();
+            return;
         }
+        Thread thread = new Thread(() -> {
+            while (!adminSocket.isClosed()) {
+                try (Socket socket = adminSocket.accept()) {
+                    OutputStream out = socket.getOutputStream();
+                    out.write((getMetricsReport() + "\n").getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                } catch (IOException e) {
+                    if (!adminSocket.isClosed()) {
+                        System.err.println("Admin endpoint error: " + e.getMessage());
+                    }
+                }
+            }
+        }, "admin");
+        thread.setDaemon(true);
+        thread.start();
+        System.out.println("Admin endpoint listening on localhost:" + adminSocket.getLocalPort() + ".");
     }
 
-    private void notifyClient(Socket socket, String coordinatorUsername) {
+    private void openCluster() {
+        if (!config.isClustered()) {
+            return;
+        }
+        cluster = new ClusterNode(this, config.getNodeId(), config.getClusterPort(), config.getClusterBind(),
+                config.getClusterSecret(), config.getPeers());
         try {
-            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-            out.write("The current coordinator is " + coordinatorUsername + "\n");
-            out.flush();
+            cluster.start();
         } catch (IOException e) {
-            System.err.println("Error notifying client: " + e.getMessage());
+            System.err.println("Could not open cluster port " + config.getClusterPort() + ": " + e.getMessage());
             e.printStackTrace();
         }
     }
 
-    public synchronized void removeClient(String clientUsername) {
-        clientHandlers.remove(clientUsername);
-        usedUsernames.remove(clientUsername);
-        System.out.println("Client disconnected: " + clientUsername);
-        if (coordinator != null && clientUsername.equals(coordinator.getClientUsername())) {
-            assignNewCoordinator();
+    public String getMetricsReport() {
+        return metrics.report(clientHandlers.values());
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    private void startHeartbeats() {
+        if (config.getHeartbeatIntervalMillis() <= 0) {
+            return;
+        }
+        heartbeats = new TimingWheel<>(100, 512, this::checkHeartbeat);
+        Thread thread = new Thread(heartbeats, "heartbeats");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void startHeldInputTimer() {
+        if (config.getMode() != ServerConfig.Mode.NIO || !config.hasRateLimits()
+                || config.getRateLimitAction() != ServerConfig.RateLimitAction.DELAY) {
+            return;
+        }
+        heldInput = new TimingWheel<>(10, 256, ClientHandler::resumeHeldInput);
+        Thread thread = new Thread(heldInput, "held-input");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void startSessionExpiry() {
+        if (config.getSessionGraceMillis() <= 0) {
+            return;
         }
+        sessionExpiry = new TimingWheel<>(100, 512, this::expireSession);
+        Thread thread = new Thread(sessionExpiry, "session-expiry");
+        thread.setDaemon(true);
+        thread.start();
     }
 
-    private void assignNewCoordinator() {
-        if (!clientHandlers.isEmpty()) {
-            String newCoordinatorUsername = clientHandlers.keySet().iterator().next();
-            coordinator = clientHandlers.get(newCoordinatorUsername);
-            coordinator.setCoordinator(true);
-            notifyCoordinator(coordinator.getSocket());
-            System.out.println("New coordinator assigned: " + newCoordinatorUsername);
-            sendOnlineUsersToCoordinator();
+    private void startHandshakeTimer() {
+        if (config.getMode() == ServerConfig.Mode.NIO || config.getHandshakeTimeoutMillis() <= 0) {
+            return;
+        }
+        handshakeTimeouts = new TimingWheel<>(100, 256, ClientHandler::expireHandshake);
+        Thread thread = new Thread(handshakeTimeouts, "handshake-timeouts");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Blocking mode: closes the connection if it has not sent its username
+     * by the handshake timeout. A deadline for the whole handshake, where a
+     * socket read timeout would restart with every byte.
+     */
+    void scheduleHandshakeTimeout(ClientHandler clientHandler) {
+        if (handshakeTimeouts != null) {
+            handshakeTimeouts.schedule(clientHandler, config.getHandshakeTimeoutMillis());
+        }
+    }
+
+    /** Gives a line client a resumable session, or returns null if they are turned off. */
+    ClientSession openSession(ClientHandler clientHandler) {
+        if (sessionExpiry == null) {
+            return null;
+        }
+        ClientSession session = new ClientSession(clientHandler.getClientUsername(), clientHandler,
+                config.getSessionBufferBytes());
+        sessions.put(session.getToken(), session);
+        return session;
+    }
+
+    /**
+     * Keeps a client that lost its connection registered for the grace
+     * period, so nobody sees it leave, and returns true. Returns false if
+     * sessions are turned off and the client should be removed as usual.
+     */
+    boolean suspendSession(ClientSession session) {
+        if (sessionExpiry == null || sessions.get(session.getToken()) != session) {
+            return false;
+        }
+        session.suspend(System.nanoTime());
+        sessionExpiry.schedule(session, config.getSessionGraceMillis());
+        System.out.println("Client suspended: " + session.getUsername());
+        return true;
+    }
+
+    /**
+     * Moves a suspended session, or one whose old connection has not yet
+     * noticed it is dead, onto a new connection. The new connection is sent
+     * the lines the client missed and then takes the old one's place in the
+     * registry, its rooms and the coordinator role, with no presence change.
+     * Returns false if the session is unknown, belongs to another user, or
+     * no longer holds everything the client missed; the session is then
+     * ended and the client joins afresh.
+     */
+    boolean resumeSession(ClientHandler clientHandler, String token, long line) {
+        ClientSession session = sessions.get(token);
+        if (session == null || !session.getUsername().equals(clientHandler.getClientUsername())) {
+            return false;
+        }
+        ClientHandler previous;
+        synchronized (session) {
+            previous = session.getHandler();
+            if (sessions.get(token) != session || !isRegistered(previous)) {
+                return false;
+            }
+        }
+        // Not with the session locked: the old connection's thread logs under it.
+        if (!previous.supersede()) {
+            System.err.println("Old connection of " + session.getUsername() + " did not stop in time, not resuming.");
+            sessions.remove(token, session);
+            removeClient(session.getUsername(), true);
+            return false;
+        }
+        synchronized (session) {
+            if (sessions.get(token) != session || session.getHandler() != previous) {
+                // Another connection resumed it meanwhile.
+                return false;
+            }
+            List<ByteBuffer> unseen = session.unseenAfter(line);
+            if (unseen != null) {
+                clientHandler.startSession(session, true);
+                clientHandler.enqueue(concatenate(unseen));
+                session.attach(clientHandler);
+            } else {
+                sessions.remove(token);
+            }
+        }
+        if (session.getHandler() != clientHandler) {
+            removeClient(session.getUsername(), true);
+            return false;
+        }
+        clientHandler.takeOver(previous);
+        clientHandlers.put(session.getUsername(), clientHandler);
+        clientHandlersById.remove(previous.getClientId());
+        clientHandlersById.put(clientHandler.getClientId(), clientHandler);
+        coordinator.compareAndSet(previous, clientHandler);
+        if (heartbeats != null) {
+            heartbeats.schedule(clientHandler, config.getHeartbeatIntervalMillis());
+        }
+        metrics.sessionResumed();
+        System.out.println("Client resumed: " + session.getUsername());
+        return true;
+    }
+
+    // One buffer, so a long replay cannot overflow the new connection's queue.
+    private static ByteBuffer concatenate(List<ByteBuffer> buffers) {
+        int length = 0;
+        for (ByteBuffer buffer : buffers) {
+            length += buffer.remaining();
+        }
+        ByteBuffer joined = ByteBuffer.allocate(length);
+        for (ByteBuffer buffer : buffers) {
+            joined.put(buffer.duplicate());
+        }
+        return joined.flip();
+    }
+
+    /**
+     * Runs when a suspended session's grace period may be up, and removes
+     * the client if it has not come back.
+     */
+    private void expireSession(ClientSession session) {
+        synchronized (session) {
+            long suspended = session.suspendedFor(System.nanoTime());
+            if (suspended < 0 || sessions.get(session.getToken()) != session) {
+                return;
+            }
+            long remaining = config.getSessionGraceMillis() - TimeUnit.NANOSECONDS.toMillis(suspended);
+            if (remaining > 0) {
+                sessionExpiry.schedule(session, remaining);
+                return;
+            }
+            sessions.remove(session.getToken());
+        }
+        metrics.sessionExpired();
+        if (isRegistered(session.getHandler())) {
+            removeClient(session.getUsername(), true);
+        }
+    }
+
+    /**
+     * Resumes reading from a non-blocking client once its rate limit allows
+     * the message it was held on. Blocking clients just sleep instead.
+     */
+    void resumeInputLater(ClientHandler clientHandler, long delayNanos) {
+        heldInput.schedule(clientHandler, TimeUnit.NANOSECONDS.toMillis(delayNanos + 999_999));
+    }
+
+    /**
+     * Runs when a client's heartbeat deadline comes up. Inbound traffic only
+     * stamps the handler, so the deadline is re-derived here from the last
+     * activity: a quiet client gets a PING, and one that stays silent past
+     * the idle timeout is treated as a dead peer.
+     */
+    private void checkHeartbeat(ClientHandler clientHandler) {
+        if (clientHandler.isSuspended()) {
+            // The session's own grace period decides when it goes.
+            return;
+        }
+        if (!clientHandler.isAlive()) {
+            if (clientHandlers.get(clientHandler.getClientUsername()) == clientHandler) {
+                removeClient(clientHandler.getClientUsername(), true);
+            }
+            return;
+        }
+        long interval = config.getHeartbeatIntervalMillis();
+        long timeout = config.getIdleTimeoutMillis();
+        long idle = clientHandler.getIdleMillis();
+        if (idle >= timeout) {
+            System.out.println("Client timed out: " + clientHandler.getClientUsername());
+            clientHandler.disconnectIdle();
+        } else if (idle >= interval) {
+            clientHandler.sendPing();
+            heartbeats.schedule(clientHandler, timeout - idle);
         } else {
-            coordinator = null;
-            isFirstClient = true;
+            heartbeats.schedule(clientHandler, interval - idle);
         }
     }
 
-    private void sendOnlineUsersToCoordinator() {
-        if (coordinator != null) {
-            try {
-                StringBuilder details = new StringBuilder("Coordinator Online Users:\n");
-                details.append("Username\tIP\tPort\n");
-                for (ClientHandler clientHandler : clientHandlers.values()) {
-                    details.append(clientHandler.getClientUsername())
-                           .append("\t")
-                           .append(clientHandler.getSocket().getInetAddress().getHostAddress())
-                           .append("\t")
-                           .append(clientHandler.getSocket().getPort())
-                           .append("\n");
+    public void sendPrivateMessage(String senderUsername, String recipientUsername, String message) {
+        ClientHandler recipientHandler = clientHandlers.get(recipientUsername);
+        if (recipientHandler != null && pendingDrains.contains(recipientUsername)) {
+            storeOffline(senderUsername, recipientUsername, message, true);
+        } else if (recipientHandler != null) {
+            deliverPrivate(recipientHandler, senderUsername, recipientUsername, message);
+        } else if (cluster != null && cluster.routePrivate(senderUsername, recipientUsername, message)) {
+            // The recipient's node delivers it; both nodes keep it in their history.
+            record(ChatMessage.fromText(Frame.PRIVATE, 0, senderUsername, 0, message), recipientUsername);
+        } else if (offlineStore != null) {
+            storeOffline(senderUsername, recipientUsername, message, true);
+        }
+    }
+
+    private void deliverPrivate(ClientHandler recipientHandler, String senderUsername, String recipientUsername,
+                                String message) {
+        ClientHandler senderHandler = clientHandlers.get(senderUsername);
+        int senderId = senderHandler != null ? senderHandler.getClientId() : 0;
+        ChatMessage privateMessage = ChatMessage.fromText(Frame.PRIVATE, senderId, senderUsername,
+                recipientHandler.getClientId(), message);
+        recipientHandler.deliver(privateMessage);
+        privateMessage.written(metrics);
+        record(privateMessage, recipientUsername);
+    }
+
+    /**
+     * Stores a message for a recipient who was not registered, on the
+     * offline thread. If they have logged in and their drain has run, it is
+     * delivered instead; if the drain is still to come, it picks it up.
+     */
+    private void storeOffline(String senderUsername, String recipientUsername, String message, boolean notifySender) {
+        offlineExecutor.execute(() -> {
+            ClientHandler recipientHandler = clientHandlers.get(recipientUsername);
+            if (recipientHandler != null && !pendingDrains.contains(recipientUsername)) {
+                deliverPrivate(recipientHandler, senderUsername, recipientUsername, message);
+                return;
+            }
+            boolean stored = offlineStore.store(senderUsername, recipientUsername, message);
+            if (stored) {
+                record(ChatMessage.fromText(Frame.PRIVATE, 0, senderUsername, 0, message), recipientUsername);
+                if (recipientHandler != null) {
+                    // Logging in; the drain queued behind this delivers it.
+                    return;
                 }
-                BufferedWriter out = new BufferedWriter(new OutputStreamWriter(coordinator.getSocket().getOutputStream()));
-                out.write(details.toString());
-                out.flush();
-            } catch (IOException e) {
-                System.err.println("Error sending online users to coordinator: " + e.getMessage());
-                e.printStackTrace();
+            }
+            ClientHandler senderHandler = notifySender ? clientHandlers.get(senderUsername) : null;
+            if (senderHandler != null) {
+                senderHandler.sendMessage("SERVER: " + recipientUsername + (stored
+                        ? " is offline; your message will be delivered when they return."
+                        : " is offline and the message could not be stored."));
+            }
+        });
+    }
+
+    /**
+     * Delivers a private message routed here by another node, storing it if
+     * the recipient left in the meantime.
+     */
+    void receivePrivateMessage(String senderUsername, String recipientUsername, String message) {
+        ClientHandler recipientHandler = clientHandlers.get(recipientUsername);
+        if (recipientHandler != null && !pendingDrains.contains(recipientUsername)) {
+            deliverPrivate(recipientHandler, senderUsername, recipientUsername, message);
+        } else if (offlineStore != null) {
+            storeOffline(senderUsername, recipientUsername, message, false);
+        }
+    }
+
+    /**
+     * Sends a private message addressed by recipient id, as binary clients
+     * do. Ids are per node, so these never cross to another node.
+     */
+    public void sendPrivateMessage(ChatMessage message) {
+        ClientHandler recipientHandler = clientHandlersById.get(message.getTargetId());
+        if (recipientHandler != null) {
+            recipientHandler.deliver(message);
+            message.written(metrics);
+            record(message, recipientHandler.getClientUsername());
+        }
+    }
+
+
+    private void notifyCoordinator(ClientHandler clientHandler) {
+        clientHandler.sendMessage("You are now the coordinator.");
+    }
+
+    private void notifyClient(ClientHandler clientHandler, String coordinatorUsername) {
+        clientHandler.sendMessage("The current coordinator is " + coordinatorUsername);
+    }
+
+    public void removeClient(String clientUsername) {
+        removeClient(clientUsername, false);
+    }
+
+    /**
+     * Unregisters a client. Everyone is told it left, or that it was
+     * disconnected if the connection was lost, in the next presence batch.
+     */
+    public void removeClient(String clientUsername, boolean lostConnection) {
+        ClientHandler removed = clientHandlers.remove(clientUsername);
+        if (removed != null) {
+            clientHandlersById.remove(removed.getClientId());
+            if (removed.getSession() != null) {
+                sessions.remove(removed.getSession().getToken(), removed.getSession());
+            }
+        }
+        ClientHandler newCoordinator = electCoordinator();
+        System.out.println("Client disconnected: " + clientUsername);
+        if (removed != null) {
+            for (Room room : removed.getRooms()) {
+                leaveRoom(room, removed);
+            }
+            presence.left(clientUsername, lostConnection);
+            if (cluster != null) {
+                cluster.userLeft(clientUsername);
+                if (newCoordinator != null || coordinator.get() == null) {
+                    cluster.coordinatorChanged(newCoordinator);
+                }
+            }
+        }
+
+        if (newCoordinator != null) {
+            System.out.println("New coordinator assigned: " + newCoordinator.getClientUsername());
+            if (newCoordinator == getCoordinator()) {
+                notifyCoordinator(newCoordinator);
+                presence.sendSnapshot();
+            }
+        }
+    }
+
+    /**
+     * Called when the cluster-wide coordinator role moves to or away from
+     * this node, to tell the local coordinator it gained or lost it.
+     */
+    void leadershipChanged(boolean leader) {
+        ClientHandler local = coordinator.get();
+        if (local == null) {
+            return;
+        }
+        if (leader) {
+            System.out.println("Coordinator role returned to this node: " + local.getClientUsername());
+            notifyCoordinator(local);
+            presence.sendSnapshot();
+        } else if (cluster.getRemoteCoordinator() != null) {
+            notifyClient(local, cluster.getRemoteCoordinator());
+        }
+    }
+
+    /** A user on another node joined or left, so the roster row changed. */
+    void remoteUserChanged(String username) {
+        presence.updated(username);
+    }
+
+    /**
+     * Makes sure the coordinator is a registered client, handing the role
+     * on if the current one has left. Every change is a compare-and-set on
+     * the coordinator reference and each caller re-checks after its own
+     * change, so racing joins and leaves settle on a live coordinator
+     * without a lock. Returns the client this call elected, if any, for
+     * the caller to notify.
+     */
+    private ClientHandler electCoordinator() {
+        ClientHandler elected = null;
+        while (true) {
+            ClientHandler current = coordinator.get();
+            if (current != null && isRegistered(current)) {
+                return elected;
+            }
+            ClientHandler candidate = null;
+            for (ClientHandler clientHandler : clientHandlers.values()) {
+                candidate = clientHandler;
+                break;
+            }
+            if (candidate == null && current == null) {
+                return elected;
+            }
+            if (coordinator.compareAndSet(current, candidate) && candidate != null) {
+                candidate.setCoordinator(true);
+                elected = candidate;
             }
         }
     }
 
+    private boolean isRegistered(ClientHandler clientHandler) {
+        return clientHandlers.get(clientHandler.getClientUsername()) == clientHandler;
+    }
+
+    /**
+     * Sends the coordinator the full roster, as on /roster.
+     */
+    public void sendRoster() {
+        presence.sendSnapshot();
+    }
+
+    /**
+     * Subscribes a client to a room, creating the room on first use, and
+     * announces the join to the room's members.
+     */
+    public Room joinRoom(String roomName, ClientHandler clientHandler) {
+        Room room = rooms.compute(roomName, (name, existing) -> {
+            Room target = existing;
+            if (target == null) {
+                target = new Room(name, nextRoomId.incrementAndGet());
+                roomsById.put(target.getRoomId(), target);
+            }
+            target.getMembers().add(clientHandler);
+            return target;
+        });
+        if (clientHandler.getRooms().add(room)) {
+            sendToRoom(room, ChatMessage.notice("SERVER: " + clientHandler.getClientUsername()
+                    + " joined [" + room.getName() + "]"));
+            presence.updated(clientHandler.getClientUsername());
+        }
+        return room;
+    }
+
+    /**
+     * Unsubscribes a client; a room is dropped once its last member leaves.
+     */
+    public void leaveRoom(Room room, ClientHandler clientHandler) {
+        if (!clientHandler.getRooms().remove(room)) {
+            return;
+        }
+        rooms.computeIfPresent(room.getName(), (name, existing) -> {
+            existing.getMembers().remove(clientHandler);
+            if (existing.isEmpty()) {
+                roomsById.remove(existing.getRoomId());
+                return null;
+            }
+            return existing;
+        });
+        sendToRoom(room, ChatMessage.notice("SERVER: " + clientHandler.getClientUsername()
+                + " left [" + room.getName() + "]"));
+        presence.updated(clientHandler.getClientUsername());
+    }
+
+    /**
+     * Delivers a message to a room's members only, so the cost follows the
+     * size of the room rather than the number of connected clients.
+     */
+    public void sendToRoom(Room room, ChatMessage message) {
+        for (ClientHandler member : room.getMembers()) {
+            member.deliver(message);
+        }
+        message.written(metrics);
+        if (message.getType() != Frame.NOTICE) {
+            record(message, room.getName());
+        }
+    }
+
+    public Room getRoom(String roomName) {
+        return rooms.get(roomName);
+    }
+
+    public Room getRoom(int roomId) {
+        return roomsById.get(roomId);
+    }
+
+    public String describeRooms() {
+        if (rooms.isEmpty()) {
+            return "SERVER: No rooms are open.";
+        }
+        StringJoiner description = new StringJoiner(", ", "SERVER: Rooms: ", "");
+        for (Room room : rooms.values()) {
+            description.add(room.getName() + " (" + room.getMembers().size() + ")");
+        }
+        return description.toString();
+    }
+
+    /**
+     * Starts a blocking-mode connection writer on the same kind of thread
+     * the handlers themselves run on.
+     */
+    void startWriter(Runnable writer) {
+        if (handlerExecutor != null) {
+            handlerExecutor.execute(writer);
+        } else {
+            Thread thread = new Thread(writer);
+            thread.start();
+        }
+    }
+
+    public ServerConfig getConfig() {
+        return config;
+    }
+
+    /** The port actually bound, which differs from the config for port 0. */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    int nextClientId() {
+        return nextClientId.incrementAndGet();
+    }
+
+    public ClientHandler getClientHandler(int clientId) {
+        return clientHandlersById.get(clientId);
+    }
+
     public ConcurrentHashMap<String, ClientHandler> getClientHandlers() {
         return clientHandlers;
     }
 
+    /**
+     * The client holding the coordinator role, or null if nobody here holds
+     * it because another node in the cluster does.
+     */
     public ClientHandler getCoordinator() {
-        return coordinator;
+        ClientHandler current = coordinator.get();
+        return cluster == null || cluster.isLeader() ? current : null;
+    }
+
+    /** This node's own coordinator, whether or not it leads the cluster. */
+    ClientHandler getLocalCoordinator() {
+        return coordinator.get();
+    }
+
+    private String getCoordinatorName() {
+        ClientHandler current = getCoordinator();
+        if (current != null) {
+            return current.getClientUsername();
+        }
+        return cluster != null ? cluster.getRemoteCoordinator() : null;
+    }
+
+    /** Null unless this server was started with a cluster port or peers. */
+    public ClusterNode getCluster() {
+        return cluster;
     }
 
     public void closeServerSocket() {
@@ -159,6 +1057,51 @@ public class Server {
             if (serverSocket != null) {
                 serverSocket.close();
             }
+            for (ServerSocket acceptorSocket : acceptorSockets) {
+                acceptorSocket.close();
+            }
+            if (adminSocket != null) {
+                adminSocket.close();
+            }
+            presence.shutdown();
+            if (cluster != null) {
+                cluster.shutdown();
+            }
+            if (handlerExecutor != null) {
+                handlerExecutor.shutdownNow();
+            }
+            if (heartbeats != null) {
+                heartbeats.shutdown();
+            }
+            if (heldInput != null) {
+                heldInput.shutdown();
+            }
+            if (sessionExpiry != null) {
+                sessionExpiry.shutdown();
+            }
+            if (handshakeTimeouts != null) {
+                handshakeTimeouts.shutdown();
+            }
+            if (historyExecutor != null) {
+                historyExecutor.shutdown();
+            }
+            if (journal != null) {
+                journal.close();
+            }
+            if (searchIndex != null) {
+                searchIndex.close();
+            }
+            if (offlineExecutor != null) {
+                offlineExecutor.shutdown();
+            }
+            if (fileRelay != null) {
+                fileRelay.close();
+            }
+            if (eventLoops != null) {
+                for (EventLoop eventLoop : eventLoops) {
+                    eventLoop.shutdown();
+                }
+            }
         } catch (IOException e) {
             System.err.println("Error closing server socket: " + e.getMessage());
             e.printStackTrace();
@@ -166,21 +1109,194 @@ public class Server {
     }
 
     public static void main(String[] args) throws IOException {
-        ServerSocket serverSocket = new ServerSocket(7004);
-        Server server = new Server(serverSocket);
+        ServerConfig config = ServerConfig.fromArgs(args);
+        Server server = new Server(bind(config, ACCEPT_BACKLOG), config);
         server.startServer();
     }
 
+    /**
+     * Opens the listening socket the configured mode needs; NIO mode accepts
+     * through the socket's channel. With several acceptors it is opened
+     * with SO_REUSEPORT, where supported, so the others can bind the port too.
+     */
+    static ServerSocket bind(ServerConfig config, int backlog) throws IOException {
+        return bind(config, config.getPort(), backlog);
+    }
+
+    private static ServerSocket bind(ServerConfig config, int port, int backlog) throws IOException {
+        ServerSocket socket;
+        if (config.getMode() == ServerConfig.Mode.NIO) {
+            socket = ServerSocketChannel.open().socket();
+        } else {
+            socket = new ServerSocket();
+        }
+        try {
+            if (config.getAcceptors() > 1 && socket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                socket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            socket.bind(new InetSocketAddress(port), backlog);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
     public void broadcastMessage(String message) {
+        broadcast(ChatMessage.notice(message));
+    }
+
+    /**
+     * Fans one message out to every client. Each wire format is encoded at
+     * most once and shared across all recipients that use it.
+     */
+    public void broadcast(ChatMessage message) {
+        deliverToAll(message);
+        if (cluster != null) {
+            cluster.relay(message);
+        }
+    }
+
+    /** Delivers a broadcast another node relayed to this node's clients. */
+    void receiveBroadcast(String senderUsername, String message) {
+        deliverToAll(ChatMessage.fromText(Frame.BROADCAST, 0, senderUsername, 0, message));
+    }
+
+    void receiveNotice(String message) {
+        deliverToAll(ChatMessage.notice(message));
+    }
+
+    private void deliverToAll(ChatMessage message) {
         for (ClientHandler clientHandler : clientHandlers.values()) {
-            try {
-                BufferedWriter out = new BufferedWriter(new OutputStreamWriter(clientHandler.getSocket().getOutputStream()));
-                out.write(message + "\n");
-                out.flush();
-            } catch (IOException e) {
-                System.err.println("Error broadcasting message: " + e.getMessage());
-                e.printStackTrace();
+            clientHandler.deliver(message);
+        }
+        message.written(metrics);
+        if (message.getType() != Frame.NOTICE) {
+            record(message, null);
+        }
+    }
+
+    private void record(ChatMessage message, String target) {
+        if (journal != null) {
+            journal.append(message, target);
+        }
+        if (searchIndex != null) {
+            searchIndex.add(message, target);
+        }
+    }
+
+    /**
+     * Answers /search with the best matching recent messages this client
+     * is allowed to see, in one write.
+     */
+    public void search(ClientHandler clientHandler, String query) {
+        if (searchIndex == null) {
+            clientHandler.sendMessage("SERVER: Search is not enabled on this server.");
+            return;
+        }
+        List<SearchIndex.Result> results = searchIndex.search(query,
+                (type, sender, target) -> canSee(type, sender, target, clientHandler), SEARCH_RESULTS);
+        if (results.isEmpty()) {
+            clientHandler.sendMessage("SERVER: No recent messages match \"" + query + "\".");
+            return;
+        }
+        StringBuilder lines = new StringBuilder("SERVER: " + results.size()
+                + (results.size() == 1 ? " match" : " matches") + " for \"" + query + "\":\n");
+        for (SearchIndex.Result result : results) {
+            lines.append(result.line).append('\n');
+        }
+        clientHandler.sendBatch(lines.toString());
+    }
+
+    /**
+     * Replays the last count journaled messages this client is allowed to
+     * see. The scan window widens until enough visible messages are found,
+     * so a busy room does not crowd out the client's own history. The scan
+     * runs on the history thread and its lines are queued to the client
+     * once it is done.
+     */
+    public void sendHistory(ClientHandler clientHandler, int count) {
+        if (journal == null || count <= 0) {
+            return;
+        }
+        historyExecutor.execute(() -> {
+            long lastSeq = journal.getLastSeq();
+            long firstSeq = journal.getFirstSeq();
+            long window = count;
+            long[] visible = new long[count];
+            while (true) {
+                long from = Math.max(firstSeq, lastSeq - window + 1);
+                int[] found = {0};
+                journal.replay(from, record -> {
+                    if (canSee(record, clientHandler)) {
+                        visible[found[0]++ % count] = record.seq;
+                    }
+                    return true;
+                });
+                if (found[0] >= count || from == firstSeq || window >= 64L * count) {
+                    long start = found[0] >= count ? visible[found[0] % count] : from;
+                    replayHistory(clientHandler, start, count);
+                    return;
+                }
+                window *= 4;
+            }
+        });
+    }
+
+    /**
+     * Replays journaled messages from a sequence number on, up to limit
+     * lines, streamed from the mapped segments on the history thread.
+     */
+    public void sendHistorySince(ClientHandler clientHandler, long fromSeq, int limit) {
+        if (journal == null) {
+            clientHandler.sendMessage("SERVER: History is not enabled on this server.");
+            return;
+        }
+        historyExecutor.execute(() -> replayHistory(clientHandler, fromSeq, limit));
+    }
+
+    // Runs on the history thread; the client's connection writes the lines out.
+    private void replayHistory(ClientHandler clientHandler, long fromSeq, int limit) {
+        List<String> lines = new ArrayList<>();
+        long[] next = {-1};
+        journal.replay(fromSeq, record -> {
+            if (!canSee(record, clientHandler)) {
+                return true;
+            }
+            if (lines.size() == limit) {
+                next[0] = record.seq;
+                return false;
             }
+            lines.add(record.toLine());
+            return true;
+        });
+        if (next[0] > 0) {
+            lines.add("SERVER: More history available, use /history since " + next[0]);
+        }
+        for (String line : lines) {
+            clientHandler.sendMessage(line);
+        }
+    }
+
+    private static boolean canSee(MessageJournal.Record record, ClientHandler clientHandler) {
+        return canSee(record.type, record.sender, record.target, clientHandler);
+    }
+
+    // Room messages are for the room's members and private ones for their two participants.
+    private static boolean canSee(byte type, String sender, String target, ClientHandler clientHandler) {
+        switch (type) {
+            case Frame.ROOM:
+                for (Room room : clientHandler.getRooms()) {
+                    if (room.getName().equals(target)) {
+                        return true;
+                    }
+                }
+                return false;
+            case Frame.PRIVATE:
+                String username = clientHandler.getClientUsername();
+                return username.equals(sender) || username.equals(target);
+            default:
+                return true;
         }
     }
 }
\ No newline at end of file
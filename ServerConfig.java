@@ -0,0 +1,495 @@
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class ServerConfig {
+    public enum Mode {
+        BLOCKING,
+        VIRTUAL,
+        NIO
+    }
+
+    /** What happens to a client whose unwritten output passes the high-water mark. */
+    public enum SlowConsumerPolicy {
+        // Discard its oldest queued broadcasts and room messages.
+        DROP,
+        // Close the connection.
+        DISCONNECT,
+        // Stop reading from it until its backlog falls below the low-water mark.
+        PAUSE
+    }
+
+    /** What happens to a message that arrives when its bucket is empty. */
+    public enum RateLimitAction {
+        // Hold it, and everything the client sends after it, until a token is due.
+        DELAY,
+        // Drop it and tell the sender.
+        REJECT,
+        // Close the sender's connection.
+        DISCONNECT
+    }
+
+    /** A sustained rate in messages per second and the burst allowed on top. */
+    public static final class RateLimit {
+        private final double perSecond;
+        private final int burst;
+
+        RateLimit(double perSecond, int burst) {
+            this.perSecond = perSecond;
+            this.burst = burst;
+        }
+
+        // "rate" or "rate:burst"; a burst defaults to one second's worth.
+        static RateLimit parse(String value) {
+            String[] parts = value.split(":");
+            double perSecond = Double.parseDouble(parts[0]);
+            if (perSecond <= 0) {
+                return null;
+            }
+            int burst = parts.length > 1 ? Integer.parseInt(parts[1]) : (int) Math.ceil(perSecond);
+            return new RateLimit(perSecond, Math.max(1, burst));
+        }
+
+        public double getPerSecond() {
+            return perSecond;
+        }
+
+        public int getBurst() {
+            return burst;
+        }
+    }
+
+    private int port = 7004;
+    private Mode mode = Mode.BLOCKING;
+    private int eventLoops = Runtime.getRuntime().availableProcessors();
+    private int acceptors = 1;
+    private long handshakeTimeoutMillis = 10000;
+    private int outboundQueueCapacity = 1024;
+    private long coalesceWindowNanos;
+    private int coalesceBytes = 16 * 1024;
+    private long outboundHighWaterBytes = 1024 * 1024;
+    private long outboundLowWaterBytes = 256 * 1024;
+    private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DROP;
+    private RateLimit broadcastLimit;
+    private RateLimit privateLimit;
+    private RateLimit commandLimit;
+    private RateLimitAction rateLimitAction = RateLimitAction.DELAY;
+    // Off unless asked for: line-protocol clients that predate PING never answer it.
+    private long heartbeatIntervalMillis = 0;
+    private long idleTimeoutMillis = 10000;
+    private long sessionGraceMillis = 30000;
+    private int sessionBufferBytes = 64 * 1024;
+    private String journalDirectory;
+    private int journalSegmentBytes = 64 * 1024 * 1024;
+    private long journalMaxBytes = 1024L * 1024 * 1024;
+    private int historyOnJoin = 20;
+    private int searchRetention;
+    private long searchMaxBytes = 64L * 1024 * 1024;
+    private String offlineDirectory;
+    private int offlineMaxMessages = 100;
+    private long offlineMaxAgeMillis = TimeUnit.DAYS.toMillis(7);
+    private int offlineMaxRecipients = 10000;
+    private String fileSpoolDirectory;
+    private int transferPort;
+    private long transferMaxBytes = 8L * 1024 * 1024 * 1024;
+    private long transferMaxAgeMillis = TimeUnit.HOURS.toMillis(24);
+    private long transferSpoolMaxBytes = 32L * 1024 * 1024 * 1024;
+    private int transferMaxPerSender = 4;
+    private int adminPort;
+    private long presenceWindowMillis = 200;
+    private int compressionThreshold = 64;
+    private String nodeId;
+    private int clusterPort;
+    private String clusterBind = "127.0.0.1";
+    private String clusterSecret = "";
+    private final List<InetSocketAddress> peers = new ArrayList<>();
+
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Unrecognised option: " + arg);
+            }
+            String key = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            switch (key) {
+                case "port":
+                    config.port = Integer.parseInt(value);
+                    break;
+                case "mode":
+                    config.mode = Mode.valueOf(value.toUpperCase());
+                    break;
+                case "loops":
+                    config.eventLoops = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "acceptors":
+                    config.acceptors = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "handshake-timeout":
+                    config.handshakeTimeoutMillis = (long) (Double.parseDouble(value) * 1000);
+                    break;
+                case "outbound-queue":
+                    config.outboundQueueCapacity = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "coalesce-window-ms":
+                    config.coalesceWindowNanos = (long) (Double.parseDouble(value) * 1_000_000);
+                    break;
+                case "coalesce-kb":
+                    config.coalesceBytes = Math.max(1, Integer.parseInt(value)) * 1024;
+                    break;
+                case "outbound-high-water-kb":
+                    config.outboundHighWaterBytes = Math.max(1, Long.parseLong(value)) * 1024;
+                    break;
+                case "outbound-low-water-kb":
+                    config.outboundLowWaterBytes = Math.max(0, Long.parseLong(value)) * 1024;
+                    break;
+                case "slow-consumer":
+                    config.slowConsumerPolicy = SlowConsumerPolicy.valueOf(value.toUpperCase());
+                    break;
+                case "broadcast-limit":
+                    config.broadcastLimit = RateLimit.parse(value);
+                    break;
+                case "private-limit":
+                    config.privateLimit = RateLimit.parse(value);
+                    break;
+                case "command-limit":
+                    config.commandLimit = RateLimit.parse(value);
+                    break;
+                case "rate-limit-action":
+                    config.rateLimitAction = RateLimitAction.valueOf(value.toUpperCase());
+                    break;
+                case "heartbeat":
+                    config.heartbeatIntervalMillis = (long) (Double.parseDouble(value) * 1000);
+                    break;
+                case "idle-timeout":
+                    config.idleTimeoutMillis = (long) (Double.parseDouble(value) * 1000);
+                    break;
+                case "session-grace":
+                    config.sessionGraceMillis = (long) (Double.parseDouble(value) * 1000);
+                    break;
+                case "session-buffer-kb":
+                    config.sessionBufferBytes = Math.max(1, Integer.parseInt(value)) * 1024;
+                    break;
+                case "journal":
+                    config.journalDirectory = value;
+                    break;
+                case "journal-segment-mb":
+                    long segmentMb = Long.parseLong(value);
+                    // One segment is one mapping, which is limited to 2 GB.
+                    if (segmentMb < 1 || segmentMb * 1024 * 1024 > Integer.MAX_VALUE) {
+                        throw new IllegalArgumentException("journal-segment-mb must be from 1 to 2047, got " + value);
+                    }
+                    config.journalSegmentBytes = (int) (segmentMb * 1024 * 1024);
+                    break;
+                case "journal-max-mb":
+                    config.journalMaxBytes = Math.max(1, Long.parseLong(value)) * 1024 * 1024;
+                    break;
+                case "history-on-join":
+                    config.historyOnJoin = Integer.parseInt(value);
+                    break;
+                case "search-retention":
+                    config.searchRetention = Integer.parseInt(value);
+                    break;
+                case "search-max-mb":
+                    config.searchMaxBytes = Math.max(1, Long.parseLong(value)) * 1024 * 1024;
+                    break;
+                case "offline-store":
+                    config.offlineDirectory = value;
+                    break;
+                case "offline-max-messages":
+                    config.offlineMaxMessages = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "offline-max-age-hours":
+                    config.offlineMaxAgeMillis = TimeUnit.HOURS.toMillis(Long.parseLong(value));
+                    break;
+                case "offline-max-recipients":
+                    config.offlineMaxRecipients = Math.max(1, Integer.parseInt(value));
+                    break;
+                case "presence-window":
+                    config.presenceWindowMillis = (long) (Double.parseDouble(value) * 1000);
+                    break;
+                case "file-spool":
+                    config.fileSpoolDirectory = value;
+                    break;
+                case "transfer-port":
+                    config.transferPort = Integer.parseInt(value);
+                    break;
+                case "transfer-max-mb":
+                    config.transferMaxBytes = Long.parseLong(value) * 1024 * 1024;
+                    break;
+                case "transfer-max-age-hours":
+                    config.transferMaxAgeMillis = (long) (Double.parseDouble(value) * TimeUnit.HOURS.toMillis(1));
+                    break;
+                case "transfer-spool-max-mb":
+                    config.transferSpoolMaxBytes = Long.parseLong(value) * 1024 * 1024;
+                    break;
+                case "transfer-max-per-user":
+                    config.transferMaxPerSender = Integer.parseInt(value);
+                    break;
+                case "admin-port":
+                    config.adminPort = Integer.parseInt(value);
+                    break;
+                case "compression-threshold":
+                    config.compressionThreshold = Integer.parseInt(value);
+                    break;
+                case "node-id":
+                    config.nodeId = value;
+                    break;
+                case "cluster-port":
+                    config.clusterPort = Integer.parseInt(value);
+                    break;
+                case "cluster-bind":
+                    config.clusterBind = value;
+                    break;
+                case "cluster-secret":
+                    config.clusterSecret = value;
+                    break;
+                case "peers":
+                    for (String peer : value.split(",")) {
+                        int colon = peer.lastIndexOf(':');
+                        if (colon < 0) {
+                            throw new IllegalArgumentException("Peers are host:port, got " + peer);
+                        }
+                        config.peers.add(InetSocketAddress.createUnresolved(peer.substring(0, colon),
+                                Integer.parseInt(peer.substring(colon + 1))));
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unrecognised option: " + arg);
+            }
+        }
+        if (config.outboundLowWaterBytes > config.outboundHighWaterBytes) {
+            config.outboundLowWaterBytes = config.outboundHighWaterBytes;
+        }
+        if (config.idleTimeoutMillis <= config.heartbeatIntervalMillis) {
+            config.idleTimeoutMillis = config.heartbeatIntervalMillis * 2;
+        }
+        return config;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public int getEventLoops() {
+        return eventLoops;
+    }
+
+    /** Threads accepting connections, each on its own SO_REUSEPORT socket where available. */
+    public int getAcceptors() {
+        return acceptors;
+    }
+
+    /** How long a new connection has to send its username; 0 waits forever. */
+    public long getHandshakeTimeoutMillis() {
+        return handshakeTimeoutMillis;
+    }
+
+    public int getOutboundQueueCapacity() {
+        return outboundQueueCapacity;
+    }
+
+    /**
+     * How long a connection that flushed within this time holds its next
+     * write open for more messages; 0, the default, writes every batch at
+     * once. A connection that has been quiet for longer writes immediately.
+     */
+    public long getCoalesceWindowNanos() {
+        return coalesceWindowNanos;
+    }
+
+    /** Bytes at which a held write goes out without waiting for the window. */
+    public int getCoalesceBytes() {
+        return coalesceBytes;
+    }
+
+    /** Unwritten bytes queued for one client at which its slow-consumer policy applies. */
+    public long getOutboundHighWaterBytes() {
+        return outboundHighWaterBytes;
+    }
+
+    /** Backlog a client is brought back down to once it passes the high-water mark. */
+    public long getOutboundLowWaterBytes() {
+        return outboundLowWaterBytes;
+    }
+
+    public SlowConsumerPolicy getSlowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    /** Per-client limit on broadcasts and room messages; null is unlimited. */
+    public RateLimit getBroadcastLimit() {
+        return broadcastLimit;
+    }
+
+    /** Per-client limit on private messages; null is unlimited. */
+    public RateLimit getPrivateLimit() {
+        return privateLimit;
+    }
+
+    /** Per-client limit on commands such as /join and /history; null is unlimited. */
+    public RateLimit getCommandLimit() {
+        return commandLimit;
+    }
+
+    public boolean hasRateLimits() {
+        return broadcastLimit != null || privateLimit != null || commandLimit != null;
+    }
+
+    public RateLimitAction getRateLimitAction() {
+        return rateLimitAction;
+    }
+
+    /** Idle time after which a client is sent a PING; 0 disables heartbeats. */
+    public long getHeartbeatIntervalMillis() {
+        return heartbeatIntervalMillis;
+    }
+
+    /** Idle time after which a client that has not answered is disconnected. */
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    /** How long a lost connection's session waits to be resumed; 0 turns sessions off. */
+    public long getSessionGraceMillis() {
+        return sessionGraceMillis;
+    }
+
+    /** How much recent output each session keeps for a resume. */
+    public int getSessionBufferBytes() {
+        return sessionBufferBytes;
+    }
+
+    /** Directory for the message journal; null disables it. */
+    public String getJournalDirectory() {
+        return journalDirectory;
+    }
+
+    public int getJournalSegmentBytes() {
+        return journalSegmentBytes;
+    }
+
+    /** Disk the journal may use; the oldest segments are deleted beyond it. */
+    public long getJournalMaxBytes() {
+        return journalMaxBytes;
+    }
+
+    /** Number of past messages replayed to a client when it joins. */
+    public int getHistoryOnJoin() {
+        return historyOnJoin;
+    }
+
+    /**
+     * How many of the latest messages /search covers; 0, the default,
+     * turns search off.
+     */
+    public int getSearchRetention() {
+        return searchRetention;
+    }
+
+    /** Most message text the search window holds, whatever its retention. */
+    public long getSearchMaxBytes() {
+        return searchMaxBytes;
+    }
+
+    /** Directory for private messages to offline users; null drops them. */
+    public String getOfflineDirectory() {
+        return offlineDirectory;
+    }
+
+    public int getOfflineMaxMessages() {
+        return offlineMaxMessages;
+    }
+
+    public long getOfflineMaxAgeMillis() {
+        return offlineMaxAgeMillis;
+    }
+
+    public int getOfflineMaxRecipients() {
+        return offlineMaxRecipients;
+    }
+
+    /** Directory for files being relayed between users; null turns /send off. */
+    public String getFileSpoolDirectory() {
+        return fileSpoolDirectory;
+    }
+
+    /** Port file transfers connect to; 0 picks a free one, which clients are told. */
+    public int getTransferPort() {
+        return transferPort;
+    }
+
+    public long getTransferMaxBytes() {
+        return transferMaxBytes;
+    }
+
+    /** How long an untouched transfer keeps its spool file. */
+    public long getTransferMaxAgeMillis() {
+        return transferMaxAgeMillis;
+    }
+
+    /** Total size of the files the relay holds at once, counted from their declared sizes. */
+    public long getTransferSpoolMaxBytes() {
+        return transferSpoolMaxBytes;
+    }
+
+    /** How many of a user's files the relay holds at once, until each is received. */
+    public int getTransferMaxPerSender() {
+        return transferMaxPerSender;
+    }
+
+    /** Loopback port serving the metrics report; 0 disables it. */
+    public int getAdminPort() {
+        return adminPort;
+    }
+
+    /** How long presence changes are collected before one aggregated update. */
+    public long getPresenceWindowMillis() {
+        return presenceWindowMillis;
+    }
+
+    /**
+     * Writes smaller than this go out uncompressed on connections that asked
+     * for compression; negative refuses compression altogether.
+     */
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /** This node's name in a cluster; the lowest id holds the coordinator. */
+    public String getNodeId() {
+        return nodeId != null ? nodeId : "node-" + port;
+    }
+
+    /** Port other nodes connect to; 0 means this node only dials out. */
+    public int getClusterPort() {
+        return clusterPort;
+    }
+
+    /** Address the cluster port binds to; loopback unless set. */
+    public String getClusterBind() {
+        return clusterBind;
+    }
+
+    /**
+     * Shared by every node and checked on each link; required to bind the
+     * cluster port anywhere but loopback.
+     */
+    public String getClusterSecret() {
+        return clusterSecret;
+    }
+
+    /** Nodes to connect to, each as host:port of its cluster port. */
+    public List<InetSocketAddress> getPeers() {
+        return peers;
+    }
+
+    public boolean isClustered() {
+        return clusterPort > 0 || !peers.isEmpty();
+    }
+}
\ No newline at end of file
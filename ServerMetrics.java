@@ -0,0 +1,253 @@
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server-wide counters and latency histograms. Everything on the
+ * recording side is a LongAdder or histogram update, so hot paths can
+ * record without locking or allocating; the cost is paid when a report
+ * is rendered.
+ */
+public class ServerMetrics {
+    private final long startNanos = System.nanoTime();
+    private final LongAdder messagesIn = new LongAdder();
+    private final LongAdder messagesOut = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder socketWrites = new LongAdder();
+    private final LongAdder writeErrors = new LongAdder();
+    private final LongAdder handshakeTimeouts = new LongAdder();
+    private final LongAdder droppedMessages = new LongAdder();
+    private final LongAdder shedMessages = new LongAdder();
+    private final LongAdder slowDisconnects = new LongAdder();
+    private final LongAdder readPauses = new LongAdder();
+    private final LongAdder delayedMessages = new LongAdder();
+    private final LongAdder rejectedMessages = new LongAdder();
+    private final LongAdder floodDisconnects = new LongAdder();
+    private final LongAdder sessionsResumed = new LongAdder();
+    private final LongAdder sessionsExpired = new LongAdder();
+    private final LongAdder compressedIn = new LongAdder();
+    private final LongAdder compressedOut = new LongAdder();
+    private final LatencyHistogram broadcastLatency = new LatencyHistogram();
+    private final LatencyHistogram roomLatency = new LatencyHistogram();
+    private final LatencyHistogram privateLatency = new LatencyHistogram();
+
+    // Previous report, for per-second rates; only touched while rendering.
+    private long lastReportNanos = startNanos;
+    private long lastMessagesIn;
+    private long lastMessagesOut;
+
+    public void messageReceived() {
+        messagesIn.increment();
+    }
+
+    public void messageQueued() {
+        messagesOut.increment();
+    }
+
+    public void bytesWritten(long bytes) {
+        bytesOut.add(bytes);
+    }
+
+    /** One write to a socket, or one flush of a blocking connection's buffer. */
+    public void socketWrite() {
+        socketWrites.increment();
+    }
+
+    public long getSocketWrites() {
+        return socketWrites.sum();
+    }
+
+    public void writeError() {
+        writeErrors.increment();
+    }
+
+    /** A connection closed for not sending its username in time. */
+    public void handshakeTimedOut() {
+        handshakeTimeouts.increment();
+    }
+
+    public long getHandshakeTimeouts() {
+        return handshakeTimeouts.sum();
+    }
+
+    public void messageDropped() {
+        droppedMessages.increment();
+    }
+
+    /** A queued broadcast discarded because its recipient fell behind. */
+    public void messageShed() {
+        shedMessages.increment();
+    }
+
+    public void slowConsumerDisconnected() {
+        slowDisconnects.increment();
+    }
+
+    public void readPaused() {
+        readPauses.increment();
+    }
+
+    public long getShedMessages() {
+        return shedMessages.sum();
+    }
+
+    public long getSlowDisconnects() {
+        return slowDisconnects.sum();
+    }
+
+    public long getReadPauses() {
+        return readPauses.sum();
+    }
+
+    /** An inbound message held back because its sender was over a rate limit. */
+    public void messageDelayed() {
+        delayedMessages.increment();
+    }
+
+    public void messageRejected() {
+        rejectedMessages.increment();
+    }
+
+    public void floodDisconnected() {
+        floodDisconnects.increment();
+    }
+
+    public long getDelayedMessages() {
+        return delayedMessages.sum();
+    }
+
+    public long getRejectedMessages() {
+        return rejectedMessages.sum();
+    }
+
+    public long getFloodDisconnects() {
+        return floodDisconnects.sum();
+    }
+
+    public void sessionResumed() {
+        sessionsResumed.increment();
+    }
+
+    public void sessionExpired() {
+        sessionsExpired.increment();
+    }
+
+    public long getSessionsResumed() {
+        return sessionsResumed.sum();
+    }
+
+    public long getSessionsExpired() {
+        return sessionsExpired.sum();
+    }
+
+    /** Counts one record on a compressed connection, before and after compression. */
+    public void compressed(long rawBytes, long wireBytes) {
+        compressedIn.add(rawBytes);
+        compressedOut.add(wireBytes);
+    }
+
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    public long getCompressedIn() {
+        return compressedIn.sum();
+    }
+
+    public long getCompressedOut() {
+        return compressedOut.sum();
+    }
+
+    /**
+     * Records the time from receiving a message to its last recipient's
+     * socket write. Server notices and presence batches are not chat, so
+     * they are left out.
+     */
+    public void delivered(byte type, long nanos) {
+        switch (type) {
+            case Frame.NOTICE:
+                break;
+            case Frame.PRIVATE:
+                privateLatency.record(nanos);
+                break;
+            case Frame.ROOM:
+                roomLatency.record(nanos);
+                break;
+            default:
+                broadcastLatency.record(nanos);
+        }
+    }
+
+    public long getDroppedMessages() {
+        return droppedMessages.sum();
+    }
+
+    public long getWriteErrors() {
+        return writeErrors.sum();
+    }
+
+    public synchronized String report(Collection<ClientHandler> clientHandlers) {
+        long now = System.nanoTime();
+        double sinceLast = Math.max(1e-9, (now - lastReportNanos) / 1e9);
+        long in = messagesIn.sum();
+        long out = messagesOut.sum();
+
+        int clients = 0;
+        long backlog = 0;
+        long backlogBytes = 0;
+        List<ClientHandler> deepest = new ArrayList<>();
+        for (ClientHandler clientHandler : clientHandlers) {
+            clients++;
+            backlog += clientHandler.getOutboundDepth();
+            backlogBytes += clientHandler.getOutboundBytes();
+            deepest.add(clientHandler);
+        }
+        deepest.sort(Comparator.comparingInt(ClientHandler::getOutboundDepth).reversed());
+
+        StringBuilder report = new StringBuilder("Server metrics:\n");
+        report.append("uptime\t").append(TimeUnit.NANOSECONDS.toSeconds(now - startNanos)).append("s\n");
+        report.append("clients\t").append(clients).append("\n");
+        report.append("messages in\t").append(in)
+              .append(String.format(" (%.1f/s)", (in - lastMessagesIn) / sinceLast)).append("\n");
+        report.append("messages out\t").append(out)
+              .append(String.format(" (%.1f/s)", (out - lastMessagesOut) / sinceLast)).append("\n");
+        long writes = socketWrites.sum();
+        report.append("bytes out\t").append(bytesOut.sum()).append(" in ").append(writes).append(" writes")
+              .append(String.format(" (%.0f bytes each)", bytesOut.sum() / (double) Math.max(1, writes))).append("\n");
+        long raw = compressedIn.sum();
+        if (raw > 0) {
+            long wire = compressedOut.sum();
+            report.append("compressed\t").append(raw).append(" -> ").append(wire)
+                  .append(String.format(" bytes (%.1f%%)", 100.0 * wire / raw)).append("\n");
+        }
+        report.append("write errors\t").append(writeErrors.sum()).append("\n");
+        report.append("handshake timeouts\t").append(handshakeTimeouts.sum()).append("\n");
+        report.append("dropped\t").append(droppedMessages.sum()).append("\n");
+        report.append("rate limited\tdelayed ").append(delayedMessages.sum())
+              .append(", rejected ").append(rejectedMessages.sum())
+              .append(", disconnected ").append(floodDisconnects.sum()).append("\n");
+        report.append("sessions\tresumed ").append(sessionsResumed.sum())
+              .append(", expired ").append(sessionsExpired.sum()).append("\n");
+        report.append("slow consumers\tshed ").append(shedMessages.sum())
+              .append(", disconnected ").append(slowDisconnects.sum())
+              .append(", paused ").append(readPauses.sum()).append("\n");
+        report.append("outbound backlog\t").append(backlog).append(" messages, ")
+              .append(backlogBytes).append(" bytes");
+        for (int i = 0; i < Math.min(3, deepest.size()); i++) {
+            ClientHandler clientHandler = deepest.get(i);
+            if (clientHandler.getOutboundDepth() > 0) {
+                report.append(i == 0 ? ", deepest: " : ", ")
+                      .append(clientHandler.getClientUsername()).append("=").append(clientHandler.getOutboundDepth());
+            }
+        }
+        report.append("\n");
+        report.append("broadcast latency\t").append(broadcastLatency.summary()).append("\n");
+        report.append("room latency\t").append(roomLatency.summary()).append("\n");
+        report.append("private latency\t").append(privateLatency.summary());
+
+        lastReportNanos = now;
+        lastMessagesIn = in;
+        lastMessagesOut = out;
+        return report.toString();
+    }
+}
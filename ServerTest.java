@@ -1,57 +1,1645 @@
 import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.*;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.swing.SwingUtilities;
+import javax.swing.event.ListDataEvent;
+import javax.swing.event.ListDataListener;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 class ServerTest {
 
 	@Test
-	void testServer() {
-		fail("Not yet implemented");
+	void testServer() throws IOException {
+		ServerConfig config = ServerConfig.fromArgs(new String[] { "--mode=nio" });
+		Server server = new Server(new ServerSocket(0), config);
+		try {
+			assertSame(config, server.getConfig());
+			assertTrue(server.getClientHandlers().isEmpty());
+			assertNull(server.getCoordinator());
+		} finally {
+			server.closeServerSocket();
+		}
+	}
+
+	@Test
+	void testStartServer() throws IOException {
+		Server server = start();
+		try (TestClient alice = new TestClient(server, "alice")) {
+			alice.expect("You are now the coordinator.");
+		} finally {
+			server.closeServerSocket();
+		}
+	}
+
+	@Test
+	void testAddClient() throws IOException {
+		Server server = start();
+		try (TestClient alice = new TestClient(server, "alice");
+				TestClient bob = new TestClient(server, "bob")) {
+			bob.expect("The current coordinator is alice");
+			alice.expectPresence("bob", "entered the chat!");
+			assertEquals(2, server.getClientHandlers().size());
+		} finally {
+			server.closeServerSocket();
+		}
+	}
+
+	@Test
+	void testSendPrivateMessage() throws IOException {
+		Server server = start();
+		try (TestClient alice = new TestClient(server, "alice");
+				TestClient bob = new TestClient(server, "bob");
+				TestClient carol = new TestClient(server, "carol")) {
+			alice.expectPresence("carol", "entered the chat!");
+			alice.send("/private bob see you at 5: bring snacks");
+			bob.expect("PRIVATE:alice:see you at 5: bring snacks");
+			carol.send("everyone");
+			String line = carol.expectContaining("carol: everyone");
+			assertFalse(line.startsWith("PRIVATE"), "carol saw the private message");
+		} finally {
+			server.closeServerSocket();
+		}
+	}
+
+	@Test
+	void testRemoveClient() throws IOException {
+		Server server = start();
+		try (TestClient alice = new TestClient(server, "alice");
+				TestClient bob = new TestClient(server, "bob")) {
+			bob.expect("The current coordinator is alice");
+			// A join and leave inside one presence window cancel out.
+			bob.expectPresence("bob", "entered the chat!");
+			alice.send("QUIT");
+			bob.expect("You are now the coordinator.");
+			bob.expect("SERVER: alice has left the chat.");
+			assertEquals(Set.of("bob"), server.getClientHandlers().keySet());
+			assertEquals("bob", server.getCoordinator().getClientUsername());
+		} finally {
+			server.closeServerSocket();
+		}
+	}
+
+	@Test
+	void testGetClientHandlers() throws IOException {
+		Server server = start();
+		try (TestClient alice = new TestClient(server, "alice");
+				TestClient bob = new TestClient(server, "bob")) {
+			bob.expect("The current coordinator is alice");
+			assertEquals(Set.of("alice", "bob"), server.getClientHandlers().keySet());
+			assertEquals("bob", server.getClientHandlers().get("bob").getClientUsername());
+		} finally {
+			server.closeServerSocket();
+		}
+	}
+
+	@Test
+	void testGetCoordinator() throws IOException {
+		Server server = start();
+		try (TestClient alice = new TestClient(server, "alice");
+				TestClient bob = new TestClient(server, "bob")) {
+			bob.expect("The current coordinator is alice");
+			assertEquals("alice", server.getCoordinator().getClientUsername());
+		} finally {
+			server.closeServerSocket();
+		}
+	}
+
+	@Test
+	void testCloseServerSocket() throws Exception {
+		Server server = start();
+		int port = server.getPort();
+		try (TestClient alice = new TestClient(server, "alice")) {
+			alice.expect("You are now the coordinator.");
+		}
+		server.closeServerSocket();
+		// The listening socket is released once the accept thread wakes up.
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (System.nanoTime() < deadline) {
+			try (Socket socket = new Socket("localhost", port)) {
+				Thread.sleep(20);
+			} catch (ConnectException e) {
+				return;
+			}
+		}
+		fail("Port " + port + " still accepting connections after closeServerSocket");
+	}
+
+	@Test
+	void testMain() throws Exception {
+		int port;
+		try (ServerSocket probe = new ServerSocket(0)) {
+			port = probe.getLocalPort();
+		}
+		Thread main = new Thread(() -> {
+			try {
+				Server.main(new String[] { "--port=" + port, "--mode=nio", "--loops=1" });
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+		main.setDaemon(true);
+		main.start();
+
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (true) {
+			try (TestClient alice = new TestClient(port, "alice")) {
+				alice.expect("You are now the coordinator.");
+				return;
+			} catch (ConnectException e) {
+				if (System.nanoTime() > deadline) {
+					throw e;
+				}
+				Thread.sleep(50);
+			}
+		}
+	}
+
+	@Test
+	void testBroadcastMessage() throws IOException {
+		Server server = start();
+		try (TestClient alice = new TestClient(server, "alice");
+				TestClient bob = new TestClient(server, "bob")) {
+			bob.expect("The current coordinator is alice");
+			server.broadcastMessage("SERVER: restarting soon");
+			alice.expect("SERVER: restarting soon");
+			bob.expect("SERVER: restarting soon");
+		} finally {
+			server.closeServerSocket();
+		}
+	}
+
+	@Test
+	void testRoomMessagesReachOnlyTheRoom() throws Exception {
+		Server server = start();
+		try (TestClient alice = new TestClient(server, "alice");
+				TestClient bob = new TestClient(server, "bob");
+				TestClient carol = new TestClient(server, "carol")) {
+			alice.send("/join dev");
+			alice.expect("SERVER: You are now talking in [dev]. Use /leave to return to everyone.");
+			bob.send("/join dev");
+			bob.expect("SERVER: You are now talking in [dev]. Use /leave to return to everyone.");
+			alice.expect("SERVER: bob joined [dev]");
+			carol.send("/join ops");
+			carol.expect("SERVER: You are now talking in [ops]. Use /leave to return to everyone.");
+			assertEquals(Set.of("alice", "bob"), members(server, "dev"));
+			assertEquals(Set.of("carol"), members(server, "ops"));
+
+			alice.send("/room dev for dev");
+			bob.expect("[dev] alice: for dev");
+			alice.expect("[dev] alice: for dev");
+			carol.send("after dev");
+			carol.expectWithout("[ops] carol: after dev", line -> line.contains("for dev"));
+
+			bob.send("/leave dev");
+			bob.expect("SERVER: You left [dev].");
+			alice.expect("SERVER: bob left [dev]");
+			assertEquals(Set.of("alice"), members(server, "dev"));
+			alice.send("still for dev");
+			alice.expect("[dev] alice: still for dev");
+			bob.send("/room dev not a member");
+			bob.expect("SERVER: Join a room with /join before sending to it.");
+			bob.send("to everyone");
+			bob.expectWithout("bob: to everyone", line -> line.contains("still for dev"));
+
+			alice.send("/leave");
+			alice.expect("SERVER: You left [dev].");
+			assertNull(server.getRoom("dev"), "empty room was kept");
+		} finally {
+			server.closeServerSocket();
+		}
+	}
+
+	private static Set<String> members(Server server, String roomName) {
+		return server.getRoom(roomName).getMembers().stream().map(ClientHandler::getClientUsername)
+				.collect(Collectors.toSet());
+	}
+
+	@Test
+	void testCoordinatorSurvivesConcurrentChurn() throws Exception {
+		Server server = start();
+		List<TestClient> clients = Collections.synchronizedList(new ArrayList<>());
+		try {
+			ExecutorService pool = Executors.newFixedThreadPool(8);
+			for (int i = 0; i < 40; i++) {
+				String username = "user" + i;
+				pool.execute(() -> {
+					try {
+						clients.add(new TestClient(server, username));
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
+			}
+			awaitClients(server, 40);
+			while (clients.size() < 40) {
+				Thread.sleep(10);
+			}
+			// Drop every other client at once, very likely including the coordinator.
+			List<TestClient> leaving = new ArrayList<>();
+			for (int i = 0; i < clients.size(); i += 2) {
+				leaving.add(clients.get(i));
+			}
+			for (TestClient client : leaving) {
+				pool.execute(() -> client.send("QUIT"));
+			}
+			pool.shutdown();
+			awaitClients(server, 20);
+
+			ClientHandler coordinator = server.getCoordinator();
+			assertNotNull(coordinator);
+			assertSame(coordinator, server.getClientHandlers().get(coordinator.getClientUsername()));
+		} finally {
+			for (TestClient client : clients) {
+				client.close();
+			}
+			server.closeServerSocket();
+		}
+	}
+
+	@Test
+	void testPresenceIsBatchedAndRosterIsIncremental() throws Exception {
+		Server server = start("--presence-window=1");
+		try (TestClient alice = new TestClient(server, "alice")) {
+			alice.expect("You are now the coordinator.");
+			alice.expectContaining("Coordinator Online Users (version");
+			alice.expect("SERVER: alice has entered the chat!");
+			List<TestClient> others = new ArrayList<>();
+			for (int i = 0; i < 5; i++) {
+				others.add(new TestClient(server, "user" + i));
+			}
+			String entered = alice.expectContaining("have entered the chat!");
+			for (int i = 0; i < 5; i++) {
+				assertTrue(entered.contains("user" + i), entered);
+			}
+			alice.expectContaining("Coordinator Roster Update (version");
+			for (int i = 0; i < 5; i++) {
+				alice.expectContaining("+ user" + i + "\t");
+			}
+			for (TestClient other : others) {
+				other.send("QUIT");
+			}
+			String left = alice.expectContaining("have left the chat.");
+			for (int i = 0; i < 5; i++) {
+				assertTrue(left.contains("user" + i), left);
+			}
+			for (TestClient other : others) {
+				other.close();
+			}
+			alice.send("/roster");
+			alice.expectContaining("Coordinator Online Users (version");
+		} finally {
+			server.closeServerSocket();
+		}
+	}
+
+	@Test
+	void testClusterRelaysMessagesAndSharesCoordinator() throws Exception {
+		int clusterPort;
+		try (ServerSocket probe = new ServerSocket(0)) {
+			clusterPort = probe.getLocalPort();
+		}
+		Server first = start("--node-id=a", "--cluster-port=" + clusterPort, "--cluster-secret=s3cret");
+		Server second = start("--node-id=b", "--peers=localhost:" + clusterPort, "--cluster-secret=s3cret");
+		try {
+			awaitPeers(first);
+			awaitPeers(second);
+			try (TestClient bob = new TestClient(second, "bob")) {
+				bob.expect("You are now the coordinator.");
+				try (TestClient alice = new TestClient(first, "alice")) {
+					// Node a has the lower id, so its coordinator takes over.
+					alice.expect("You are now the coordinator.");
+					bob.expect("The current coordinator is alice");
+					bob.expect("SERVER: alice has entered the chat!");
+
+					// A tab in the text must survive the tab-separated link.
+					bob.send("/private alice hi\tfrom b");
+					alice.expect("PRIVATE:bob:hi\tfrom b");
+					alice.send("hello everyone");
+					alice.expect("alice: hello everyone");
+					bob.expect("alice: hello everyone");
+
+					alice.send("/roster");
+					alice.expect("bob\tb\t-\t-");
+					alice.send("QUIT");
+				}
+				bob.expect("You are now the coordinator.");
+			}
+		} finally {
+			first.closeServerSocket();
+			second.closeServerSocket();
+		}
+	}
+
+	@Test
+	void testCompressedConnection() throws Exception {
+		for (String mode : new String[] { "blocking", "nio" }) {
+			Server server = start("--mode=" + mode, "--compression-threshold=32");
+			RecordingListener listener = new RecordingListener();
+			BlockingQueue<String> received = listener.lines;
+			try (ChatClient alice = ChatClient.connect("localhost", server.getPort(), "alice", listener, true)) {
+				assertTrue(alice.isCompressed());
+				Thread reader = new Thread(alice);
+				reader.setDaemon(true);
+				reader.start();
+				String repeated = "the quick brown fox jumps over the lazy dog ".repeat(200);
+				alice.send("hi");
+				alice.send(repeated);
+				alice.sendPrivate("alice", "note to self");
+				assertEquals("You are now the coordinator.", poll(received, "coordinator"));
+				// The roster and join notice may arrive anywhere among these.
+				Predicate<String> chat = line -> line.startsWith("alice:") || line.startsWith("PRIVATE:");
+				assertEquals("alice: hi", poll(received, "broadcast", chat));
+				assertEquals("alice: " + repeated, poll(received, "long broadcast", chat));
+				assertEquals("PRIVATE:alice:note to self", poll(received, "private message", chat));
+				assertTrue(server.getMetrics().getCompressedOut() * 4 < server.getMetrics().getCompressedIn(),
+						mode + ": " + server.getMetrics().getCompressedOut() + " of " + server.getMetrics().getCompressedIn());
+			} finally {
+				server.closeServerSocket();
+			}
+		}
+	}
+
+	@Test
+	void testSessionResumeReplaysOnlyMissedLines() throws Exception {
+		for (String mode : new String[] { "blocking", "nio" }) {
+			Server server = start("--mode=" + mode, "--session-grace=1", "--presence-window=0.05");
+			RecordingListener listener = new RecordingListener();
+			BlockingQueue<String> received = listener.lines;
+			Predicate<String> chat = line -> line.startsWith("bob:") || line.startsWith("PRIVATE:");
+			boolean compress = mode.equals("nio");
+			try (TestClient bob = new TestClient(server, "bob")) {
+				bob.expect("You are now the coordinator.");
+				ChatClient alice = ChatClient.connect("localhost", server.getPort(), "alice", listener, compress, true);
+				assertNotNull(alice.getSessionToken());
+				assertFalse(alice.isResumed());
+				new Thread(alice).start();
+				bob.expectPresence("alice", "entered the chat!");
+				bob.send("one");
+				assertEquals("bob: one", poll(received, "broadcast", chat));
+
+				// Drop the connection; the server keeps alice online and her output.
+				alice.close();
+				awaitSuspended(server, "alice");
+				bob.send("two");
+				bob.send("/private alice three");
+				bob.expect("bob: two");
+				Thread.sleep(200);
+				ChatClient resumed = ChatClient.resume("localhost", server.getPort(), alice);
+				assertTrue(resumed.isResumed(), mode);
+				assertEquals(alice.getSessionToken(), resumed.getSessionToken());
+				new Thread(resumed).start();
+				assertEquals("bob: two", poll(received, "missed broadcast", chat));
+				assertEquals("PRIVATE:bob:three", poll(received, "missed private message", chat));
+				resumed.send("back");
+				bob.expectWithout("alice: back", line -> line.startsWith("SERVER: ") && line.contains("alice"));
+				bob.send("four");
+				assertEquals("bob: four", poll(received, "broadcast after resume", chat));
+				assertEquals(1, server.getMetrics().getSessionsResumed());
+				assertEquals(Set.of("alice", "bob"), server.getClientHandlers().keySet());
+
+				// Past the grace period the user is gone and a resume starts afresh.
+				resumed.close();
+				bob.expectPresence("alice", "has been disconnected due to an error.");
+				assertEquals(1, server.getMetrics().getSessionsExpired());
+				try (ChatClient late = ChatClient.resume("localhost", server.getPort(), resumed)) {
+					assertFalse(late.isResumed());
+					assertNotNull(late.getSessionToken());
+					assertNotEquals(resumed.getSessionToken(), late.getSessionToken());
+				}
+			} finally {
+				server.closeServerSocket();
+			}
+		}
+	}
+
+	@Test
+	void testResumeWhileOldConnectionStillHasQueuedOutput() throws Exception {
+		for (String mode : new String[] { "blocking", "nio" }) {
+			// More than the socket buffers hold, so some is still queued when alice resumes.
+			Server server = start("--mode=" + mode, "--session-grace=5", "--session-buffer-kb=16384",
+					"--outbound-queue=10000", "--outbound-high-water-kb=32768");
+			String filler = " " + "y".repeat(4000);
+			int count = 2000;
+			try (TestClient bob = new TestClient(server, "bob")) {
+				bob.expect("You are now the coordinator.");
+				// Never read, so alice's output backs up in the server's queue.
+				Socket stalled = new Socket();
+				stalled.setReceiveBufferSize(4096);
+				stalled.connect(new InetSocketAddress("localhost", server.getPort()));
+				RecordingListener listener = new RecordingListener();
+				ChatClient alice = new ChatClient(stalled, "alice", listener, false, true);
+				bob.expectPresence("alice", "entered the chat!");
+				ClientHandler old = server.getClientHandlers().get("alice");
+				for (int i = 0; i < count; i++) {
+					bob.send("m" + i + filler);
+				}
+				for (int i = 0; i < 100 && old.getOutboundDepth() == 0; i++) {
+					Thread.sleep(50);
+				}
+				assertTrue(old.getOutboundDepth() > 0, mode + ": nothing queued");
+
+				// Resumed while the old connection may still be writing.
+				ChatClient resumed = ChatClient.resume("localhost", server.getPort(), alice);
+				assertTrue(resumed.isResumed(), mode);
+				new Thread(resumed).start();
+				Predicate<String> chat = line -> line.startsWith("bob: ");
+				for (int i = 0; i < count; i++) {
+					assertEquals("bob: m" + i + filler, poll(listener.lines, mode + " message " + i, chat));
+				}
+				bob.send("after");
+				assertEquals("bob: after", poll(listener.lines, mode + " message after resume", chat));
+				resumed.close();
+				alice.close();
+			} finally {
+				server.closeServerSocket();
+			}
+		}
+	}
+
+	private static void awaitSuspended(Server server, String username) throws InterruptedException {
+		for (int i = 0; i < 100; i++) {
+			ClientHandler clientHandler = server.getClientHandlers().get(username);
+			if (clientHandler != null && clientHandler.isSuspended()) {
+				return;
+			}
+			Thread.sleep(50);
+		}
+		fail(username + " was not suspended");
+	}
+
+	@Test
+	void testSilentHandshakeDoesNotHoldUpAccepting() throws Exception {
+		for (String mode : new String[] { "blocking", "nio" }) {
+			Server server = start("--mode=" + mode, "--acceptors=2", "--handshake-timeout=1");
+			try (Socket silent = new Socket("localhost", server.getPort())) {
+				silent.setSoTimeout(5000);
+				long started = System.nanoTime();
+				try (TestClient alice = new TestClient(server, "alice")) {
+					alice.expect("You are now the coordinator.");
+					assertTrue(System.nanoTime() - started < TimeUnit.MILLISECONDS.toNanos(500),
+							mode + ": login waited behind a silent connection");
+				}
+				// The silent connection is dropped once the timeout is up.
+				assertEquals(-1, silent.getInputStream().read());
+				assertTrue(System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(900), mode);
+				assertEquals(1, server.getMetrics().getHandshakeTimeouts());
+
+				// A byte now and then does not stretch the deadline.
+				try (Socket trickle = new Socket("localhost", server.getPort())) {
+					trickle.setSoTimeout(300);
+					long trickleStarted = System.nanoTime();
+					boolean dropped = false;
+					while (!dropped && System.nanoTime() - trickleStarted < TimeUnit.SECONDS.toNanos(4)) {
+						try {
+							trickle.getOutputStream().write('x');
+							dropped = trickle.getInputStream().read() == -1;
+						} catch (SocketTimeoutException e) {
+							// Still open; send another byte.
+						} catch (IOException e) {
+							dropped = true;
+						}
+					}
+					long took = System.nanoTime() - trickleStarted;
+					assertTrue(dropped && took < TimeUnit.MILLISECONDS.toNanos(2500), mode + ": took " + took / 1_000_000 + " ms");
+					assertEquals(2, server.getMetrics().getHandshakeTimeouts());
+				}
+
+				// Logins spread over both acceptors all complete.
+				List<TestClient> clients = new ArrayList<>();
+				try {
+					for (int i = 0; i < 20; i++) {
+						clients.add(new TestClient(server, "user" + i));
+					}
+					awaitClients(server, 20);
+				} finally {
+					for (TestClient client : clients) {
+						client.close();
+					}
+				}
+			} finally {
+				server.closeServerSocket();
+			}
+		}
+	}
+
+	@Test
+	void testHeartbeatsEvictSilentClientsOnly() throws Exception {
+		assertEquals(0, ServerConfig.fromArgs(new String[0]).getHeartbeatIntervalMillis(), "heartbeats are opt-in");
+		Server server = start("--heartbeat=0.2", "--idle-timeout=0.6");
+		try (TestClient silent = new TestClient(server, "silent")) {
+			silent.expect("You are now the coordinator.");
+			ChatClient answering = ChatClient.connect("localhost", server.getPort(), "answering", new RecordingListener());
+			// The reader thread answers every PING.
+			new Thread(answering).start();
+			awaitClients(server, 2);
+			awaitClients(server, 1);
+			assertTrue(server.getClientHandlers().containsKey("answering"));
+			Thread.sleep(1500);
+			assertEquals(Set.of("answering"), server.getClientHandlers().keySet());
+			answering.quit();
+		} finally {
+			server.closeServerSocket();
+		}
+	}
+
+	@Test
+	void testBinaryAndTextClientsShareAServer() throws Exception {
+		for (String mode : new String[] { "blocking", "nio" }) {
+			Server server = start("--mode=" + mode);
+			try (BinaryClient binary = new BinaryClient(server.getPort(), "bin")) {
+				byte[] hello = binary.expect(Frame.HELLO);
+				assertEquals(server.getClientHandlers().get("bin").getClientId(), Frame.intAt(hello, 1), mode);
+				assertEquals("bin", BinaryClient.payload(hello), mode);
+				try (TestClient text = new TestClient(server, "txt")) {
+					text.expect("The current coordinator is bin");
+
+					text.send("from text");
+					byte[] broadcast = binary.expect(Frame.BROADCAST);
+					assertEquals("from text", BinaryClient.payload(broadcast), mode);
+					assertEquals(server.getClientHandlers().get("txt").getClientId(), Frame.intAt(broadcast, 1), mode);
+
+					binary.send(Frame.BROADCAST, 0, "from binary");
+					text.expect("bin: from binary");
+
+					binary.send(Frame.USER, 0, "txt");
+					int textId = Frame.intAt(binary.expect(Frame.USER), 1);
+					binary.send(Frame.PRIVATE, textId, "just for you");
+					text.expect("PRIVATE:bin:just for you");
+
+					// A frame dribbled out in pieces, split inside the header and the payload.
+					byte[] frame = Frame.encodeBytes(Frame.BROADCAST, 0, 0, "in pieces".getBytes(StandardCharsets.UTF_8), 0, 9);
+					for (int[] piece : new int[][] { { 0, 3 }, { 3, 11 }, { 11, 16 }, { 16, frame.length } }) {
+						binary.out.write(frame, piece[0], piece[1] - piece[0]);
+						binary.out.flush();
+						Thread.sleep(50);
+					}
+					text.expect("bin: in pieces");
+
+					// A length prefix past the limit drops the connection rather than allocating it.
+					binary.out.write(ByteBuffer.allocate(Frame.HEADER_LENGTH).put(Frame.BROADCAST).putInt(0).putInt(0)
+							.putInt(Frame.MAX_PAYLOAD + 1).array());
+					binary.out.flush();
+					binary.expectClosed();
+					awaitClients(server, 1);
+					text.send("still here");
+					text.expect("txt: still here");
+				}
+			} finally {
+				server.closeServerSocket();
+			}
+		}
+	}
+
+	@Test
+	void testEventLoopSurvivesFailingTasksAndTimers() throws Exception {
+		EventLoop loop = new EventLoop();
+		loop.start("test-loop");
+		try {
+			BlockingQueue<String> ran = new LinkedBlockingQueue<>();
+			loop.execute(() -> {
+				throw new IllegalStateException("task");
+			});
+			loop.execute(() -> ran.add("after task"));
+			loop.schedule(() -> {
+				throw new IllegalStateException("timer");
+			}, TimeUnit.MILLISECONDS.toNanos(10));
+			loop.schedule(() -> ran.add("after timer"), TimeUnit.MILLISECONDS.toNanos(20));
+			assertEquals("after task", poll(ran, "task"));
+			assertEquals("after timer", poll(ran, "timer"));
+		} finally {
+			loop.shutdown();
+		}
+	}
+
+	@Test
+	void testLoadGeneratorReportsEveryDelivery() throws Exception {
+		int port;
+		try (ServerSocket probe = new ServerSocket(0)) {
+			port = probe.getLocalPort();
+		}
+		PrintStream original = System.out;
+		ByteArrayOutputStream captured = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(captured, true, StandardCharsets.UTF_8));
+		try {
+			// The warmup covers users the server is still registering; only later messages are counted.
+			LoadGenerator.main(new String[] { "--server-mode=nio", "--port=" + port, "--users=4", "--rate=20",
+					"--private-ratio=0.5", "--warmup=1", "--duration=1" });
+		} finally {
+			System.setOut(original);
+		}
+		String report = captured.toString(StandardCharsets.UTF_8);
+		Matcher sent = Pattern.compile("Sent: (\\d+) broadcast, (\\d+) private .*, 0 send errors").matcher(report);
+		assertTrue(sent.find(), report);
+		long broadcasts = Long.parseLong(sent.group(1));
+		long privates = Long.parseLong(sent.group(2));
+		assertEquals(20, broadcasts + privates, report);
+		// Every user, the sender included, receives each broadcast.
+		assertTrue(report.contains("Delivered: " + broadcasts * 4 + " of " + broadcasts * 4 + " broadcast, "
+				+ privates + " of " + privates + " private"), report);
+		assertFalse(report.contains("Missing:"), report);
+	}
+
+	@Test
+	void testMalformedFileOfferIsIgnored() throws Exception {
+		try (ServerSocket fake = new ServerSocket(0)) {
+			RecordingListener listener = new RecordingListener();
+			ChatClient client = ChatClient.connect("localhost", fake.getLocalPort(), "alice", listener);
+			try (Socket server = fake.accept()) {
+				new Thread(client).start();
+				PrintWriter out = new PrintWriter(new OutputStreamWriter(server.getOutputStream(), StandardCharsets.UTF_8), true);
+				out.println(FileRelay.OFFER + " 7 not-a-port bob 12 notes.txt");
+				out.println(FileRelay.OFFER + " 8 7005 bob twelve notes.txt");
+				out.println("still reading");
+				assertEquals("still reading", poll(listener.lines, "line after the bad offers"));
+				assertTrue(listener.offers.isEmpty(), "malformed offer was passed on");
+			} finally {
+				client.close();
+			}
+		}
+	}
+
+	@Test
+	void testScrollbackEvictsTheOldestLines() throws Exception {
+		ChatScrollback scrollback = new ChatScrollback(100);
+		List<String> changes = new ArrayList<>();
+		scrollback.addListDataListener(new ListDataListener() {
+			@Override
+			public void intervalAdded(ListDataEvent e) {
+				changes.add("added " + e.getIndex0() + "-" + e.getIndex1());
+			}
+
+			@Override
+			public void intervalRemoved(ListDataEvent e) {
+				changes.add("removed " + e.getIndex0() + "-" + e.getIndex1());
+			}
+
+			@Override
+			public void contentsChanged(ListDataEvent e) {
+				changes.add("changed");
+			}
+		});
+		SwingUtilities.invokeAndWait(() -> {
+			scrollback.createView();
+			post(scrollback, 0, 60);
+			scrollback.flush();
+			post(scrollback, 60, 120);
+			scrollback.flush();
+		});
+		assertEquals(List.of("added 0-59", "removed 0-19", "added 40-99"), changes);
+		assertEquals(100, scrollback.getSize());
+		assertEquals("line 20", scrollback.getElementAt(0));
+		assertEquals("line 119", scrollback.getElementAt(99));
+
+		// More than the scrollback holds between two frames keeps only the newest.
+		SwingUtilities.invokeAndWait(() -> {
+			post(scrollback, 120, 370);
+			scrollback.flush();
+		});
+		assertEquals(100, scrollback.getSize());
+		assertEquals("line 270", scrollback.getElementAt(0));
+		assertEquals("line 369", scrollback.getElementAt(99));
+	}
+
+	private static void post(ChatScrollback scrollback, int from, int to) {
+		for (int i = from; i < to; i++) {
+			scrollback.post("line " + i);
+		}
+	}
+
+	@Test
+	void testAsyncSendsArriveInOrder() throws Exception {
+		Server server = start();
+		try (TestClient bob = new TestClient(server, "bob")) {
+			bob.expect("You are now the coordinator.");
+			ChatClient alice = ChatClient.connect("localhost", server.getPort(), "alice", new RecordingListener());
+			List<CompletableFuture<Void>> sent = new ArrayList<>();
+			for (int i = 0; i < 200; i++) {
+				sent.add(alice.sendAsync("/private bob message " + i));
+			}
+			CompletableFuture.allOf(sent.toArray(new CompletableFuture[0])).get(5, TimeUnit.SECONDS);
+			for (int i = 0; i < 200; i++) {
+				bob.expect("PRIVATE:alice:message " + i);
+			}
+			alice.quit();
+			assertTrue(alice.sendAsync("too late").isCompletedExceptionally());
+		} finally {
+			server.closeServerSocket();
+		}
+	}
+
+	@Test
+	void testBurstsAreCoalescedAndQuietWritesAreNot() throws Exception {
+		for (String mode : new String[] { "blocking", "nio" }) {
+			Server server = start("--mode=" + mode, "--coalesce-window-ms=200");
+			try (TestClient alice = new TestClient(server, "alice")) {
+				alice.expect("You are now the coordinator.");
+				alice.expectPresence("alice", "entered the chat!");
+				Thread.sleep(300);
+
+				// After a quiet spell the first message is not held for the window.
+				long started = System.nanoTime();
+				server.broadcast(ChatMessage.fromText(Frame.BROADCAST, 0, "server", 0, "first"));
+				alice.expect("server: first");
+				long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+				assertTrue(elapsed < 150, mode + ": first message took " + elapsed + " ms");
+
+				long writesBefore = server.getMetrics().getSocketWrites();
+				for (int i = 0; i < 200; i++) {
+					server.broadcast(ChatMessage.fromText(Frame.BROADCAST, 0, "server", 0, "m" + i));
+				}
+				for (int i = 0; i < 200; i++) {
+					alice.expect("server: m" + i);
+				}
+				long writes = server.getMetrics().getSocketWrites() - writesBefore;
+				// A gathering write takes at most 64 buffers.
+				assertTrue(writes < 10, mode + ": a burst of 200 took " + writes + " writes");
+			} finally {
+				server.closeServerSocket();
+			}
+		}
+	}
+
+	@Test
+	void testFileRelayResumesBothWaysAndKeepsHeapFlat(@TempDir Path directory) throws Exception {
+		Path source = directory.resolve("big.bin");
+		long size = 64L * 1024 * 1024;
+		try (FileChannel out = FileChannel.open(source, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			byte[] block = new byte[1024 * 1024];
+			Random random = new Random(42);
+			for (long written = 0; written < size; written += block.length) {
+				random.nextBytes(block);
+				out.write(ByteBuffer.wrap(block));
+			}
+		}
+		Server server = start("--file-spool=" + directory.resolve("spool"));
+		RecordingListener bobListener = new RecordingListener();
+		try (TestClient alice = new TestClient(server, "alice")) {
+			ChatClient bob = ChatClient.connect("localhost", server.getPort(), "bob", bobListener);
+			new Thread(bob).start();
+			awaitClients(server, 2);
+
+			alice.send("/send bob " + size + " big.bin");
+			String[] upload = alice.expectContaining(FileRelay.UPLOAD + " ").split(" ");
+			InetSocketAddress relay = new InetSocketAddress("localhost", Integer.parseInt(upload[3]));
+			long heapBefore = usedHeap();
+			long half = size / 2;
+			try (SocketChannel channel = SocketChannel.open(relay);
+					FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+				FileRelay.writeLine(channel, "PUT " + upload[2]);
+				assertEquals("0", FileRelay.readLine(channel));
+				for (long sent = 0; sent < half;) {
+					sent += in.transferTo(sent, half - sent, channel);
+				}
+			}
+			try (SocketChannel channel = SocketChannel.open(relay);
+					FileChannel in = FileChannel.open(source, StandardOpenOption.READ)) {
+				// The dropped upload carries on from what the server kept, which
+				// may be short of what was sent if the connection was cut mid-read.
+				FileRelay.writeLine(channel, "PUT " + upload[2]);
+				long kept = Long.parseLong(FileRelay.readLine(channel));
+				assertTrue(kept <= half, "kept " + kept);
+				alice.send("/transfers");
+				alice.expect("SERVER: big.bin to bob: " + kept * 100 / size + "% uploaded, 0% received");
+				alice.send("chat goes on meanwhile");
+				assertEquals("alice: chat goes on meanwhile", pollUntil(bobListener.lines, line -> line.startsWith("alice:")));
+				for (long sent = kept; sent < size;) {
+					sent += in.transferTo(sent, size - sent, channel);
+				}
+				assertEquals(Long.toString(size), FileRelay.readLine(channel));
+			}
+
+			ChatClient.FileOffer offer = bobListener.offers.poll(5, TimeUnit.SECONDS);
+			assertNotNull(offer, "no offer for bob");
+			assertEquals("alice", offer.sender);
+			assertEquals(size, offer.size);
+			alice.expect("SERVER: big.bin is uploaded; bob has been offered it.");
+
+			// A quarter already downloaded by this transfer is not fetched again.
+			Path target = directory.resolve("received.bin");
+			Path partial = ChatClient.partialFile(offer, target);
+			long quarter = size / 4;
+			try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+					FileChannel out = FileChannel.open(partial, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+				in.transferTo(0, quarter, out);
+			}
+			AtomicLong firstProgress = new AtomicLong(-1);
+			bob.receiveFile(offer, target, bytes -> firstProgress.compareAndSet(-1, bytes)).get(30, TimeUnit.SECONDS);
+			assertTrue(firstProgress.get() > quarter && firstProgress.get() <= quarter + FileRelay.CHUNK);
+			assertEquals(-1, Files.mismatch(source, target));
+			assertFalse(Files.exists(partial));
+			alice.expect("SERVER: bob has received big.bin.");
+			try (Stream<Path> spooled = Files.list(directory.resolve("spool"))) {
+				assertEquals(0, spooled.count(), "spool file kept after the download");
+			}
+
+			long grown = usedHeap() - heapBefore;
+			assertTrue(grown < 8 * 1024 * 1024, "heap grew by " + grown + " bytes relaying " + size);
+			bob.quit();
+		} finally {
+			server.closeServerSocket();
+		}
+	}
+
+	@Test
+	void testAdminEndpointReportsTraffic() throws Exception {
+		int adminPort;
+		try (ServerSocket probe = new ServerSocket(0)) {
+			adminPort = probe.getLocalPort();
+		}
+		Server server = start("--admin-port=" + adminPort);
+		try (TestClient alice = new TestClient(server, "alice");
+				TestClient bob = new TestClient(server, "bob")) {
+			bob.expect("The current coordinator is alice");
+			for (int i = 0; i < 10; i++) {
+				alice.send("m" + i);
+			}
+			for (int i = 0; i < 5; i++) {
+				alice.send("/private bob p" + i);
+			}
+			for (int i = 0; i < 10; i++) {
+				bob.expect("alice: m" + i);
+			}
+			for (int i = 0; i < 5; i++) {
+				bob.expect("PRIVATE:alice:p" + i);
+			}
+
+			// Latency is recorded once the write completes, which may trail the reader slightly.
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+			Map<String, String> report;
+			while (count(report = adminReport(adminPort), "private latency") < 5) {
+				assertTrue(System.nanoTime() < deadline, "private latency never reached 5: " + report);
+				Thread.sleep(50);
+			}
+			assertEquals("2", report.get("clients"), report.toString());
+			assertTrue(count(report, "messages in") >= 15, report.toString());
+			// Each broadcast went out twice.
+			assertTrue(count(report, "messages out") >= 25, report.toString());
+			assertTrue(count(report, "broadcast latency") >= 10, report.toString());
+			assertEquals("n=0", report.get("room latency"), report.toString());
+			assertTrue(report.get("broadcast latency").matches("n=\\d+ mean=\\d+us p50=\\d+us p99=\\d+us p999=\\d+us max=\\d+us"),
+					report.toString());
+		} finally {
+			server.closeServerSocket();
+		}
+	}
+
+	/** Reads the admin endpoint's report as name to value, one entry per tab-separated line. */
+	private static Map<String, String> adminReport(int port) throws IOException {
+		Map<String, String> report = new HashMap<>();
+		try (Socket socket = new Socket("localhost", port)) {
+			socket.setSoTimeout(5000);
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] parts = line.split("\t", 2);
+				if (parts.length == 2) {
+					report.put(parts[0], parts[1]);
+				}
+			}
+		}
+		return report;
+	}
+
+	// The leading count of a report value such as "25 (3.1/s)" or "n=5 mean=...".
+	private static long count(Map<String, String> report, String name) {
+		String value = report.get(name);
+		assertNotNull(value, "no " + name + " in " + report);
+		Matcher matcher = Pattern.compile("^(?:n=)?(\\d+)").matcher(value);
+		assertTrue(matcher.find(), name + ": " + value);
+		return Long.parseLong(matcher.group(1));
 	}
 
 	@Test
-	void testStartServer() {
-		fail("Not yet implemented");
+	void testRateLimitActions() throws Exception {
+		Server server = start("--broadcast-limit=1:3", "--rate-limit-action=reject");
+		try (TestClient alice = new TestClient(server, "alice")) {
+			alice.expect("You are now the coordinator.");
+			for (int i = 0; i < 6; i++) {
+				alice.send("m" + i);
+			}
+			// Private messages have a bucket of their own.
+			alice.send("/private alice still allowed");
+			alice.expect("alice: m2");
+			alice.expectContaining("sending too fast");
+			alice.expect("PRIVATE:alice:still allowed");
+			assertEquals(3, server.getMetrics().getRejectedMessages());
+		} finally {
+			server.closeServerSocket();
+		}
+
+		for (String mode : new String[] { "blocking", "nio" }) {
+			server = start("--mode=" + mode, "--broadcast-limit=20:1");
+			try (TestClient alice = new TestClient(server, "alice")) {
+				alice.expect("You are now the coordinator.");
+				long started = System.nanoTime();
+				for (int i = 0; i < 10; i++) {
+					alice.send("m" + i);
+				}
+				for (int i = 0; i < 10; i++) {
+					alice.expect("alice: m" + i);
+				}
+				long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+				assertTrue(elapsed >= 400, mode + ": ten messages at 20/s took " + elapsed + " ms");
+				assertTrue(server.getMetrics().getDelayedMessages() > 0, mode);
+			} finally {
+				server.closeServerSocket();
+			}
+		}
+
+		server = start("--mode=nio", "--command-limit=1:1", "--rate-limit-action=disconnect");
+		try (TestClient alice = new TestClient(server, "alice")) {
+			alice.expect("You are now the coordinator.");
+			alice.send("/rooms");
+			alice.send("/rooms");
+			alice.expect("SERVER: Disconnected for sending too fast.");
+			awaitClients(server, 0);
+			assertEquals(1, server.getMetrics().getFloodDisconnects());
+		} finally {
+			server.closeServerSocket();
+		}
 	}
 
 	@Test
-	void testAddClient() {
-		fail("Not yet implemented");
+	void testJournalRollsTrimsAndRecoversFromTornWrites(@TempDir Path directory) throws Exception {
+		int segmentSize = 4096;
+		int count = 500;
+		MessageJournal journal = new MessageJournal(directory, segmentSize, 3 * segmentSize);
+		journal.start();
+		for (int i = 0; i < count; i++) {
+			journal.append(ChatMessage.fromText(Frame.BROADCAST, 0, "alice", 0, "message " + i), null);
+		}
+		awaitJournal(journal, count);
+		List<Path> segments = segments(directory);
+		assertEquals(3, segments.size(), "oldest segments were not trimmed");
+		long first = journal.getFirstSeq();
+		assertEquals(first, Long.parseLong(segments.get(0).getFileName().toString().replace(".log", "")));
+		List<MessageJournal.Record> records = new ArrayList<>();
+		journal.replay(first, records::add);
+		assertEquals(count - first + 1, records.size());
+		for (int i = 0; i < records.size(); i++) {
+			assertEquals(first + i, records.get(i).seq);
+			assertEquals("message " + (first + i - 1), records.get(i).body);
+		}
+		journal.close();
+
+		// A record whose sequence number does not follow on, as a torn write can leave.
+		Path newest = segments.get(segments.size() - 1);
+		int end = endOfLog(newest);
+		try (FileChannel channel = FileChannel.open(newest, StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.allocate(12).putInt(40).putLong(count + 7).flip(), end);
+		}
+		journal = new MessageJournal(directory, segmentSize, 3 * segmentSize);
+		assertEquals(count, journal.getLastSeq());
+		journal.start();
+		journal.append(ChatMessage.fromText(Frame.BROADCAST, 0, "alice", 0, "after the first crash"), null);
+		awaitJournal(journal, count + 1);
+		journal.close();
+
+		// A length prefix that runs past the end of the segment.
+		newest = segments(directory).get(2);
+		end = endOfLog(newest);
+		try (FileChannel channel = FileChannel.open(newest, StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.allocate(12).putInt(segmentSize).putLong(count + 2).flip(), end);
+		}
+		journal = new MessageJournal(directory, segmentSize, 3 * segmentSize);
+		assertEquals(count + 1, journal.getLastSeq());
+		journal.start();
+		journal.append(ChatMessage.fromText(Frame.BROADCAST, 0, "alice", 0, "after the second crash"), null);
+		awaitJournal(journal, count + 2);
+		records.clear();
+		journal.replay(count, records::add);
+		assertEquals(List.of("message " + (count - 1), "after the first crash", "after the second crash"),
+				records.stream().map(record -> record.body).collect(Collectors.toList()));
+		journal.close();
 	}
 
 	@Test
-	void testSendPrivateMessage() {
-		fail("Not yet implemented");
+	void testHistoryIsReplayedOnJoin(@TempDir Path directory) throws Exception {
+		for (String mode : new String[] { "blocking", "nio" }) {
+			Server server = start("--mode=" + mode, "--journal=" + directory.resolve(mode), "--history-on-join=3");
+			try (TestClient alice = new TestClient(server, "alice");
+					TestClient carol = new TestClient(server, "carol")) {
+				carol.expect("The current coordinator is alice");
+				for (int i = 0; i < 5; i++) {
+					alice.send("m" + i);
+				}
+				// Newer than the broadcasts, but not for bob to see.
+				for (int i = 0; i < 20; i++) {
+					alice.send("/private carol secret " + i);
+				}
+				carol.expect("PRIVATE:alice:secret 19");
+				Thread.sleep(300);
+				try (TestClient bob = new TestClient(server, "bob")) {
+					for (int i = 2; i < 5; i++) {
+						assertTrue(bob.expectContaining("alice: m" + i).startsWith("HISTORY #"), mode);
+					}
+					bob.send("after");
+					assertFalse(bob.expectContaining("bob: after").contains("secret"), mode);
+					bob.send("/history since 1");
+					for (int i = 0; i < 5; i++) {
+						assertTrue(bob.expectContaining("alice: m" + i).startsWith("HISTORY #"), mode);
+					}
+				}
+			} finally {
+				server.closeServerSocket();
+			}
+		}
+	}
+
+	private static void awaitJournal(MessageJournal journal, long seq) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (journal.getLastSeq() < seq) {
+			assertTrue(System.nanoTime() < deadline, "journal stopped at " + journal.getLastSeq());
+			Thread.sleep(10);
+		}
+	}
+
+	private static List<Path> segments(Path directory) throws IOException {
+		try (Stream<Path> files = Files.list(directory)) {
+			return files.filter(path -> path.toString().endsWith(".log")).sorted().collect(Collectors.toList());
+		}
+	}
+
+	// Offset of the first empty length prefix, where the next record would go.
+	private static int endOfLog(Path segment) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(segment));
+		int position = 0;
+		int length;
+		while ((length = buffer.getInt(position)) != 0) {
+			position += 4 + length;
+		}
+		return position;
 	}
 
 	@Test
-	void testRemoveClient() {
-		fail("Not yet implemented");
+	void testOfflineMessagesAreDeliveredOnRejoin(@TempDir Path directory) throws Exception {
+		Server server = start("--offline-store=" + directory);
+		try (TestClient alice = new TestClient(server, "alice")) {
+			alice.expect("You are now the coordinator.");
+			alice.send("/private bob first");
+			alice.expect("SERVER: bob is offline; your message will be delivered when they return.");
+			alice.send("/private bob second");
+			alice.expect("SERVER: bob is offline; your message will be delivered when they return.");
+			try (TestClient bob = new TestClient(server, "bob")) {
+				assertTrue(bob.expectContaining("first").startsWith("PRIVATE:alice:[sent "));
+				assertTrue(bob.expectContaining("second").startsWith("PRIVATE:alice:[sent "));
+				alice.send("/private bob third");
+				bob.expect("PRIVATE:alice:third");
+			}
+		} finally {
+			server.closeServerSocket();
+		}
+		try (Stream<Path> files = Files.list(directory)) {
+			assertEquals(0, files.count(), "delivered mailbox was not removed");
+		}
 	}
 
 	@Test
-	void testGetClientHandlers() {
-		fail("Not yet implemented");
+	void testOfflineStoreExpiresAndSkipsCorruptLines(@TempDir Path directory) throws Exception {
+		OfflineStore store = new OfflineStore(directory, 100, 200, 10);
+		assertTrue(store.store("alice", "bob", "stale"));
+		Thread.sleep(300);
+		assertTrue(store.store("alice", "carol", "fresh"));
+		store.evictExpired();
+		assertEquals("", store.drain("bob"));
+		assertTrue(store.drain("carol").endsWith("] fresh\n"));
+
+		// Mailboxes are named by the hex of the user name.
+		Path mailbox = directory.resolve("64617665.offline");
+		long now = System.currentTimeMillis();
+		Files.write(mailbox, List.of("not a timestamp\talice\tbroken", String.valueOf(now), now + "\talice",
+				now + "\talice\tintact"), StandardCharsets.UTF_8);
+		store = new OfflineStore(directory, 100, TimeUnit.HOURS.toMillis(1), 10);
+		String delivered = store.drain("dave");
+		assertTrue(delivered.startsWith("PRIVATE:alice:[sent ") && delivered.endsWith("] intact\n"), delivered);
+		assertEquals(1, delivered.split("\n").length, delivered);
 	}
 
 	@Test
-	void testGetCoordinator() {
-		fail("Not yet implemented");
+	void testSearchRanksVisibleMessagesInWindow() throws Exception {
+		Server server = start("--search-retention=5");
+		try (TestClient alice = new TestClient(server, "alice");
+				TestClient bob = new TestClient(server, "bob");
+				TestClient carol = new TestClient(server, "carol")) {
+			alice.send("the deploy went fine after lunch");
+			alice.send("deploy deploy");
+			alice.send("/private bob deploy key is in the vault");
+			carol.expect("alice: deploy deploy");
+			bob.expect("PRIVATE:alice:deploy key is in the vault");
+			// Indexing happens off the sending thread.
+			Thread.sleep(300);
+
+			carol.send("/search Deploy");
+			carol.expect("SERVER: 2 matches for \"Deploy\":");
+			assertTrue(carol.expectContaining("SEARCH #").endsWith("alice: deploy deploy"));
+			assertTrue(carol.expectContaining("SEARCH #").endsWith("alice: the deploy went fine after lunch"));
+			carol.send("/search vault");
+			carol.expect("SERVER: No recent messages match \"vault\".");
+			bob.send("/search vault deploy");
+			bob.expect("SERVER: 1 match for \"vault deploy\":");
+			assertTrue(bob.expectContaining("SEARCH #").endsWith("alice -> bob (private): deploy key is in the vault"));
+
+			// Three more messages push the oldest out of a window of five.
+			for (int i = 0; i < 3; i++) {
+				alice.send("filler " + i);
+			}
+			carol.expect("alice: filler 2");
+			Thread.sleep(300);
+			carol.send("/search lunch");
+			carol.expect("SERVER: No recent messages match \"lunch\".");
+			carol.send("/search deploy");
+			carol.expect("SERVER: 1 match for \"deploy\":");
+		} finally {
+			server.closeServerSocket();
+		}
 	}
 
 	@Test
-	void testCloseServerSocket() {
-		fail("Not yet implemented");
+	void testSlowConsumerPoliciesKeepHeapFlat() throws Exception {
+		int flood = 16 * 1024 * 1024;
+		byte[] line = ("x".repeat(1023) + "\n").getBytes(StandardCharsets.UTF_8);
+		for (String mode : new String[] { "blocking", "nio" }) {
+			for (String policy : new String[] { "drop", "disconnect", "pause" }) {
+				String run = mode + "/" + policy;
+				// A queue this long would hold the whole flood, so only the water marks bound it.
+				Server server = start("--mode=" + mode, "--slow-consumer=" + policy, "--outbound-queue=100000",
+						"--outbound-high-water-kb=64", "--outbound-low-water-kb=16");
+				SocketChannel slow = SocketChannel.open();
+				slow.setOption(StandardSocketOptions.SO_RCVBUF, 4096);
+				slow.connect(new InetSocketAddress("localhost", server.getPort()));
+				slow.write(StandardCharsets.UTF_8.encode("slow\n"));
+				awaitClients(server, 1);
+				ClientHandler handler = server.getClientHandlers().get("slow");
+				long heapBefore = usedHeap();
+				try {
+					// Every line is broadcast back to the sender, which never reads.
+					slow.configureBlocking(false);
+					long sent = write(slow, line, flood);
+					ServerMetrics metrics = server.getMetrics();
+					switch (policy) {
+						case "drop":
+							assertEquals(flood, sent, run);
+							assertTrue(metrics.getShedMessages() > 0, run);
+							server.sendPrivateMessage("server", "slow", "kept");
+							write(slow, line, 1024 * 1024);
+							assertTrue(handler.getOutboundBytes() < 4 * 64 * 1024, run + ": " + handler.getOutboundBytes());
+							break;
+						case "disconnect":
+							awaitClients(server, 0);
+							assertTrue(metrics.getSlowDisconnects() > 0, run);
+							break;
+						default:
+							assertTrue(sent < flood, run + ": the server kept reading");
+							assertTrue(metrics.getReadPauses() > 0, run);
+							assertTrue(handler.getOutboundBytes() < 4 * 64 * 1024, run + ": " + handler.getOutboundBytes());
+					}
+					long grown = usedHeap() - heapBefore;
+					assertTrue(grown < 8 * 1024 * 1024, run + ": heap grew by " + grown + " bytes");
+
+					if (policy.equals("drop")) {
+						// Shedding only takes broadcasts; the private message is still queued.
+						slow.configureBlocking(true);
+						slow.socket().setSoTimeout(5000);
+						BufferedReader in = new BufferedReader(new InputStreamReader(slow.socket().getInputStream(), StandardCharsets.UTF_8));
+						String received;
+						while ((received = in.readLine()) != null && !received.endsWith("kept")) {
+							// Surviving broadcasts.
+						}
+						assertNotNull(received, run + ": private message was shed");
+					} else if (policy.equals("pause")) {
+						// Once the client reads again the server resumes reading from it.
+						Selector selector = Selector.open();
+						slow.register(selector, SelectionKey.OP_READ);
+						Thread drainer = new Thread(() -> drain(selector));
+						drainer.setDaemon(true);
+						drainer.start();
+						try {
+							long rest = write(slow, line, flood - sent);
+							assertTrue(rest >= flood - sent, run + ": reading never resumed");
+						} finally {
+							selector.close();
+						}
+					}
+				} finally {
+					slow.close();
+					server.closeServerSocket();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes copies of line from a non-blocking channel until total bytes
+	 * are sent, the peer goes away, or nothing is accepted for a second.
+	 */
+	private static long write(SocketChannel channel, byte[] line, long total) throws InterruptedException {
+		ByteBuffer buffer = ByteBuffer.wrap(line);
+		long sent = 0;
+		long stalledSince = System.nanoTime();
+		try {
+			while (sent < total) {
+				int written = channel.write(buffer);
+				if (written > 0) {
+					sent += written;
+					stalledSince = System.nanoTime();
+				} else if (System.nanoTime() - stalledSince > TimeUnit.SECONDS.toNanos(1)) {
+					break;
+				} else {
+					Thread.sleep(5);
+				}
+				if (!buffer.hasRemaining()) {
+					buffer.rewind();
+				}
+			}
+		} catch (IOException e) {
+			// Disconnected by the server.
+		}
+		return sent;
+	}
+
+	private static String pollUntil(BlockingQueue<String> lines, Predicate<String> matcher) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		String line;
+		while ((line = lines.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) != null) {
+			if (matcher.test(line)) {
+				return line;
+			}
+		}
+		return fail("No matching line received");
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
 	}
 
 	@Test
-	void testMain() {
-		fail("Not yet implemented");
+	void testVirtualThreadModeStaysBounded() throws Exception {
+		assumeTrue(Runtime.version().feature() >= 21, "virtual threads need Java 21");
+		assumeTrue(Files.exists(Path.of("/proc/self/status")), "RSS is read from /proc");
+		int connections = Integer.getInteger("server.test.connections", 10_000);
+
+		ServerSocket serverSocket = new ServerSocket(0, connections);
+		Server server = new Server(serverSocket, ServerConfig.fromArgs(new String[] { "--mode=virtual" }));
+		new Thread(server::startServer).start();
+
+		// One selector thread drains every client so server writes never block on us.
+		Selector selector = Selector.open();
+		List<SocketChannel> clients = new ArrayList<>();
+		Thread drainer = new Thread(() -> drain(selector));
+		drainer.setDaemon(true);
+		drainer.start();
+
+		int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+		long rssBefore = residentSetKilobytes();
+		try {
+			for (int i = 0; i < connections; i++) {
+				SocketChannel client = SocketChannel.open(new InetSocketAddress("localhost", serverSocket.getLocalPort()));
+				client.write(StandardCharsets.UTF_8.encode("user" + i + "\n"));
+				client.configureBlocking(false);
+				clients.add(client);
+				client.register(selector, SelectionKey.OP_READ);
+			}
+			while (server.getClientHandlers().size() < connections) {
+				Thread.sleep(50);
+			}
+
+			int threadsAfter = ManagementFactory.getThreadMXBean().getThreadCount();
+			long rssAfter = residentSetKilobytes();
+			assertTrue(threadsAfter - threadsBefore < 100,
+					"platform threads grew from " + threadsBefore + " to " + threadsAfter);
+			assertTrue((rssAfter - rssBefore) / connections < 128,
+					"RSS grew by " + (rssAfter - rssBefore) + " KB for " + connections + " connections");
+		} finally {
+			for (SocketChannel client : clients) {
+				client.close();
+			}
+			selector.close();
+			server.closeServerSocket();
+		}
 	}
 
 	@Test
-	void testBroadcastMessage() {
-		fail("Not yet implemented");
+	void testVirtualModeFallsBackToPlatformThreadsBeforeJava21() throws Exception {
+		assumeTrue(Runtime.version().feature() < 21, "Java 21 runs testVirtualThreadModeStaysBounded instead");
+		ExecutorService executor = Server.newVirtualThreadExecutor();
+		try {
+			assertTrue(executor instanceof ThreadPoolExecutor, "expected a platform pool, got " + executor);
+			ThreadPoolExecutor pool = (ThreadPoolExecutor) executor;
+			assertEquals(0, pool.getCorePoolSize(), "not a cached pool");
+			assertEquals(Integer.MAX_VALUE, pool.getMaximumPoolSize(), "not a cached pool");
+		} finally {
+			executor.shutdown();
+		}
+
+		// Blocking in a monitor would pin a virtual thread to its carrier.
+		for (Method method : Server.class.getDeclaredMethods()) {
+			if (method.getName().equals("addClient") || method.getName().equals("removeClient")) {
+				assertFalse(Modifier.isSynchronized(method.getModifiers()), method + " is synchronized");
+			}
+		}
+		Server server = start("--mode=virtual");
+		try {
+			// Joins and leaves still go through while something else holds the server's monitor.
+			synchronized (server) {
+				try (TestClient alice = new TestClient(server, "alice");
+						TestClient bob = new TestClient(server, "bob")) {
+					bob.expect("The current coordinator is alice");
+					alice.send("QUIT");
+					awaitClients(server, 1);
+				}
+				awaitClients(server, 0);
+			}
+		} finally {
+			server.closeServerSocket();
+		}
+	}
+
+	private static void drain(Selector selector) {
+		ByteBuffer sink = ByteBuffer.allocate(64 * 1024);
+		try {
+			while (selector.isOpen()) {
+				selector.select(100);
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					sink.clear();
+					if (((SocketChannel) key.channel()).read(sink) < 0) {
+						key.cancel();
+					}
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			// Selector closed at the end of the test.
+		}
+	}
+
+	private static long residentSetKilobytes() throws IOException {
+		for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+			if (line.startsWith("VmRSS:")) {
+				return Long.parseLong(line.replaceAll("[^0-9]", ""));
+			}
+		}
+		throw new IOException("VmRSS not found");
+	}
+
+	private static void awaitClients(Server server, int count) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (server.getClientHandlers().size() != count) {
+			assertTrue(System.nanoTime() < deadline,
+					"expected " + count + " clients, have " + server.getClientHandlers().size());
+			Thread.sleep(20);
+		}
+	}
+
+	private static String poll(BlockingQueue<String> received, String what) throws InterruptedException {
+		String message = received.poll(5, TimeUnit.SECONDS);
+		assertNotNull(message, "no " + what + " received");
+		return message;
+	}
+
+	private static String poll(BlockingQueue<String> received, String what, Predicate<String> matcher)
+			throws InterruptedException {
+		String message;
+		while (!matcher.test(message = poll(received, what))) {
+			// Not what this check is about.
+		}
+		return message;
+	}
+
+	private static void awaitPeers(Server server) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (server.getCluster() == null || server.getCluster().getPeerCount() == 0) {
+			assertTrue(System.nanoTime() < deadline, "node never linked to its peer");
+			Thread.sleep(20);
+		}
+	}
+
+	private static Server start(String... args) throws IOException {
+		List<String> options = new ArrayList<>(Arrays.asList(args));
+		options.add(0, "--port=0");
+		ServerConfig config = ServerConfig.fromArgs(options.toArray(new String[0]));
+		Server server = new Server(Server.bind(config, 50), config);
+		Thread thread = new Thread(server::startServer);
+		thread.setDaemon(true);
+		thread.start();
+		return server;
+	}
+
+	/** Queues what a ChatClient hands it, private messages as the server sends them. */
+	private static final class RecordingListener implements ChatClient.Listener {
+		final BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+		final BlockingQueue<ChatClient.FileOffer> offers = new LinkedBlockingQueue<>();
+
+		@Override
+		public void onMessage(String message) {
+			lines.add(message);
+		}
+
+		@Override
+		public void onPrivateMessage(String senderUsername, String message) {
+			lines.add("PRIVATE:" + senderUsername + ":" + message);
+		}
+
+		@Override
+		public void onDisconnected() {
+		}
+
+		@Override
+		public void onFileOffered(ChatClient.FileOffer offer) {
+			offers.add(offer);
+		}
+	}
+
+	/** A binary-protocol client that reads frames with a timeout. */
+	private static final class BinaryClient implements AutoCloseable {
+		private final Socket socket;
+		private final DataInputStream in;
+		final DataOutputStream out;
+
+		BinaryClient(int port, String username) throws IOException {
+			socket = new Socket("localhost", port);
+			socket.setSoTimeout(5000);
+			socket.setTcpNoDelay(true);
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			out = new DataOutputStream(socket.getOutputStream());
+			out.write(Frame.MAGIC);
+			send(Frame.HELLO, 0, username);
+		}
+
+		void send(byte type, int targetId, String payload) throws IOException {
+			byte[] bytes = payload.getBytes(StandardCharsets.UTF_8);
+			out.write(Frame.encodeBytes(type, 0, targetId, bytes, 0, bytes.length));
+			out.flush();
+		}
+
+		/** Reads up to the next frame of the type, skipping notices and the like. */
+		byte[] expect(byte type) throws IOException {
+			byte[] frame;
+			while ((frame = Frame.read(in, new byte[Frame.HEADER_LENGTH])) != null) {
+				if (frame[0] == type) {
+					return frame;
+				}
+			}
+			return fail("Connection closed before a frame of type " + type);
+		}
+
+		void expectClosed() throws IOException {
+			try {
+				while (Frame.read(in, new byte[Frame.HEADER_LENGTH]) != null) {
+					// Whatever was already on its way.
+				}
+			} catch (SocketException e) {
+				// Reset rather than closed cleanly.
+			}
+		}
+
+		static String payload(byte[] frame) throws IOException {
+			return new String(frame, Frame.HEADER_LENGTH, Frame.payloadLength(frame, 0), StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public void close() throws IOException {
+			socket.close();
+		}
+	}
+
+	/** A line-protocol client that reads with a timeout, skipping heartbeats. */
+	private static final class TestClient implements AutoCloseable {
+		private final Socket socket;
+		private final BufferedReader in;
+		private final PrintWriter out;
+
+		/**
+		 * Connects and waits until the server has registered the user.
+		 * Handshakes run concurrently, so without this a client that
+		 * connects later could still log in first.
+		 */
+		TestClient(Server server, String username) throws IOException {
+			this(server.getPort(), username);
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+			while (!server.getClientHandlers().containsKey(username) && System.nanoTime() < deadline) {
+				try {
+					Thread.sleep(5);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while logging in", e);
+				}
+			}
+		}
+
+		TestClient(int port, String username) throws IOException {
+			socket = new Socket("localhost", port);
+			socket.setSoTimeout(5000);
+			in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+			out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+			send(username);
+		}
+
+		void send(String line) {
+			out.println(line);
+		}
+
+		void expect(String expected) throws IOException {
+			expectMatching(expected::equals, expected);
+		}
+
+		String expectContaining(String expected) throws IOException {
+			return expectMatching(line -> line.contains(expected), expected);
+		}
+
+		/** Presence notices are batched, so the user may share the line with others. */
+		void expectPresence(String username, String change) throws IOException {
+			expectMatching(line -> line.startsWith("SERVER: ") && line.endsWith(change)
+					&& Arrays.asList(line.substring(8).split(",? (and )?")).contains(username),
+					username + " " + change);
+		}
+
+		/** Reads up to the expected line, failing on any unwanted line before it. */
+		void expectWithout(String expected, Predicate<String> unwanted) throws IOException {
+			expectMatching(line -> {
+				assertFalse(unwanted.test(line), "Unexpected: " + line);
+				return line.equals(expected);
+			}, expected);
+		}
+
+		private String expectMatching(Predicate<String> matcher, String description) throws IOException {
+			List<String> seen = new ArrayList<>();
+			try {
+				String line;
+				while ((line = in.readLine()) != null) {
+					if (matcher.test(line)) {
+						return line;
+					}
+					seen.add(line);
+				}
+			} catch (SocketTimeoutException e) {
+				// Fall through to the failure below.
+			}
+			return fail("Did not receive \"" + description + "\", got " + seen);
+		}
+
+		@Override
+		public void close() throws IOException {
+			socket.close();
+		}
 	}
 
-}
+}
\ No newline at end of file
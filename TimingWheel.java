@@ -0,0 +1,98 @@
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel. Scheduling and expiry are O(1) regardless of how
+ * many timeouts are pending; deadlines are rounded up to the tick size.
+ * Expired items are handed to the callback on the wheel thread, which may
+ * schedule them again.
+ */
+public class TimingWheel<T> implements Runnable {
+    private static final class Timeout<T> {
+        final T item;
+        final long deadlineNanos;
+        long deadlineTick;
+
+        Timeout(T item, long deadlineNanos) {
+            this.item = item;
+            this.deadlineNanos = deadlineNanos;
+        }
+    }
+
+    private final long tickNanos;
+    private final ArrayDeque<Timeout<T>>[] slots;
+    private final int mask;
+    // Timeouts scheduled from other threads; moved into slots by the wheel thread.
+    private final ConcurrentLinkedQueue<Timeout<T>> incoming = new ConcurrentLinkedQueue<>();
+    private final Consumer<T> onExpiry;
+    private final long startNanos = System.nanoTime();
+    private long tick;
+    private volatile boolean running = true;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TimingWheel(long tickMillis, int wheelSize, Consumer<T> onExpiry) {
+        int size = Integer.highestOneBit(Math.max(2, wheelSize - 1)) << 1;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.slots = new ArrayDeque[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new ArrayDeque<>();
+        }
+        this.mask = size - 1;
+        this.onExpiry = onExpiry;
+    }
+
+    public void schedule(T item, long delayMillis) {
+        incoming.add(new Timeout<>(item, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis)));
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            long nextTickNanos = startNanos + (tick + 1) * tickNanos;
+            long sleepNanos = nextTickNanos - System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            transferIncoming();
+            expireSlot();
+            tick++;
+        }
+    }
+
+    private void transferIncoming() {
+        Timeout<T> timeout;
+        while ((timeout = incoming.poll()) != null) {
+            long deadlineTick = (timeout.deadlineNanos - startNanos + tickNanos - 1) / tickNanos;
+            timeout.deadlineTick = Math.max(deadlineTick, tick);
+            slots[(int) (timeout.deadlineTick & mask)].add(timeout);
+        }
+    }
+
+    private void expireSlot() {
+        Iterator<Timeout<T>> iterator = slots[(int) (tick & mask)].iterator();
+        while (iterator.hasNext()) {
+            Timeout<T> timeout = iterator.next();
+            // Later rounds of the wheel share the slot; leave them for then.
+            if (timeout.deadlineTick <= tick) {
+                iterator.remove();
+                try {
+                    onExpiry.accept(timeout.item);
+                } catch (RuntimeException e) {
+                    System.err.println("Timer callback failed: " + e.getMessage());
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+    }
+}
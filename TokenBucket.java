@@ -0,0 +1,43 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket kept as a single timestamp: the time at which the bucket
+ * would be empty if nothing more were taken. Taking a token pushes that
+ * time one interval later, and a token is there to take as long as it
+ * stays within one burst of now. Refilling is implied by the clock, so
+ * checking costs one read and one compare-and-set, with no lock and no
+ * background task.
+ */
+public final class TokenBucket {
+    private final long intervalNanos;
+    private final long burstNanos;
+    private final AtomicLong emptyAt = new AtomicLong(Long.MIN_VALUE);
+
+    public TokenBucket(double perSecond, int burst) {
+        this.intervalNanos = Math.max(1, (long) (1_000_000_000L / perSecond));
+        this.burstNanos = intervalNanos * Math.max(1, burst);
+    }
+
+    /** A bucket for the limit, or null if the limit is null (unlimited). */
+    public static TokenBucket forLimit(ServerConfig.RateLimit limit) {
+        return limit == null ? null : new TokenBucket(limit.getPerSecond(), limit.getBurst());
+    }
+
+    /**
+     * Takes a token and returns 0, or returns the nanoseconds until one
+     * will be available, taking nothing.
+     */
+    public long tryAcquire(long nowNanos) {
+        while (true) {
+            long current = emptyAt.get();
+            long next = Math.max(current, nowNanos) + intervalNanos;
+            long wait = next - nowNanos - burstNanos;
+            if (wait > 0) {
+                return wait;
+            }
+            if (emptyAt.compareAndSet(current, next)) {
+                return 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,25 @@
+/**
+ * One {@link Server#broadcastMessage(String)} to a fixed number of
+ * connected clients, followed by writing every recipient's copy.
+ */
+public class BroadcastWorkload implements Runnable {
+    private final InMemoryServer server = new InMemoryServer();
+    private final ClientHandler[] recipients;
+
+    public BroadcastWorkload(int recipients) {
+        this.recipients = new ClientHandler[recipients];
+        for (int i = 0; i < recipients; i++) {
+            this.recipients[i] = server.connect("user" + i);
+            // Keep the join announcements from filling anyone's queue.
+            server.drainAll();
+        }
+    }
+
+    @Override
+    public void run() {
+        server.broadcastMessage("SERVER: The server will restart in five minutes.");
+        for (ClientHandler recipient : recipients) {
+            server.drain(recipient);
+        }
+    }
+}
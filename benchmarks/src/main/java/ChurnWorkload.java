@@ -0,0 +1,34 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Clients repeatedly leaving and rejoining a server that has a fixed set
+ * of resident clients. Each {@link #get()} attaches one churning client
+ * and returns its leave-and-rejoin cycle, for one benchmark thread.
+ */
+public class ChurnWorkload implements Supplier<Runnable> {
+    private final InMemoryServer server = new InMemoryServer();
+    private final AtomicInteger nextMember = new AtomicInteger();
+    private final ClientHandler coordinator;
+
+    public ChurnWorkload(int residents) {
+        for (int i = 0; i < residents; i++) {
+            server.connect("resident" + i);
+            server.drainAll();
+        }
+        coordinator = server.getCoordinator();
+    }
+
+    @Override
+    public synchronized Runnable get() {
+        String username = "member" + nextMember.incrementAndGet();
+        ClientHandler member = server.connect(username);
+        server.drainAll();
+        return () -> {
+            server.removeClient(username);
+            server.addClient(username, member);
+            server.drain(member);
+            server.drain(coordinator);
+        };
+    }
+}
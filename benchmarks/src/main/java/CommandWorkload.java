@@ -0,0 +1,31 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * One line from a client through {@link ClientHandler#handleMessage} and
+ * out to whoever it is delivered to, with a single other client connected.
+ */
+public class CommandWorkload implements Runnable {
+    private final InMemoryServer server = new InMemoryServer();
+    private final ClientHandler sender;
+    private final ClientHandler recipient;
+    private final String line;
+
+    public CommandWorkload(String line) {
+        this.sender = server.connect("alice");
+        this.recipient = server.connect("bob");
+        this.line = line;
+        server.drainAll();
+    }
+
+    @Override
+    public void run() {
+        try {
+            sender.handleMessage(line);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        server.drain(sender);
+        server.drain(recipient);
+    }
+}
@@ -0,0 +1,112 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Supplier;
+
+/**
+ * Queues one connection a typical piece of output and writes it: chat
+ * lines written one at a time as they arrive, a coordinator roster, or a
+ * page of history written as one batch. Each run takes the next of many
+ * different samples, so the deflate window never holds an exact repeat.
+ *
+ * The setting is "kind:threshold", for example "roster:64", where the
+ * threshold is the server's compression threshold and "off" means the
+ * client does not ask for compression. As a Supplier it describes the
+ * bytes written per run before and after compression.
+ */
+public class CompressionWorkload implements Runnable, Supplier<String> {
+    private static final int SAMPLES = 64;
+    private static final String[] WORDS = {
+        "the", "meeting", "is", "at", "three", "can", "you", "send", "me", "slides", "thanks",
+        "lunch", "today", "sounds", "good", "see", "later", "who", "has", "link", "build", "broke",
+        "deploy", "review", "merged", "tomorrow", "morning", "coffee", "anyone", "ticket", "fixed"
+    };
+
+    private final InMemoryServer server;
+    private final ClientHandler reader;
+    private final boolean compress;
+    private final boolean oneAtATime;
+    private final List<List<String>> samples = new ArrayList<>();
+    private int next;
+    private long runs;
+    private long rawBefore;
+    private long wireBefore;
+
+    public CompressionWorkload(String setting) {
+        String kind = setting.substring(0, setting.indexOf(':'));
+        String threshold = setting.substring(setting.indexOf(':') + 1);
+        compress = !threshold.equals("off");
+        server = new InMemoryServer(ServerConfig.fromArgs(compress
+                ? new String[] { "--compression-threshold=" + threshold } : new String[0]));
+        reader = server.connect("reader", compress);
+        server.drainAll();
+
+        oneAtATime = kind.equals("chat");
+        Random random = new Random(42);
+        for (int sample = 0; sample < SAMPLES; sample++) {
+            List<String> lines = new ArrayList<>();
+            switch (kind) {
+                case "chat":
+                    for (int i = 0; i < 20; i++) {
+                        lines.add("user" + random.nextInt(1000) + ": " + sentence(random));
+                    }
+                    break;
+                case "roster":
+                    StringBuilder roster = new StringBuilder("Coordinator Online Users (version " + sample
+                            + "):\nUsername\tIP\tPort\tRooms");
+                    for (int i = 0; i < 200; i++) {
+                        roster.append("\nuser").append(random.nextInt(100000)).append("\t10.0.")
+                              .append(random.nextInt(4)).append('.').append(random.nextInt(256))
+                              .append('\t').append(40000 + random.nextInt(20000))
+                              .append('\t').append(random.nextInt(3) == 0 ? "general,dev" : "-");
+                    }
+                    lines.add(roster.toString());
+                    break;
+                case "history":
+                    for (int i = 0; i < 20; i++) {
+                        int seq = sample * 20 + i;
+                        lines.add("HISTORY #" + seq + " 14:" + (10 + seq % 50) + " user" + random.nextInt(1000)
+                                + ": " + sentence(random));
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown output kind " + kind);
+            }
+            samples.add(lines);
+        }
+        rawBefore = rawBytes();
+        wireBefore = server.getMetrics().getBytesOut();
+    }
+
+    private static String sentence(Random random) {
+        StringBuilder sentence = new StringBuilder();
+        for (int i = 3 + random.nextInt(10); i > 0; i--) {
+            sentence.append(WORDS[random.nextInt(WORDS.length)]).append(i > 1 ? " " : "");
+        }
+        return sentence.toString();
+    }
+
+    @Override
+    public void run() {
+        for (String line : samples.get(next)) {
+            reader.sendMessage(line);
+            if (oneAtATime) {
+                server.drain(reader);
+            }
+        }
+        server.drain(reader);
+        next = (next + 1) % SAMPLES;
+        runs++;
+    }
+
+    private long rawBytes() {
+        return compress ? server.getMetrics().getCompressedIn() : server.getMetrics().getBytesOut();
+    }
+
+    @Override
+    public String get() {
+        double raw = (rawBytes() - rawBefore) / (double) Math.max(1, runs);
+        double wire = (server.getMetrics().getBytesOut() - wireBefore) / (double) Math.max(1, runs);
+        return String.format("%.0f bytes per write, %.0f on the wire (%.1f%%)", raw, wire, 100 * wire / raw);
+    }
+}
@@ -0,0 +1,73 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A Server with no listening socket and no writer threads. Clients are
+ * attached over {@link MemorySocket}s and their outbound queues are
+ * drained on the caller's thread into a sink that discards the bytes, so
+ * a benchmark measures the server's own CPU and allocation only.
+ */
+public class InMemoryServer extends Server {
+    private static final WritableByteChannel SINK = new WritableByteChannel() {
+        @Override
+        public int write(ByteBuffer src) {
+            int length = src.remaining();
+            src.position(src.limit());
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    private int nextPort = 10000;
+
+    public InMemoryServer() {
+        this(new ServerConfig());
+    }
+
+    public InMemoryServer(ServerConfig config) {
+        super(null, config);
+    }
+
+    @Override
+    void startWriter(Runnable writer) {
+        // Queues are drained explicitly with drain().
+    }
+
+    /**
+     * Attaches a client that has sent its username; it joins the server
+     * exactly as a socket client would.
+     */
+    public ClientHandler connect(String username) {
+        return connect(username, false);
+    }
+
+    /** As {@link #connect(String)}, asking first for compressed output. */
+    public ClientHandler connect(String username, boolean compress) {
+        String handshake = compress ? Compression.REQUEST + "\n" + username : username;
+        return new ClientHandler(new MemorySocket(handshake, nextPort++), this);
+    }
+
+    public int drain(ClientHandler clientHandler) {
+        try {
+            return clientHandler.drainTo(SINK);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public void drainAll() {
+        for (ClientHandler clientHandler : getClientHandlers().values()) {
+            drain(clientHandler);
+        }
+    }
+}
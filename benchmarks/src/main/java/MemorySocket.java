@@ -0,0 +1,50 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An unconnected Socket whose input is a fixed handshake, normally just
+ * the username, and whose output is discarded, so a ClientHandler can
+ * complete its handshake without any network I/O.
+ */
+public class MemorySocket extends Socket {
+    private final InputStream input;
+    private final int port;
+    private boolean closed;
+
+    public MemorySocket(String handshake, int port) {
+        this.input = new ByteArrayInputStream((handshake + "\n").getBytes(StandardCharsets.UTF_8));
+        this.port = port;
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return input;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return OutputStream.nullOutputStream();
+    }
+
+    @Override
+    public InetAddress getInetAddress() {
+        return InetAddress.getLoopbackAddress();
+    }
+
+    @Override
+    public int getPort() {
+        return port;
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+}
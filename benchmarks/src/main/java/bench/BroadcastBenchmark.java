@@ -0,0 +1,32 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Server.broadcastMessage fan-out, including writing each recipient's copy
+ * to an in-memory sink.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BroadcastBenchmark {
+    @Param({"10", "1000", "10000"})
+    public int recipients;
+
+    private Runnable broadcast;
+
+    @Setup
+    public void setUp() {
+        broadcast = Workloads.runnable("BroadcastWorkload", recipients);
+    }
+
+    @Benchmark
+    public void broadcastMessage() {
+        broadcast.run();
+    }
+}
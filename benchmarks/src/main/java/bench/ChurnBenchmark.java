@@ -0,0 +1,67 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Server.removeClient followed by Server.addClient against a server with
+ * resident clients that stay connected, at increasing thread counts. The
+ * registry has no global lock, so throughput should grow with the number
+ * of cores until the coordinator's roster updates dominate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChurnBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Shared {
+        @Param({"10", "1000"})
+        public int residents;
+
+        Supplier<Runnable> churn;
+
+        @Setup
+        public void setUp() {
+            churn = Workloads.supplier("ChurnWorkload", residents);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Member {
+        Runnable leaveAndRejoin;
+
+        @Setup
+        public void setUp(Shared shared) {
+            leaveAndRejoin = shared.churn.get();
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void oneThread(Member member) {
+        member.leaveAndRejoin.run();
+    }
+
+    @Benchmark
+    @Threads(2)
+    public void twoThreads(Member member) {
+        member.leaveAndRejoin.run();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void fourThreads(Member member) {
+        member.leaveAndRejoin.run();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void eightThreads(Member member) {
+        member.leaveAndRejoin.run();
+    }
+}
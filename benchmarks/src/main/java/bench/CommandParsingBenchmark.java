@@ -0,0 +1,32 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * ClientHandler handling a /private command versus a plain chat line,
+ * between two connected clients.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CommandParsingBenchmark {
+    @Param({"/private bob are we still on for lunch?", "are we still on for lunch?"})
+    public String line;
+
+    private Runnable command;
+
+    @Setup
+    public void setUp() {
+        command = Workloads.runnable("CommandWorkload", line);
+    }
+
+    @Benchmark
+    public void handleMessage() {
+        command.run();
+    }
+}
@@ -0,0 +1,44 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Writing typical output to one connection with and without compression.
+ * The time per operation is the CPU cost; the bytes before and after
+ * compression are printed at the end of each run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+    @Param({"chat", "roster", "history"})
+    public String kind;
+
+    /** The server's compression threshold in bytes; off means the client does not ask. */
+    @Param({"off", "0", "64", "256"})
+    public String threshold;
+
+    private Runnable write;
+
+    @Setup
+    public void setUp() {
+        write = Workloads.runnable("CompressionWorkload", kind + ":" + threshold);
+    }
+
+    @TearDown
+    @SuppressWarnings("unchecked")
+    public void report() {
+        System.err.println(kind + ", threshold " + threshold + ": " + ((Supplier<String>) write).get());
+    }
+
+    @Benchmark
+    public void write() {
+        write.run();
+    }
+}
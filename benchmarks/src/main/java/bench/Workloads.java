@@ -0,0 +1,37 @@
+package bench;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.function.Supplier;
+
+/**
+ * Creates workloads by name. JMH only accepts benchmark classes in a named
+ * package, and the server lives in the default package, which no named
+ * package can refer to; so each workload is a default-package class behind
+ * a JDK interface, and the benchmarks only ever see that interface.
+ */
+final class Workloads {
+    private Workloads() {
+    }
+
+    static Runnable runnable(String className, Object argument) {
+        return (Runnable) create(className, argument);
+    }
+
+    @SuppressWarnings("unchecked")
+    static Supplier<Runnable> supplier(String className, Object argument) {
+        return (Supplier<Runnable>) create(className, argument);
+    }
+
+    private static Object create(String className, Object argument) {
+        // The server logs every join and leave; keep paying for that but
+        // send it nowhere, so the run's output stays readable.
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        Class<?> parameterType = argument instanceof Integer ? int.class : argument.getClass();
+        try {
+            return Class.forName(className).getConstructor(parameterType).newInstance(argument);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create workload " + className, e);
+        }
+    }
+}